@@ -0,0 +1,40 @@
+package com.foodcity.backend.config;
+
+import com.foodcity.backend.service.ProductCatalogCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.cache.CacheManagerCustomizer;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableCaching
+public class CacheConfig {
+
+    public static final String CUSTOMER_STATISTICS = "customer-statistics";
+
+    /**
+     * Registers the product catalog and dashboard caches with their own size/TTL specs on top of the
+     * caches configured through spring.cache.*. Stats are recorded so the caches are
+     * reported under the actuator cache.gets / cache.evictions metrics.
+     */
+    @Bean
+    public CacheManagerCustomizer<CaffeineCacheManager> applicationCacheCustomizer(
+            @Value("${cache.products.spec:maximumSize=10000,expireAfterWrite=10m}") String productSpec,
+            @Value("${cache.product-pages.spec:maximumSize=500,expireAfterWrite=5m}") String pageSpec,
+            @Value("${cache.active-products.spec:maximumSize=1,expireAfterWrite=5m}") String activeSpec,
+            @Value("${cache.customer-statistics.spec:maximumSize=1,expireAfterWrite=30s}") String customerStatisticsSpec) {
+        return cacheManager -> {
+            cacheManager.registerCustomCache(ProductCatalogCache.PRODUCTS,
+                    Caffeine.from(productSpec).recordStats().build());
+            cacheManager.registerCustomCache(ProductCatalogCache.PRODUCT_PAGES,
+                    Caffeine.from(pageSpec).recordStats().build());
+            cacheManager.registerCustomCache(ProductCatalogCache.ACTIVE_PRODUCTS,
+                    Caffeine.from(activeSpec).recordStats().build());
+            cacheManager.registerCustomCache(CUSTOMER_STATISTICS,
+                    Caffeine.from(customerStatisticsSpec).recordStats().build());
+        };
+    }
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.foodcity.backend.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+@Configuration
+public class MongoConfig {
+
+    @Bean
+    public MongoCustomConversions mongoCustomConversions() {
+        return new MongoCustomConversions(List.of(
+                LegacyDateStringConverter.INSTANCE, LegacyDateOnlyStringConverter.INSTANCE));
+    }
+
+    /**
+     * Reads date fields that were persisted as ISO strings before they were mapped
+     * as real dates, so documents stay readable while they are being migrated. A value
+     * that is not a date reads as null instead of failing the whole document.
+     */
+    @ReadingConverter
+    public enum LegacyDateStringConverter implements Converter<String, LocalDateTime> {
+        INSTANCE;
+
+        @Override
+        public LocalDateTime convert(String source) {
+            try {
+                return parse(source);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Strict variant for migrations, which need to tell bad values apart from blank ones.
+         */
+        public LocalDateTime parse(String source) {
+            if (source.isBlank()) {
+                return null;
+            }
+            try {
+                return LocalDateTime.parse(source);
+            } catch (DateTimeParseException e) {
+                // Date-only values such as expiry dates
+                return LocalDate.parse(source).atStartOfDay();
+            }
+        }
+    }
+
+    @ReadingConverter
+    public enum LegacyDateOnlyStringConverter implements Converter<String, LocalDate> {
+        INSTANCE;
+
+        @Override
+        public LocalDate convert(String source) {
+            LocalDateTime dateTime = LegacyDateStringConverter.INSTANCE.convert(source);
+            return dateTime != null ? dateTime.toLocalDate() : null;
+        }
+    }
+}
\ No newline at end of file
@@ -6,6 +6,7 @@ import com.foodcity.backend.service.CustomUserDetailsService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
@@ -67,6 +68,8 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
             .authorizeRequests()
                 .antMatchers("/api/auth/**").permitAll()
                 .antMatchers("/api/public/**").permitAll()
+                // Gateway webhooks carry a shared secret instead of a token
+                .antMatchers(HttpMethod.POST, "/api/payments/webhook").permitAll()
                 // Swagger UI
                 .antMatchers("/swagger-ui/**", "/v3/api-docs/**").permitAll()
                 // Actuator endpoints
@@ -1,17 +1,28 @@
 package com.foodcity.backend.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.foodcity.backend.model.Customer;
 import com.foodcity.backend.payload.ApiResponse;
+import com.foodcity.backend.payload.CustomerMergeRequest;
+import com.foodcity.backend.service.CustomerLeaderboardService;
 import com.foodcity.backend.service.CustomerService;
+import com.foodcity.backend.service.CustomerTierRecalculationService;
+import com.foodcity.backend.service.RfmSegmentationService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.web.PageableDefault;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -21,7 +32,11 @@ import java.util.Map;
 public class CustomerController {
 
     private final CustomerService customerService;
+    private final CustomerTierRecalculationService tierRecalculationService;
+    private final RfmSegmentationService rfmSegmentationService;
+    private final CustomerLeaderboardService customerLeaderboardService;
     private final SimpMessagingTemplate messagingTemplate;
+    private final ObjectMapper objectMapper;
 
     @PostMapping
     @PreAuthorize("hasAnyRole('ADMIN', 'CASHIER')")
@@ -84,10 +99,22 @@ public class CustomerController {
         return ResponseEntity.ok(customers);
     }
 
+    @GetMapping("/lookup")
+    @PreAuthorize("hasAnyRole('ADMIN', 'CASHIER')")
+    public ResponseEntity<Customer> lookupCustomer(
+            @RequestParam(required = false) String phone,
+            @RequestParam(required = false) String email) {
+        return customerService.findCustomerForCheckout(phone, email)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
     @GetMapping("/{id}/loyalty-points")
     @PreAuthorize("hasAnyRole('ADMIN', 'CASHIER')")
-    public ResponseEntity<Map<String, Object>> getLoyaltyPoints(@PathVariable String id) {
-        Map<String, Object> loyaltyInfo = customerService.getLoyaltyPointsInfo(id);
+    public ResponseEntity<Map<String, Object>> getLoyaltyPoints(
+            @PathVariable String id,
+            @PageableDefault(size = 20) Pageable pageable) {
+        Map<String, Object> loyaltyInfo = customerService.getLoyaltyPointsInfo(id, pageable);
         return ResponseEntity.ok(loyaltyInfo);
     }
 
@@ -108,6 +135,12 @@ public class CustomerController {
         return ResponseEntity.ok(purchaseHistory);
     }
 
+    @GetMapping("/{id}/churn-risk")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getChurnRisk(@PathVariable String id) {
+        return ResponseEntity.ok(customerService.predictCustomerChurnRisk(id));
+    }
+
     @GetMapping("/statistics")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<Map<String, Object>> getCustomerStatistics() {
@@ -123,6 +156,25 @@ public class CustomerController {
         return ResponseEntity.ok(topCustomers);
     }
 
+    @GetMapping("/leaderboard")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, Object>>> getLeaderboard(
+            @RequestParam(defaultValue = "ALL_TIME") CustomerLeaderboardService.Period period,
+            @RequestParam(required = false) Customer.CustomerTier tier,
+            @RequestParam(defaultValue = "10") int limit) {
+        return ResponseEntity.ok(customerLeaderboardService.top(period, tier, limit));
+    }
+
+    @GetMapping("/{id}/rank")
+    @PreAuthorize("hasAnyRole('ADMIN', 'CASHIER')")
+    public ResponseEntity<Map<String, Object>> getCustomerRank(
+            @PathVariable String id,
+            @RequestParam(defaultValue = "ALL_TIME") CustomerLeaderboardService.Period period,
+            @RequestParam(required = false) Customer.CustomerTier tier) {
+        Map<String, Object> rank = customerLeaderboardService.rank(id, period, tier);
+        return rank != null ? ResponseEntity.ok(rank) : ResponseEntity.notFound().build();
+    }
+
     @PostMapping("/bulk-update")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ApiResponse> bulkUpdateCustomers(
@@ -131,6 +183,32 @@ public class CustomerController {
         return ResponseEntity.ok(new ApiResponse(true, "Customers updated successfully", updatedCustomers));
     }
 
+    @GetMapping("/birthdays")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Customer>> getCustomersWithBirthdays(
+            @RequestParam(defaultValue = "7") int daysAhead) {
+        return ResponseEntity.ok(customerService.getCustomersWithBirthdays(daysAhead));
+    }
+
+    // Newline-delimited JSON read from a cursor, for campaign pulls too large to hold in memory
+    @GetMapping(value = "/birthdays/export", produces = "application/x-ndjson")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<StreamingResponseBody> exportCustomersWithBirthdays(
+            @RequestParam(defaultValue = "7") int daysAhead) {
+        StreamingResponseBody body = out -> {
+            ObjectWriter writer = objectMapper.writerFor(Customer.class);
+            customerService.forEachCustomerWithBirthday(daysAhead, customer -> {
+                try {
+                    out.write(writer.writeValueAsBytes(customer));
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        };
+        return ResponseEntity.ok().body(body);
+    }
+
     @GetMapping("/inactive")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<List<Customer>> getInactiveCustomers(
@@ -139,6 +217,65 @@ public class CustomerController {
         return ResponseEntity.ok(inactiveCustomers);
     }
 
+    @PostMapping("/tiers/recalculate")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse> recalculateTiers(
+            @RequestParam(defaultValue = "true") boolean resume) {
+        if (!tierRecalculationService.start(resume)) {
+            return ResponseEntity.badRequest().body(new ApiResponse(false, "Tier recalculation is already running"));
+        }
+        return ResponseEntity.accepted().body(new ApiResponse(true, "Tier recalculation started"));
+    }
+
+    @GetMapping("/tiers/recalculate")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getTierRecalculationStatus() {
+        return ResponseEntity.ok(tierRecalculationService.getStatus());
+    }
+
+    @GetMapping("/segments")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, Object>>> getCustomerSegments() {
+        return ResponseEntity.ok(customerService.getCustomerSegments());
+    }
+
+    @GetMapping("/segments/{segment}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getSegmentMembers(
+            @PathVariable RfmSegmentationService.Segment segment,
+            @RequestParam(defaultValue = "0") int offset,
+            @RequestParam(defaultValue = "1000") int limit) {
+        Map<String, Object> members = new HashMap<>();
+        members.put("segment", segment);
+        members.put("size", rfmSegmentationService.getSegmentSize(segment));
+        members.put("computedAt", rfmSegmentationService.getComputedAt());
+        members.put("customerIds", rfmSegmentationService.getCustomerIds(segment, offset, limit));
+        return ResponseEntity.ok(members);
+    }
+
+    @PostMapping("/{id}/merge")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse> mergeCustomer(
+            @PathVariable String id,
+            @RequestParam String targetId) {
+        customerService.mergeCustomerAccounts(id, targetId);
+        return ResponseEntity.ok(new ApiResponse(true, "Customer accounts merged successfully"));
+    }
+
+    @PostMapping("/merge")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse> mergeCustomers(
+            @Valid @RequestBody List<CustomerMergeRequest> pairs) {
+        Map<String, Object> report = customerService.mergeCustomerAccounts(pairs);
+        return ResponseEntity.ok(new ApiResponse(true, "Customer merge batch completed", report));
+    }
+
+    @GetMapping("/duplicates")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<CustomerMergeRequest>> findDuplicateCustomers() {
+        return ResponseEntity.ok(customerService.findDuplicateCustomers());
+    }
+
     @PostMapping("/{id}/tier-upgrade")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ApiResponse> upgradeCustomerTier(
@@ -3,10 +3,12 @@ package com.foodcity.backend.controller;
 import com.foodcity.backend.model.Payment;
 import com.foodcity.backend.payload.ApiResponse;
 import com.foodcity.backend.service.PaymentService;
+import com.foodcity.backend.service.PaymentWebhookQueue;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
@@ -23,6 +25,7 @@ public class PaymentController {
 
     private final PaymentService paymentService;
     private final SimpMessagingTemplate messagingTemplate;
+    private final PaymentWebhookQueue paymentWebhookQueue;
 
     @PostMapping("/process")
     @PreAuthorize("hasAnyRole('ADMIN', 'CASHIER')")
@@ -125,6 +128,26 @@ public class PaymentController {
         return ResponseEntity.ok(report);
     }
 
+    @GetMapping("/settlement")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getSettlementReport(
+            @RequestParam LocalDateTime date) {
+        Map<String, Object> report = paymentService.getSettlementReport(date);
+        return ResponseEntity.ok(report);
+    }
+
+    @GetMapping("/fraud-report")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getFraudDetectionReport() {
+        return ResponseEntity.ok(paymentService.getFraudDetectionReport());
+    }
+
+    @GetMapping("/anomalies")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, Object>>> getPaymentAnomalies() {
+        return ResponseEntity.ok(paymentService.getPaymentAnomalies());
+    }
+
     @GetMapping("/customer/{customerId}")
     @PreAuthorize("hasAnyRole('ADMIN', 'CASHIER')")
     public ResponseEntity<List<Payment>> getCustomerPayments(@PathVariable String customerId) {
@@ -145,8 +168,20 @@ public class PaymentController {
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ApiResponse> processBatchPayments(
             @RequestBody List<Payment> payments) {
-        List<Payment> processedPayments = paymentService.processBatchPayments(payments);
-        return ResponseEntity.ok(new ApiResponse(true, "Batch payments processed", processedPayments));
+        Map<String, Object> report = paymentService.processBatchPayments(payments);
+        return ResponseEntity.ok(new ApiResponse(true, "Batch payments processed", report));
+    }
+
+    // Called by the gateways, which authenticate with the shared webhook secret instead of a token
+    @PostMapping("/webhook")
+    public ResponseEntity<ApiResponse> handlePaymentWebhook(
+            @RequestHeader(value = "X-Webhook-Secret", required = false) String secret,
+            @RequestBody Map<String, Object> webhookData) {
+        if (!paymentWebhookQueue.isTrusted(secret)) {
+            throw new AccessDeniedException("Invalid webhook secret");
+        }
+        paymentService.handlePaymentWebhook(webhookData);
+        return ResponseEntity.accepted().body(new ApiResponse(true, "Webhook accepted"));
     }
 
     @GetMapping("/gateway-health")
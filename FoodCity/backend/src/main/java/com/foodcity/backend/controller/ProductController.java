@@ -2,17 +2,26 @@ package com.foodcity.backend.controller;
 
 import com.foodcity.backend.model.Product;
 import com.foodcity.backend.payload.ApiResponse;
+import com.foodcity.backend.service.CatalogResponseCache;
+import com.foodcity.backend.service.CoPurchaseIndexService;
+import com.foodcity.backend.service.ProductCatalogCache;
 import com.foodcity.backend.service.ProductService;
 import lombok.RequiredArgsConstructor;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/products")
@@ -20,21 +29,40 @@ import java.util.List;
 public class ProductController {
 
     private final ProductService productService;
+    private final ProductCatalogCache productCatalogCache;
+    private final CatalogResponseCache catalogResponseCache;
+    private final CoPurchaseIndexService coPurchaseIndexService;
     private final SimpMessagingTemplate messagingTemplate;
 
     @GetMapping
-    public ResponseEntity<Page<Product>> getAllProducts(
+    public void getAllProducts(
             @RequestParam(required = false) String category,
             @RequestParam(required = false) String search,
-            Pageable pageable) {
-        Page<Product> products = productService.getAllProducts(category, search, pageable);
-        return ResponseEntity.ok(products);
+            Pageable pageable,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        String etag = productCatalogCache.etag();
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return;
+        }
+        if (StringUtils.hasText(search)) {
+            // Free-text searches are too varied to be worth caching
+            catalogResponseCache.writeUncached(etag,
+                    productService.getAllProducts(category, search, pageable), request, response);
+            return;
+        }
+        catalogResponseCache.write(etag, "products|" + productCatalogCache.pageKey(category, pageable),
+                () -> productService.getAllProducts(category, null, pageable), request, response);
     }
 
     @GetMapping("/{id}")
-    public ResponseEntity<Product> getProductById(@PathVariable String id) {
+    public ResponseEntity<Product> getProductById(@PathVariable String id, WebRequest request) {
+        String etag = productCatalogCache.etag();
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
         Product product = productService.getProductById(id);
-        return ResponseEntity.ok(product);
+        return ResponseEntity.ok().eTag(etag).body(product);
     }
 
     @PostMapping
@@ -73,9 +101,16 @@ public class ProductController {
     }
 
     @GetMapping("/category/{category}")
-    public ResponseEntity<List<Product>> getProductsByCategory(@PathVariable String category) {
-        List<Product> products = productService.getProductsByCategory(category);
-        return ResponseEntity.ok(products);
+    public void getProductsByCategory(
+            @PathVariable String category,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        String etag = productCatalogCache.etag();
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return;
+        }
+        catalogResponseCache.write(etag, "category|" + productCatalogCache.pageKey(category, null),
+                () -> productService.getProductsByCategory(category), request, response);
     }
 
     @GetMapping("/low-stock")
@@ -119,6 +154,26 @@ public class ProductController {
         return ResponseEntity.ok(new ApiResponse(true, "Price updated successfully", updatedProduct));
     }
 
+    @PatchMapping("/prices/bulk")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse> updateBulkPrices(
+            @RequestBody List<String> productIds,
+            @RequestParam(required = false) Double percentage,
+            @RequestParam(required = false) Double amount) {
+        long updated = productService.updateBulkPrices(productIds, percentage, amount);
+        return ResponseEntity.ok(new ApiResponse(true, "Prices updated successfully", updated));
+    }
+
+    @PatchMapping("/category/{category}/prices")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse> updateCategoryPrices(
+            @PathVariable String category,
+            @RequestParam(required = false) Double percentage,
+            @RequestParam(required = false) Double amount) {
+        long updated = productService.updateCategoryPrices(category, percentage, amount);
+        return ResponseEntity.ok(new ApiResponse(true, "Category prices updated successfully", updated));
+    }
+
     @GetMapping("/barcode/{barcode}")
     public ResponseEntity<Product> getProductByBarcode(@PathVariable String barcode) {
         Product product = productService.getProductByBarcode(barcode);
@@ -126,9 +181,20 @@ public class ProductController {
     }
 
     @GetMapping("/active")
-    public ResponseEntity<List<Product>> getActiveProducts() {
-        List<Product> activeProducts = productService.getActiveProducts();
-        return ResponseEntity.ok(activeProducts);
+    public void getActiveProducts(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String etag = productCatalogCache.etag();
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return;
+        }
+        catalogResponseCache.write(etag, "active",
+                productService::getActiveProducts, request, response);
+    }
+
+    @GetMapping("/recommendations")
+    public ResponseEntity<List<Map<String, Object>>> getBasketRecommendations(
+            @RequestParam List<String> productIds,
+            @RequestParam(defaultValue = "10") int limit) {
+        return ResponseEntity.ok(coPurchaseIndexService.recommendForBasket(productIds, limit));
     }
 
     @PatchMapping("/{id}/toggle-status")
@@ -34,6 +34,19 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(apiResponse, HttpStatus.NOT_FOUND);
     }
 
+    @ExceptionHandler(IllegalStateException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public ResponseEntity<ApiResponse> handleIllegalStateException(
+            IllegalStateException ex, WebRequest request) {
+        ApiResponse apiResponse = new ApiResponse(
+            false,
+            ex.getMessage(),
+            "Conflict",
+            request.getDescription(false)
+        );
+        return new ResponseEntity<>(apiResponse, HttpStatus.CONFLICT);
+    }
+
     @ExceptionHandler(BadCredentialsException.class)
     @ResponseStatus(HttpStatus.UNAUTHORIZED)
     public ResponseEntity<ApiResponse> handleBadCredentialsException(
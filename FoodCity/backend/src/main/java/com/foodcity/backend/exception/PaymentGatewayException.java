@@ -0,0 +1,61 @@
+package com.foodcity.backend.exception;
+
+import java.util.Set;
+
+/**
+ * A payment gateway call that did not produce an answer (timeout, upstream error,
+ * open circuit, full bulkhead) or an explicit decline. The code ends up on the
+ * payment as its errorCode.
+ */
+public class PaymentGatewayException extends RuntimeException {
+
+    public static final String DECLINED = "DECLINED";
+    public static final String TIMEOUT = "GATEWAY_TIMEOUT";
+    public static final String UNAVAILABLE = "GATEWAY_UNAVAILABLE";
+    public static final String UPSTREAM_ERROR = "GATEWAY_ERROR";
+    public static final String CIRCUIT_OPEN = "GATEWAY_CIRCUIT_OPEN";
+    public static final String BULKHEAD_FULL = "GATEWAY_BUSY";
+    public static final String NOT_CONFIGURED = "GATEWAY_NOT_CONFIGURED";
+
+    // Failures that say nothing about the request itself, so sending it again may succeed
+    public static final Set<String> TRANSIENT_CODES = Set.of(TIMEOUT, UNAVAILABLE, UPSTREAM_ERROR, CIRCUIT_OPEN, BULKHEAD_FULL);
+
+    private final String gateway;
+    private final String code;
+
+    public PaymentGatewayException(String gateway, String code, String message) {
+        super(message);
+        this.gateway = gateway;
+        this.code = code;
+    }
+
+    public PaymentGatewayException(String gateway, String code, String message, Throwable cause) {
+        super(message, cause);
+        this.gateway = gateway;
+        this.code = code;
+    }
+
+    public String getGateway() {
+        return gateway;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Whether the same request may succeed if sent again later. Declines and gateways
+     * without a configuration are final.
+     */
+    public boolean isRetryable() {
+        return isRetryable(code);
+    }
+
+    /**
+     * Same as {@link #isRetryable()} for an error code stored on a payment. Codes not
+     * raised by a gateway call, such as a velocity block, are final as well.
+     */
+    public static boolean isRetryable(String code) {
+        return code != null && TRANSIENT_CODES.contains(code);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.foodcity.backend.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * Latest churn-risk score for a customer, written by the nightly scoring run.
+ * The id is the customer id.
+ */
+@Data
+@Document(collection = "customer_churn_scores")
+public class ChurnScore {
+    @Id
+    private String customerId;
+
+    private Double score;
+    private RiskLevel riskLevel;
+
+    // Features the score was computed from
+    private Long daysSinceLastPurchase;
+    private Double frequencyTrend;
+    private Double basketValueTrend;
+
+    private String modelVersion;
+    private LocalDateTime scoredAt;
+
+    public enum RiskLevel {
+        LOW,
+        MEDIUM,
+        HIGH
+    }
+}
\ No newline at end of file
@@ -2,11 +2,16 @@ package com.foodcity.backend.model;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 import javax.validation.constraints.Email;
 import javax.validation.constraints.NotBlank;
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.List;
 
 @Data
@@ -25,6 +30,20 @@ public class Customer {
     private String email;
 
     private String phone;
+
+    // Derived lookup keys, maintained on every write of phone/email/name
+    @Indexed(sparse = true)
+    private String normalizedPhone;
+    @Indexed(sparse = true)
+    private String emailLower;
+    @Indexed
+    private List<String> nameKeys;
+
+    private LocalDate dateOfBirth;
+    // Day of year as if every year were a leap year (Feb 29 = 60, Mar 1 = 61), derived from dateOfBirth
+    @Indexed(sparse = true)
+    private Integer birthdayKey;
+
     private String address;
     private String city;
     private String state;
@@ -33,9 +52,12 @@ public class Customer {
     // Loyalty Program
     private Integer loyaltyPoints;
     private CustomerTier tier;
+    // Legacy embedded history; new transactions are written to the loyalty_ledger collection
     private List<LoyaltyTransaction> loyaltyTransactions;
     
     // Purchase History
+    @Indexed
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal totalPurchases;
     private Integer totalOrders;
     private LocalDateTime lastPurchaseDate;
@@ -48,6 +70,24 @@ public class Customer {
     private String notes;
     private LocalDateTime lastUpdated;
 
+    // Set when this account was merged into another one
+    private String mergedInto;
+    private LocalDateTime mergedAt;
+    // Aggregates taken off this account by a merge, until the target has been credited
+    private MergeCredit mergeCredit;
+    // Merged accounts whose aggregates were added to this one
+    private List<String> creditedMerges;
+
+    @Data
+    public static class MergeCredit {
+        private Integer loyaltyPoints;
+        @Field(targetType = FieldType.DECIMAL128)
+        private BigDecimal totalPurchases;
+        private Integer totalOrders;
+        private LocalDateTime lastPurchaseDate;
+        private boolean credited;
+    }
+
     @Data
     public static class LoyaltyTransaction {
         private String orderId;
@@ -72,6 +112,21 @@ public class Customer {
         public int getRequiredPoints() {
             return requiredPoints;
         }
+
+        // Highest tier the given balance qualifies for
+        public static CustomerTier forPoints(int points) {
+            CustomerTier[] tiers = values();
+            for (int i = tiers.length - 1; i > 0; i--) {
+                if (points >= tiers[i].requiredPoints) {
+                    return tiers[i];
+                }
+            }
+            return BRONZE;
+        }
+
+        public List<CustomerTier> andAbove() {
+            return Arrays.asList(values()).subList(ordinal(), values().length);
+        }
     }
 
     public enum TransactionType {
@@ -0,0 +1,38 @@
+package com.foodcity.backend.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * One loyalty points movement. Entries are only ever inserted; the customer's
+ * running balance lives on Customer.loyaltyPoints and is updated with $inc.
+ */
+@Data
+@Document(collection = "loyalty_ledger")
+@CompoundIndex(name = "customer_date", def = "{'customerId': 1, 'date': -1}")
+public class LoyaltyLedgerEntry {
+    @Id
+    private String id;
+
+    private String customerId;
+    private String orderId;
+    private Integer points;
+    private Customer.TransactionType type;
+    private LocalDateTime date;
+    private String description;
+
+    // Customer balance right after this entry was applied
+    private Integer balanceAfter;
+
+    // Earned points lapse at expiryDate; expiredAt is set once the expiry job has
+    // written the matching EXPIRED entry
+    @Indexed(sparse = true)
+    private LocalDateTime expiryDate;
+    private LocalDateTime expiredAt;
+    private String sourceEntryId;
+}
\ No newline at end of file
@@ -37,6 +37,7 @@ public class Order {
     private PaymentStatus paymentStatus;
     private String paymentId;
     private String invoiceNumber;
+    private Long priceVersion;
     
     private String notes;
     private boolean isRefunded;
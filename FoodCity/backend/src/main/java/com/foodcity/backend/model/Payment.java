@@ -2,6 +2,9 @@ package com.foodcity.backend.model;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import javax.validation.constraints.NotNull;
 import java.math.BigDecimal;
@@ -10,6 +13,11 @@ import java.util.List;
 
 @Data
 @Document(collection = "payments")
+@CompoundIndexes({
+        @CompoundIndex(name = "refund_queue", def = "{'refundDetails.status': 1, 'refundDetails.nextAttemptAt': 1}", sparse = true),
+        // Day first, so the settlement reconciliation only scans the keys of its day
+        @CompoundIndex(name = "payment_date_transaction", def = "{'paymentDate': 1, 'transactionId': 1}")
+})
 public class Payment {
     @Id
     private String id;
@@ -26,8 +34,11 @@ public class Payment {
 
     private PaymentMethod paymentMethod;
     private PaymentStatus status;
+    @Indexed(sparse = true)
     private String transactionId;
     private String referenceNumber;
+    private String paymentGateway;
+    private String batchId;
 
     // For Card Payments
     private CardDetails cardDetails;
@@ -41,6 +52,17 @@ public class Payment {
     private LocalDateTime paymentDate;
     private LocalDateTime processedDate;
     private String processingNotes;
+    private String errorCode;
+    private String errorMessage;
+    private int retryCount;
+    @Indexed(sparse = true)
+    private LocalDateTime nextRetryAt;
+    // Event time of the last gateway webhook applied to this payment
+    private LocalDateTime lastWebhookEventAt;
+
+    // Set when a velocity rule flagged the payment
+    private boolean fraudCheckFlag;
+    private List<String> fraudReasons;
 
     // Refund Information
     private RefundDetails refundDetails;
@@ -85,6 +107,15 @@ public class Payment {
         private String refundTransactionId;
         private RefundStatus status;
         private String notes;
+
+        // Refund pipeline bookkeeping
+        private LocalDateTime requestedDate;
+        private int attempts;
+        private LocalDateTime nextAttemptAt;
+        private String leaseOwner;
+        private LocalDateTime leaseExpiresAt;
+        private String lastErrorCode;
+        private String lastErrorMessage;
     }
 
     public enum PaymentMethod {
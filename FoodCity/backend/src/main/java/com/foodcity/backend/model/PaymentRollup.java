@@ -0,0 +1,48 @@
+package com.foodcity.backend.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Payment counters for one payment method in one hour, keyed by payment status.
+ * The id is "&lt;hour&gt;|&lt;method&gt;"; the all-time totals of a method use
+ * "ALL|&lt;method&gt;" and have no hour.
+ */
+@Data
+@Document(collection = "payment_rollups")
+public class PaymentRollup {
+    @Id
+    private String id;
+
+    @Indexed(sparse = true)
+    private LocalDateTime hour;
+    private Payment.PaymentMethod method;
+
+    private Map<String, Long> counts = new HashMap<>();
+    private Map<String, Long> amountCents = new HashMap<>();
+
+    // Last rollup rebuild batch counted in here, so a resumed rebuild does not count it twice
+    private Long rebuildBatch;
+
+    public long count(Payment.PaymentStatus status) {
+        return counts.getOrDefault(status.name(), 0L);
+    }
+
+    public long amountCents(Payment.PaymentStatus status) {
+        return amountCents.getOrDefault(status.name(), 0L);
+    }
+
+    public long totalCount() {
+        return counts.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public long totalAmountCents() {
+        return amountCents.values().stream().mapToLong(Long::longValue).sum();
+    }
+}
\ No newline at end of file
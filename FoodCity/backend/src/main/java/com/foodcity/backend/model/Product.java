@@ -2,11 +2,16 @@ package com.foodcity.backend.model;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 
 @Data
 @Document(collection = "products")
@@ -24,6 +29,7 @@ public class Product {
 
     @NotNull(message = "Price is required")
     @Min(value = 0, message = "Price must be greater than or equal to 0")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal price;
 
     @Min(value = 0, message = "Stock quantity must be greater than or equal to 0")
@@ -33,13 +39,16 @@ public class Product {
     private String barcode;
     private String supplierId;
     private boolean active = true;
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal discountPrice;
-    private String lastUpdated;
+    @Indexed
+    private LocalDateTime lastUpdated;
 
     // Additional fields for inventory management
     private Integer minimumStockLevel;
     private Integer reorderPoint;
     private String unit; // e.g., kg, pieces, packets
     private String location; // storage location in warehouse
-    private String expiryDate;
+    @Indexed(sparse = true)
+    private LocalDate expiryDate;
 }
\ No newline at end of file
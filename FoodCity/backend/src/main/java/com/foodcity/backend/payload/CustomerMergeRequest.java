@@ -0,0 +1,18 @@
+package com.foodcity.backend.payload;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotBlank;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CustomerMergeRequest {
+    @NotBlank(message = "Source customer is required")
+    private String sourceId;
+
+    @NotBlank(message = "Target customer is required")
+    private String targetId;
+}
\ No newline at end of file
@@ -45,6 +45,7 @@ public class WebSocketMessage {
         public static final String DATA_UPDATE = "DATA_UPDATE";
         public static final String DATA_SYNC = "DATA_SYNC";
         public static final String DATA_VALIDATION = "DATA_VALIDATION";
+        public static final String PRICE_UPDATE = "PRICE_UPDATE";
         
         // User Messages
         public static final String USER_ACTION = "USER_ACTION";
@@ -0,0 +1,9 @@
+package com.foodcity.backend.repository;
+
+import com.foodcity.backend.model.ChurnScore;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ChurnScoreRepository extends MongoRepository<ChurnScore, String> {
+}
\ No newline at end of file
@@ -0,0 +1,13 @@
+package com.foodcity.backend.repository;
+
+import com.foodcity.backend.model.LoyaltyLedgerEntry;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface LoyaltyLedgerRepository extends MongoRepository<LoyaltyLedgerEntry, String> {
+
+    Page<LoyaltyLedgerEntry> findByCustomerIdOrderByDateDesc(String customerId, Pageable pageable);
+}
\ No newline at end of file
@@ -46,11 +46,6 @@ public interface PaymentRepository extends MongoRepository<Payment, String> {
             LocalDateTime startDate, 
             LocalDateTime endDate);
 
-    // Find pending refunds
-    List<Payment> findByRefundStatusAndRefundRequestDateBefore(
-            Payment.RefundStatus status, 
-            LocalDateTime date);
-
     // Custom queries
 
     // Find payments by status and method
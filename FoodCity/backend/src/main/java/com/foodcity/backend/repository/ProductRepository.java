@@ -8,6 +8,8 @@ import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -65,7 +67,12 @@ public interface ProductRepository extends MongoRepository<Product, String> {
     List<Product> searchByNameOrDescription(String searchTerm);
 
     // Find products updated after a certain date
-    List<Product> findByLastUpdatedGreaterThan(String date);
+    List<Product> findByLastUpdatedGreaterThan(LocalDateTime date);
+    List<Product> findByLastUpdatedBetween(LocalDateTime startDate, LocalDateTime endDate);
+
+    // Find products expiring before a date or within a date range
+    List<Product> findByExpiryDateBefore(LocalDate date);
+    List<Product> findByExpiryDateBetween(LocalDate startDate, LocalDate endDate);
 
     // Find products by status and category
     List<Product> findByActiveAndCategory(boolean active, String category);
@@ -0,0 +1,156 @@
+package com.foodcity.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps catalog responses as already-encoded JSON (and gzip) bytes keyed by query and
+ * catalog version, so popular pages are serialized once per catalog change and
+ * written straight to the servlet output stream afterwards. On a miss the body comes
+ * from the per-view caches in {@link ProductCatalogCache}, which are only evicted for
+ * the categories a write touched.
+ */
+@Service
+public class CatalogResponseCache {
+
+    private static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+    private static final Duration ENTRY_TTL = Duration.ofMinutes(10);
+    // Same threshold as server.compression.min-response-size
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    private final ObjectMapper objectMapper;
+    private final Cache<String, EncodedResponse> responses;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter bytesSaved;
+    private final Counter serializationMillisAvoided;
+
+    public CatalogResponseCache(ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        this.responses = Caffeine.newBuilder()
+                .maximumWeight(MAX_CACHED_BYTES)
+                .weigher((String key, EncodedResponse value) -> value.size())
+                .expireAfterWrite(ENTRY_TTL)
+                .build();
+
+        this.hits = meterRegistry.counter("catalog.response.cache.hits");
+        this.misses = meterRegistry.counter("catalog.response.cache.misses");
+        this.bytesSaved = Counter.builder("catalog.response.cache.bytes.saved")
+                .description("Encoded response bytes served without re-serializing")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.serializationMillisAvoided = Counter.builder("catalog.response.cache.serialization.avoided")
+                .description("Serialization and compression time avoided by cache hits")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Writes the response for the given key, serializing the body only on a miss.
+     * The etag must be read before the body is loaded; it becomes part of the key,
+     * so entries from older catalog versions are never served.
+     */
+    public void write(String etag, String queryKey, Supplier<?> body,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean[] loaded = {false};
+        EncodedResponse encoded;
+        try {
+            // One loader per key: concurrent misses for the same page wait for it instead of all querying
+            encoded = responses.get(etag + "|" + queryKey, key -> {
+                loaded[0] = true;
+                try {
+                    return encode(body.get());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (loaded[0]) {
+            misses.increment();
+        } else {
+            hits.increment();
+            bytesSaved.increment(encoded.json.length);
+            serializationMillisAvoided.increment(encoded.encodingNanos / 1_000_000.0);
+        }
+        writeEncoded(encoded, etag, request, response);
+    }
+
+    /**
+     * Same wire format as {@link #write} for queries that are not worth caching.
+     */
+    public void writeUncached(String etag, Object body,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        writeEncoded(encode(body), etag, request, response);
+    }
+
+    private EncodedResponse encode(Object body) throws IOException {
+        long start = System.nanoTime();
+        byte[] json = objectMapper.writeValueAsBytes(body);
+        byte[] gzip = null;
+        if (json.length >= MIN_GZIP_SIZE) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length / 4);
+            try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+                out.write(json);
+            }
+            gzip = buffer.toByteArray();
+        }
+        return new EncodedResponse(json, gzip, System.nanoTime() - start);
+    }
+
+    private void writeEncoded(EncodedResponse encoded, String etag,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzip = encoded.gzip != null && acceptsGzip(request);
+        byte[] bytes = gzip ? encoded.gzip : encoded.json;
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setHeader(HttpHeaders.ETAG, "\"" + etag + "\"");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            // Tomcat skips its own compression when the encoding is already set
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+        response.flushBuffer();
+    }
+
+    private boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    private static final class EncodedResponse {
+        private final byte[] json;
+        private final byte[] gzip;
+        private final long encodingNanos;
+
+        private EncodedResponse(byte[] json, byte[] gzip, long encodingNanos) {
+            this.json = json;
+            this.gzip = gzip;
+            this.encodingNanos = encodingNanos;
+        }
+
+        private int size() {
+            return json.length + (gzip != null ? gzip.length : 0);
+        }
+    }
+}
\ No newline at end of file
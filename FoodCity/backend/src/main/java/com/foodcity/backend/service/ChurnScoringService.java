@@ -0,0 +1,300 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.ChurnScore;
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.Order;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * Nightly churn-risk scoring. Every active customer account is scored: the customer list
+ * is left-joined with one aggregation over completed orders that yields each customer's
+ * recency and, over the last year, order frequency trend and basket value trend. A
+ * customer who never completed an order is as recent as their registration. Customers
+ * are scored in parallel with a logistic model read from a local file and the scores are
+ * bulk-upserted, so the per-customer endpoint is a single lookup.
+ */
+@Service
+@Slf4j
+public class ChurnScoringService {
+
+    private static final int LOOKBACK_DAYS = 365;
+    private static final int RECENT_DAYS = 90;
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private static final double HIGH_RISK = 0.7;
+    private static final double MEDIUM_RISK = 0.4;
+
+    private final MongoTemplate mongoTemplate;
+    private final String modelPath;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "churn-scoring");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ChurnScoringService(MongoTemplate mongoTemplate,
+                               @Value("${churn.model.path:churn-model.properties}") String modelPath) {
+        this.mongoTemplate = mongoTemplate;
+        this.modelPath = modelPath;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // Runs on its own thread so a long pass does not hold up the other scheduled jobs
+    @Scheduled(cron = "0 30 1 * * *")
+    public void nightlyScoring() {
+        executor.execute(this::scoreAllCustomers);
+    }
+
+    /**
+     * Runs one scoring pass on the calling thread.
+     *
+     * @return number of customers scored, or -1 if a pass is already running
+     */
+    public int scoreAllCustomers() {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        try {
+            long started = System.nanoTime();
+            LogisticModel model = loadModel();
+            LocalDateTime now = LocalDateTime.now();
+            Features features = aggregateFeatures(now);
+
+            double[] scores = new double[features.size];
+            IntStream.range(0, features.size).parallel()
+                    .forEach(i -> scores[i] = model.score(features.daysSinceLast[i],
+                            features.frequencyTrend[i], features.basketValueTrend[i]));
+
+            writeScores(features, scores, model.version, now);
+            // Every current customer was just rewritten, so older scores belong to deleted or merged accounts
+            mongoTemplate.remove(new Query(Criteria.where("scoredAt").lt(now)), ChurnScore.class);
+
+            log.info("Churn scoring with model {} scored {} customers in {} ms",
+                    model.version, features.size, (System.nanoTime() - started) / 1_000_000);
+            return features.size;
+        } catch (Exception e) {
+            log.error("Churn scoring failed: {}", e.getMessage());
+            return 0;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public static ChurnScore.RiskLevel riskLevel(double score) {
+        if (score >= HIGH_RISK) {
+            return ChurnScore.RiskLevel.HIGH;
+        }
+        return score >= MEDIUM_RISK ? ChurnScore.RiskLevel.MEDIUM : ChurnScore.RiskLevel.LOW;
+    }
+
+    private Features aggregateFeatures(LocalDateTime now) {
+        Features features = new Features();
+        Query customers = new Query(Criteria.where("mergedInto").exists(false));
+        customers.fields().include("registrationDate");
+        try (CloseableIterator<Customer> accounts = mongoTemplate.stream(customers, Customer.class)) {
+            while (accounts.hasNext()) {
+                Customer customer = accounts.next();
+                long daysSinceRegistration = customer.getRegistrationDate() != null
+                        ? Duration.between(customer.getRegistrationDate(), now).toDays() : LOOKBACK_DAYS;
+                features.add(customer.getId(), Math.max(0, daysSinceRegistration), 0, 0);
+            }
+        }
+
+        Date lookbackStart = toDate(now.minusDays(LOOKBACK_DAYS));
+        Date recentStart = toDate(now.minusDays(RECENT_DAYS));
+        Document isRecent = new Document("$gte", List.of("$orderDate", recentStart));
+        Document isPrior = new Document("$and", List.of(
+                new Document("$gte", List.of("$orderDate", lookbackStart)),
+                new Document("$lt", List.of("$orderDate", recentStart))));
+        Document amount = new Document("$toDecimal", "$totalAmount");
+
+        // Per customer: last order date over all time, and order count and spend in the
+        // recent and prior windows of the last year
+        AggregationOperation group = context -> new Document("$group", new Document("_id", "$customerId")
+                .append("lastOrderDate", new Document("$max", "$orderDate"))
+                .append("recentOrders", new Document("$sum", new Document("$cond", List.of(isRecent, 1, 0))))
+                .append("priorOrders", new Document("$sum", new Document("$cond", List.of(isPrior, 1, 0))))
+                .append("recentSpend", new Document("$sum", new Document("$cond", List.of(isRecent, amount, 0))))
+                .append("priorSpend", new Document("$sum", new Document("$cond", List.of(isPrior, amount, 0)))));
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("status").is(Order.OrderStatus.COMPLETED.name())
+                        .and("customerId").ne(null)),
+                group)
+                .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+
+        try (CloseableIterator<Document> rows = mongoTemplate.aggregateStream(aggregation, Order.class, Document.class)) {
+            while (rows.hasNext()) {
+                Document row = rows.next();
+                Integer ordinal = features.ordinals.get(String.valueOf(row.get("_id")));
+                Date lastOrderDate = row.getDate("lastOrderDate");
+                if (ordinal == null || lastOrderDate == null) {
+                    continue;
+                }
+                long daysSinceLast = Duration.between(lastOrderDate.toInstant(),
+                        now.atZone(ZoneId.systemDefault()).toInstant()).toDays();
+
+                // Rates per day so the 90 day recent window compares with the longer prior window
+                double recentOrders = number(row, "recentOrders");
+                double priorOrders = number(row, "priorOrders");
+                double recentRate = recentOrders / RECENT_DAYS;
+                double priorRate = priorOrders / (LOOKBACK_DAYS - RECENT_DAYS);
+                double recentBasket = recentOrders > 0 ? number(row, "recentSpend") / recentOrders : 0;
+                double priorBasket = priorOrders > 0 ? number(row, "priorSpend") / priorOrders : 0;
+
+                features.set(ordinal, daysSinceLast, trend(recentRate, priorRate), trend(recentBasket, priorBasket));
+            }
+        }
+        return features;
+    }
+
+    private void writeScores(Features features, double[] scores, String modelVersion, LocalDateTime now) {
+        BulkOperations bulkOps = null;
+        for (int i = 0; i < features.size; i++) {
+            if (bulkOps == null) {
+                bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChurnScore.class);
+            }
+            bulkOps.upsert(new Query(Criteria.where("_id").is(features.customerIds[i])), new Update()
+                    .set("score", scores[i])
+                    .set("riskLevel", riskLevel(scores[i]))
+                    .set("daysSinceLastPurchase", features.daysSinceLast[i])
+                    .set("frequencyTrend", features.frequencyTrend[i])
+                    .set("basketValueTrend", features.basketValueTrend[i])
+                    .set("modelVersion", modelVersion)
+                    .set("scoredAt", now));
+            if ((i + 1) % WRITE_BATCH_SIZE == 0) {
+                bulkOps.execute();
+                bulkOps = null;
+            }
+        }
+        if (bulkOps != null) {
+            bulkOps.execute();
+        }
+    }
+
+    private LogisticModel loadModel() throws IOException {
+        Properties properties = new Properties();
+        Path path = Paths.get(modelPath);
+        try (InputStream in = Files.exists(path)
+                ? Files.newInputStream(path)
+                : new ClassPathResource(modelPath).getInputStream()) {
+            properties.load(in);
+        }
+        return new LogisticModel(
+                properties.getProperty("version", "unversioned"),
+                Double.parseDouble(properties.getProperty("intercept", "0")),
+                Double.parseDouble(properties.getProperty("weight.daysSinceLastPurchase", "0")),
+                Double.parseDouble(properties.getProperty("weight.frequencyTrend", "0")),
+                Double.parseDouble(properties.getProperty("weight.basketValueTrend", "0")));
+    }
+
+    // Relative change bounded to [-1, 1]; 0 when both sides are empty
+    private static double trend(double recent, double prior) {
+        double total = recent + prior;
+        return total > 0 ? (recent - prior) / total : 0;
+    }
+
+    private static double number(Document row, String field) {
+        Object value = row.get(field);
+        if (value instanceof Decimal128) {
+            return ((Decimal128) value).bigDecimalValue().doubleValue();
+        }
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private static Date toDate(LocalDateTime dateTime) {
+        return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static final class LogisticModel {
+        private final String version;
+        private final double intercept;
+        private final double daysSinceLastWeight;
+        private final double frequencyTrendWeight;
+        private final double basketValueTrendWeight;
+
+        private LogisticModel(String version, double intercept, double daysSinceLastWeight,
+                              double frequencyTrendWeight, double basketValueTrendWeight) {
+            this.version = version;
+            this.intercept = intercept;
+            this.daysSinceLastWeight = daysSinceLastWeight;
+            this.frequencyTrendWeight = frequencyTrendWeight;
+            this.basketValueTrendWeight = basketValueTrendWeight;
+        }
+
+        double score(long daysSinceLast, double frequencyTrend, double basketValueTrend) {
+            double z = intercept
+                    + daysSinceLastWeight * daysSinceLast
+                    + frequencyTrendWeight * frequencyTrend
+                    + basketValueTrendWeight * basketValueTrend;
+            return 1.0 / (1.0 + Math.exp(-z));
+        }
+    }
+
+    private static final class Features {
+        private final Map<String, Integer> ordinals = new HashMap<>();
+        private String[] customerIds = new String[1024];
+        private long[] daysSinceLast = new long[1024];
+        private double[] frequencyTrend = new double[1024];
+        private double[] basketValueTrend = new double[1024];
+        private int size;
+
+        void add(String customerId, long days, double frequency, double basketValue) {
+            if (size == customerIds.length) {
+                int capacity = size * 2;
+                customerIds = Arrays.copyOf(customerIds, capacity);
+                daysSinceLast = Arrays.copyOf(daysSinceLast, capacity);
+                frequencyTrend = Arrays.copyOf(frequencyTrend, capacity);
+                basketValueTrend = Arrays.copyOf(basketValueTrend, capacity);
+            }
+            customerIds[size] = customerId;
+            ordinals.put(customerId, size);
+            set(size, days, frequency, basketValue);
+            size++;
+        }
+
+        void set(int ordinal, long days, double frequency, double basketValue) {
+            daysSinceLast[ordinal] = days;
+            frequencyTrend[ordinal] = frequency;
+            basketValueTrend[ordinal] = basketValue;
+        }
+    }
+}
\ No newline at end of file
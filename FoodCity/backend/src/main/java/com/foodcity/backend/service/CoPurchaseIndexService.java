@@ -0,0 +1,437 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Order;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Item-to-item "customers also bought" index. Each completed order's items increment a
+ * sparse, symmetric co-occurrence matrix whose rows are primitive open-addressed maps
+ * keyed by product ordinal, and a completed order that is cancelled or refunded
+ * decrements it again. Rows touched since the last refresh get their top-K neighbours
+ * recomputed and published as an immutable snapshot, so a basket lookup is a handful of
+ * array reads with no locking.
+ * <p>
+ * The matrix is built from the orders collection at startup and rebuilt every night into
+ * fresh counts that are swapped in when complete. Live changes made while a rebuild
+ * streams are applied to both sets of counts, so an order completed or reversed during
+ * the stream can be counted by the stream as well; that drift is limited to the orders
+ * changed during one rebuild and disappears with the next one.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class CoPurchaseIndexService {
+
+    private static final int TOP_K = 20;
+    private static final long REFRESH_INTERVAL_MILLIS = 30 * 1000;
+    // Very large orders say little about which items belong together
+    private static final int MAX_BASKET_ITEMS = 100;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "co-purchase-index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final List<String> productIds = new ArrayList<>();
+    private Counts counts = new Counts(1024);
+    // Counts being rebuilt from the orders collection, null when no rebuild runs
+    private Counts rebuilding;
+    private final BitSet dirty = new BitSet();
+
+    private volatile Neighbours neighbours = Neighbours.EMPTY;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        rebuilder.execute(this::rebuild);
+    }
+
+    @Scheduled(cron = "0 30 2 * * *")
+    public void nightlyRebuild() {
+        rebuilder.execute(this::rebuild);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuilder.shutdownNow();
+    }
+
+    /**
+     * Adds one completed order to the matrix. Repeated products in an order count once.
+     */
+    public void recordOrder(Order order) {
+        recordBasket(basketOf(order), 1);
+    }
+
+    /**
+     * Takes a completed order that was cancelled or refunded back out of the matrix.
+     */
+    public void removeOrder(Order order) {
+        recordBasket(basketOf(order), -1);
+    }
+
+    @Scheduled(fixedDelay = REFRESH_INTERVAL_MILLIS, initialDelay = REFRESH_INTERVAL_MILLIS)
+    public void refresh() {
+        Neighbours previous = neighbours;
+        int[][] topIds;
+        float[][] topScores;
+        String[] products;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            // Only dirty rows are recomputed; the others are shared with the previous snapshot
+            products = productIds.toArray(new String[0]);
+            topIds = Arrays.copyOf(previous.ids, products.length);
+            topScores = Arrays.copyOf(previous.scores, products.length);
+            for (int row = dirty.nextSetBit(0); row >= 0; row = dirty.nextSetBit(row + 1)) {
+                computeTopK(row, topIds, topScores);
+            }
+            dirty.clear();
+        }
+        neighbours = new Neighbours(products, topIds, topScores);
+    }
+
+    /**
+     * Products most often bought together with the given basket, best first, excluding
+     * the basket itself.
+     */
+    public List<Map<String, Object>> recommendForBasket(Collection<String> basket, int limit) {
+        Neighbours snapshot = neighbours;
+        Map<Integer, Float> scores = new HashMap<>();
+        BitSet inBasket = new BitSet();
+        for (String productId : basket) {
+            Integer ordinal = ordinals.get(productId);
+            if (ordinal != null && ordinal < snapshot.ids.length) {
+                inBasket.set(ordinal);
+            }
+        }
+        for (int ordinal = inBasket.nextSetBit(0); ordinal >= 0; ordinal = inBasket.nextSetBit(ordinal + 1)) {
+            int[] neighbourIds = snapshot.ids[ordinal];
+            if (neighbourIds == null) {
+                continue;
+            }
+            float[] neighbourScores = snapshot.scores[ordinal];
+            for (int i = 0; i < neighbourIds.length; i++) {
+                if (!inBasket.get(neighbourIds[i])) {
+                    scores.merge(neighbourIds[i], neighbourScores[i], Float::sum);
+                }
+            }
+        }
+
+        List<Map<String, Object>> recommendations = new ArrayList<>();
+        scores.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Float>comparingByValue().reversed())
+                .limit(limit)
+                .forEach(entry -> {
+                    Map<String, Object> recommendation = new HashMap<>();
+                    recommendation.put("productId", snapshot.productIds[entry.getKey()]);
+                    recommendation.put("score", entry.getValue());
+                    recommendations.add(recommendation);
+                });
+        return recommendations;
+    }
+
+    /**
+     * Strongest product pairs across the whole index.
+     */
+    public List<Map<String, Object>> topPairs(int limit) {
+        Neighbours snapshot = neighbours;
+        // Min-heap of {row, position in row} ordered by score
+        PriorityQueue<int[]> best = new PriorityQueue<>(
+                (a, b) -> Float.compare(snapshot.scores[a[0]][a[1]], snapshot.scores[b[0]][b[1]]));
+        for (int row = 0; row < snapshot.ids.length; row++) {
+            int[] neighbourIds = snapshot.ids[row];
+            if (neighbourIds == null) {
+                continue;
+            }
+            for (int i = 0; i < neighbourIds.length; i++) {
+                // Each pair appears in both rows; keep one orientation
+                if (neighbourIds[i] > row) {
+                    best.add(new int[]{row, i});
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+        List<Map<String, Object>> pairs = new ArrayList<>();
+        while (!best.isEmpty()) {
+            int[] pair = best.poll();
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("productId", snapshot.productIds[pair[0]]);
+            entry.put("boughtWithProductId", snapshot.productIds[snapshot.ids[pair[0]][pair[1]]]);
+            entry.put("score", snapshot.scores[pair[0]][pair[1]]);
+            pairs.add(0, entry);
+        }
+        return pairs;
+    }
+
+    // Counts all completed orders into fresh counts and swaps them in once the stream ends
+    private void rebuild() {
+        try {
+            long started = System.nanoTime();
+            synchronized (this) {
+                rebuilding = new Counts(productIds.size());
+                for (int ordinal = 0; ordinal < productIds.size(); ordinal++) {
+                    rebuilding.ensure(ordinal);
+                }
+            }
+            Query query = new Query(Criteria.where("status").is(Order.OrderStatus.COMPLETED.name())
+                    .and("items.1").exists(true));
+            query.fields().include("items.productId");
+            long orders = 0;
+            try (CloseableIterator<Order> completed = mongoTemplate.stream(query, Order.class)) {
+                while (completed.hasNext()) {
+                    String[] basket = basketOf(completed.next());
+                    synchronized (this) {
+                        if (basket.length >= 2) {
+                            rebuilding.add(ordinalsFor(basket), 1);
+                        }
+                    }
+                    orders++;
+                }
+            }
+            synchronized (this) {
+                counts = rebuilding;
+                rebuilding = null;
+                dirty.set(0, productIds.size());
+            }
+            refresh();
+            log.info("Co-purchase index built from {} orders ({} products) in {} ms",
+                    orders, neighbours.ids.length, (System.nanoTime() - started) / 1_000_000);
+        } catch (Exception e) {
+            synchronized (this) {
+                rebuilding = null;
+            }
+            log.error("Failed to build co-purchase index: {}", e.getMessage());
+        }
+    }
+
+    private static String[] basketOf(Order order) {
+        if (order.getItems() == null || order.getItems().size() < 2) {
+            return new String[0];
+        }
+        return order.getItems().stream()
+                .map(Order.OrderItem::getProductId)
+                .filter(Objects::nonNull)
+                .distinct()
+                .limit(MAX_BASKET_ITEMS)
+                .toArray(String[]::new);
+    }
+
+    private synchronized void recordBasket(String[] basket, int delta) {
+        if (basket.length < 2) {
+            return;
+        }
+        int[] basketOrdinals = ordinalsFor(basket);
+        counts.add(basketOrdinals, delta);
+        if (rebuilding != null) {
+            rebuilding.add(basketOrdinals, delta);
+        }
+        for (int ordinal : basketOrdinals) {
+            dirty.set(ordinal);
+        }
+    }
+
+    private int[] ordinalsFor(String[] basket) {
+        int[] basketOrdinals = new int[basket.length];
+        for (int i = 0; i < basket.length; i++) {
+            basketOrdinals[i] = ordinalFor(basket[i]);
+        }
+        return basketOrdinals;
+    }
+
+    private int ordinalFor(String productId) {
+        Integer existing = ordinals.get(productId);
+        if (existing != null) {
+            return existing;
+        }
+        int ordinal = productIds.size();
+        productIds.add(productId);
+        counts.ensure(ordinal);
+        if (rebuilding != null) {
+            rebuilding.ensure(ordinal);
+        }
+        ordinals.put(productId, ordinal);
+        return ordinal;
+    }
+
+    // Cosine-normalised counts so staples bought with everything do not dominate
+    private void computeTopK(int row, int[][] topIds, float[][] topScores) {
+        IntIntMap pairs = counts.rows[row];
+        int[] basketCounts = counts.basketCounts;
+        int[] ids = new int[Math.min(TOP_K, pairs.size)];
+        float[] scores = new float[ids.length];
+        int size = 0;
+        for (int slot = 0; slot < pairs.keys.length; slot++) {
+            int neighbour = pairs.keys[slot];
+            // Pairs taken back out by refunds keep their slot with a zero count
+            if (neighbour == IntIntMap.EMPTY || pairs.values[slot] <= 0
+                    || basketCounts[row] == 0 || basketCounts[neighbour] == 0) {
+                continue;
+            }
+            float score = (float) (pairs.values[slot]
+                    / Math.sqrt((double) basketCounts[row] * basketCounts[neighbour]));
+            if (size == ids.length && score <= scores[size - 1]) {
+                continue;
+            }
+            // Insertion into the descending top-K arrays, dropping the last entry when full
+            int position = size < ids.length ? size++ : size - 1;
+            while (position > 0 && scores[position - 1] < score) {
+                ids[position] = ids[position - 1];
+                scores[position] = scores[position - 1];
+                position--;
+            }
+            ids[position] = neighbour;
+            scores[position] = score;
+        }
+        topIds[row] = size < ids.length ? Arrays.copyOf(ids, size) : ids;
+        topScores[row] = size < ids.length ? Arrays.copyOf(scores, size) : scores;
+    }
+
+    /**
+     * Pair counts per product row and the number of baskets each product was in.
+     */
+    private static final class Counts {
+        private IntIntMap[] rows;
+        private int[] basketCounts;
+
+        Counts(int capacity) {
+            rows = new IntIntMap[Math.max(capacity, 1024)];
+            basketCounts = new int[rows.length];
+        }
+
+        void ensure(int ordinal) {
+            if (ordinal >= rows.length) {
+                int capacity = Math.max(rows.length * 2, ordinal + 1);
+                rows = Arrays.copyOf(rows, capacity);
+                basketCounts = Arrays.copyOf(basketCounts, capacity);
+            }
+            if (rows[ordinal] == null) {
+                rows[ordinal] = new IntIntMap();
+            }
+        }
+
+        void add(int[] basket, int delta) {
+            for (int ordinal : basket) {
+                ensure(ordinal);
+                basketCounts[ordinal] = Math.max(0, basketCounts[ordinal] + delta);
+            }
+            for (int i = 0; i < basket.length; i++) {
+                IntIntMap row = rows[basket[i]];
+                for (int j = 0; j < basket.length; j++) {
+                    if (i != j) {
+                        row.add(basket[j], delta);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Open-addressed int -> int map with linear probing; ordinals are never negative,
+     * so -1 marks an empty slot.
+     */
+    private static final class IntIntMap {
+        static final int EMPTY = -1;
+
+        private int[] keys;
+        private int[] values;
+        private int size;
+
+        IntIntMap() {
+            keys = new int[8];
+            values = new int[8];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        // Counts never go below zero; a decrement of a missing key is ignored
+        void add(int key, int delta) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    values[slot] = Math.max(0, values[slot] + delta);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (delta <= 0) {
+                return;
+            }
+            keys[slot] = key;
+            values[slot] = delta;
+            size++;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private static final class Neighbours {
+        static final Neighbours EMPTY = new Neighbours(new String[0], new int[0][], new float[0][]);
+
+        private final String[] productIds;
+        private final int[][] ids;
+        private final float[][] scores;
+
+        private Neighbours(String[] productIds, int[][] ids, float[][] scores) {
+            this.productIds = productIds;
+            this.ids = ids;
+            this.scores = scores;
+        }
+    }
+}
\ No newline at end of file
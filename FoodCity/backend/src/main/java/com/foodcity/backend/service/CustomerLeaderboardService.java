@@ -0,0 +1,607 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.Order;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Leaderboards of customers by spend, kept current as orders complete. There is an
+ * all-time board, one per tier and one for the current month. Each board is an
+ * order-statistic treap, so inserts, moves, rank lookups and fetching the n-th entry
+ * all take O(log n). The all-time boards are capped at the top BOARD_CAPACITY customers.
+ * <p>
+ * Before the boards are first loaded, each customer's totalPurchases, totalOrders and
+ * lastPurchaseDate are recomputed once from their completed orders, which also turns
+ * totals left as strings into decimals. That backfill checkpoints its progress and
+ * resumes after a restart.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class CustomerLeaderboardService {
+
+    public static final int BOARD_CAPACITY = 10_000;
+
+    private static final String CHECKPOINT_COLLECTION = "job_checkpoints";
+    private static final String BACKFILL_ID = "customer-purchase-totals-backfill";
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+    private static final int BACKFILL_ATTEMPTS = 3;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final RankedBoard allTime = new RankedBoard(BOARD_CAPACITY);
+    private final Map<Customer.CustomerTier, RankedBoard> byTier = tierBoards();
+    private volatile MonthBoard currentMonth = new MonthBoard(YearMonth.now(), new RankedBoard(Integer.MAX_VALUE));
+    private volatile boolean loaded;
+
+    public enum Period {
+        ALL_TIME,
+        MONTH
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        Thread loader = new Thread(() -> {
+            backfillTotals();
+            load();
+        }, "customer-leaderboard-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Adds a completed order to the customer's purchase totals and moves the customer
+     * on the boards. The totals are updated atomically in the database; the board
+     * takes the resulting total, so concurrent orders cannot leave it behind.
+     */
+    public void recordCompletedOrder(Order order) {
+        if (order.getCustomerId() == null || order.getTotalAmount() == null) {
+            return;
+        }
+        LocalDateTime orderDate = order.getOrderDate() != null ? order.getOrderDate() : LocalDateTime.now();
+
+        // $toDecimal also covers totals saved as strings before the field was mapped to decimal
+        Document totalPurchases = new Document("$add", List.of(
+                new Document("$toDecimal", new Document("$ifNull", List.of("$totalPurchases", 0))),
+                new Decimal128(order.getTotalAmount())));
+        // $max over a list skips a missing value
+        Document lastPurchaseDate = new Document("$max", List.of("$lastPurchaseDate", toDate(orderDate)));
+        AggregationOperation set = context -> new Document("$set", new Document("totalPurchases", totalPurchases)
+                .append("totalOrders", new Document("$add", List.of(new Document("$ifNull", List.of("$totalOrders", 0)), 1)))
+                .append("lastPurchaseDate", lastPurchaseDate)
+                .append("lastUpdated", new Date()));
+
+        Query query = new Query(Criteria.where("_id").is(order.getCustomerId()));
+        query.fields().include("totalPurchases").include("tier");
+        Customer customer = mongoTemplate.findAndModify(query, AggregationUpdate.from(List.of(set)),
+                FindAndModifyOptions.options().returnNew(true), Customer.class);
+        if (customer == null) {
+            return;
+        }
+
+        placeOnAllTimeBoards(customer);
+        monthBoard(YearMonth.from(orderDate)).add(customer.getId(), toCents(order.getTotalAmount()));
+    }
+
+    /**
+     * Takes a completed order that was cancelled or refunded back out of the customer's
+     * purchase totals and moves the customer down the boards. Totals never go below zero.
+     * The last purchase date is left as it is.
+     */
+    public void recordReversedOrder(Order order) {
+        if (order.getCustomerId() == null || order.getTotalAmount() == null) {
+            return;
+        }
+        LocalDateTime orderDate = order.getOrderDate() != null ? order.getOrderDate() : LocalDateTime.now();
+
+        Document totalPurchases = new Document("$max", List.of(new Decimal128(BigDecimal.ZERO),
+                new Document("$subtract", List.of(
+                        new Document("$toDecimal", new Document("$ifNull", List.of("$totalPurchases", 0))),
+                        new Decimal128(order.getTotalAmount())))));
+        Document totalOrders = new Document("$max", List.of(0,
+                new Document("$subtract", List.of(new Document("$ifNull", List.of("$totalOrders", 0)), 1))));
+        AggregationOperation set = context -> new Document("$set", new Document("totalPurchases", totalPurchases)
+                .append("totalOrders", totalOrders)
+                .append("lastUpdated", new Date()));
+
+        Query query = new Query(Criteria.where("_id").is(order.getCustomerId()));
+        query.fields().include("totalPurchases").include("tier");
+        Customer customer = mongoTemplate.findAndModify(query, AggregationUpdate.from(List.of(set)),
+                FindAndModifyOptions.options().returnNew(true), Customer.class);
+        if (customer == null) {
+            return;
+        }
+
+        placeOnAllTimeBoards(customer);
+        RankedBoard month = monthBoard(YearMonth.from(orderDate));
+        if (month.scoreOf(customer.getId()) != null) {
+            month.add(customer.getId(), -toCents(order.getTotalAmount()));
+        }
+    }
+
+    /**
+     * Moves a merged-away customer's standing onto the surviving account. The target
+     * must carry its combined totalPurchases and tier.
+     */
+    public void customersMerged(String sourceId, Customer target) {
+        allTime.remove(sourceId);
+        byTier.values().forEach(board -> board.remove(sourceId));
+        placeOnAllTimeBoards(target);
+
+        RankedBoard month = monthBoard(YearMonth.now());
+        Long sourceSpend = month.scoreOf(sourceId);
+        if (sourceSpend != null) {
+            month.remove(sourceId);
+            month.add(target.getId(), sourceSpend);
+        }
+    }
+
+    /**
+     * The highest-spending customers of a board, best first.
+     */
+    public List<Map<String, Object>> top(Period period, Customer.CustomerTier tier, int limit) {
+        RankedBoard board = board(period, tier);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        synchronized (board) {
+            int count = Math.min(limit, board.size());
+            for (int rank = 0; rank < count; rank++) {
+                RankedBoard.Node node = board.select(rank);
+                entries.add(entry(node.customerId, rank, node.score));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The customer's 1-based rank on a board, or null when the customer is not on it.
+     */
+    public Map<String, Object> rank(String customerId, Period period, Customer.CustomerTier tier) {
+        RankedBoard board = board(period, tier);
+        synchronized (board) {
+            Long score = board.scoreOf(customerId);
+            if (score == null) {
+                return null;
+            }
+            return entry(customerId, board.rank(customerId, score), score);
+        }
+    }
+
+    /**
+     * False until the backfill and the initial load have finished; until then the boards
+     * only hold customers with orders completed since startup.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public boolean isFull(Period period, Customer.CustomerTier tier) {
+        RankedBoard board = board(period, tier);
+        return board.size() >= board.capacity;
+    }
+
+    private void placeOnAllTimeBoards(Customer customer) {
+        long total = toCents(customer.getTotalPurchases());
+        allTime.put(customer.getId(), total);
+        byTier.forEach((tier, board) -> {
+            if (tier == customer.getTier()) {
+                board.put(customer.getId(), total);
+            } else {
+                board.remove(customer.getId());
+            }
+        });
+    }
+
+    private RankedBoard board(Period period, Customer.CustomerTier tier) {
+        if (period == Period.MONTH) {
+            return monthBoard(YearMonth.now());
+        }
+        return tier != null ? byTier.get(tier) : allTime;
+    }
+
+    private RankedBoard monthBoard(YearMonth month) {
+        MonthBoard board = currentMonth;
+        if (!board.month.equals(month)) {
+            synchronized (this) {
+                board = currentMonth;
+                if (month.isAfter(board.month)) {
+                    board = new MonthBoard(month, new RankedBoard(Integer.MAX_VALUE));
+                    currentMonth = board;
+                } else if (!board.month.equals(month)) {
+                    // Late completion of an order from an earlier month; not on any live board
+                    return new RankedBoard(0);
+                }
+            }
+        }
+        return board.board;
+    }
+
+    // Recomputes the stored totals from completed orders once, resuming from the checkpoint
+    private void backfillTotals() {
+        Document checkpoint = mongoTemplate.findById(BACKFILL_ID, Document.class, CHECKPOINT_COLLECTION);
+        if (checkpoint != null && checkpoint.getBoolean("completed", false)) {
+            return;
+        }
+        String collection = mongoTemplate.getCollectionName(Customer.class);
+        Object lastId = checkpoint != null ? checkpoint.get("lastId") : null;
+        long customers = 0;
+        try {
+            long started = System.nanoTime();
+            List<Document> batch;
+            do {
+                Query query = new Query(lastId != null ? Criteria.where("_id").gt(lastId) : new Criteria())
+                        .with(Sort.by(Sort.Direction.ASC, "_id"))
+                        .limit(BACKFILL_BATCH_SIZE);
+                query.fields().include("_id");
+                batch = mongoTemplate.find(query, Document.class, collection);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                List<Object> ids = new ArrayList<>(batch.size());
+                batch.forEach(customer -> ids.add(customer.get("_id")));
+                backfillBatch(ids, collection);
+                customers += batch.size();
+                lastId = ids.get(ids.size() - 1);
+                saveBackfillCheckpoint(lastId, false);
+            } while (batch.size() == BACKFILL_BATCH_SIZE);
+            saveBackfillCheckpoint(lastId, true);
+            log.info("Customer purchase totals backfilled for {} customers in {} ms",
+                    customers, (System.nanoTime() - started) / 1_000_000);
+        } catch (Exception e) {
+            log.error("Customer purchase totals backfill stopped after {} customers: {}", customers, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the totals of a batch of customers from their completed orders. Each write is
+     * guarded by the lastUpdated read before the orders were summed, so a customer whose
+     * totals moved in between is not overwritten; the batch is then summed again.
+     */
+    private void backfillBatch(List<Object> ids, String collection) {
+        List<String> customerIds = new ArrayList<>(ids.size());
+        ids.forEach(id -> customerIds.add(id.toString()));
+        for (int attempt = 1; attempt <= BACKFILL_ATTEMPTS; attempt++) {
+            Query versions = new Query(Criteria.where("_id").in(ids));
+            versions.fields().include("lastUpdated");
+            List<Document> customers = mongoTemplate.find(versions, Document.class, collection);
+
+            Map<String, Document> totals = new HashMap<>();
+            Aggregation purchases = Aggregation.newAggregation(
+                    Aggregation.match(Criteria.where("status").is(Order.OrderStatus.COMPLETED.name())
+                            .and("customerId").in(customerIds)),
+                    context -> new Document("$group", new Document("_id", "$customerId")
+                            .append("spent", new Document("$sum", new Document("$toDecimal", "$totalAmount")))
+                            .append("orders", new Document("$sum", 1))
+                            .append("lastPurchase", new Document("$max", "$orderDate"))));
+            for (Document row : mongoTemplate.aggregate(purchases, Order.class, Document.class)) {
+                totals.put(String.valueOf(row.get("_id")), row);
+            }
+
+            BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+            for (Document customer : customers) {
+                Document row = totals.get(customer.get("_id").toString());
+                Object spent = row != null ? row.get("spent") : null;
+                Update update = new Update()
+                        .set("totalPurchases", spent instanceof Decimal128 ? spent : new Decimal128(BigDecimal.ZERO))
+                        .set("totalOrders", row != null ? ((Number) row.get("orders")).intValue() : 0);
+                if (row != null && row.get("lastPurchase") != null) {
+                    update.set("lastPurchaseDate", row.get("lastPurchase"));
+                } else {
+                    update.unset("lastPurchaseDate");
+                }
+                bulkOps.updateOne(new Query(Criteria.where("_id").is(customer.get("_id"))
+                        .and("lastUpdated").is(customer.get("lastUpdated"))), update);
+            }
+            if (customers.isEmpty() || bulkOps.execute().getMatchedCount() == customers.size()) {
+                return;
+            }
+        }
+        log.warn("Customer purchase totals of some customers after _id {} kept changing and were not backfilled",
+                ids.get(0));
+    }
+
+    private void saveBackfillCheckpoint(Object lastId, boolean completed) {
+        mongoTemplate.save(new Document("_id", BACKFILL_ID)
+                .append("lastId", lastId)
+                .append("completed", completed)
+                .append("updatedAt", new Date()), CHECKPOINT_COLLECTION);
+    }
+
+    private void load() {
+        try {
+            long started = System.nanoTime();
+            Query query = new Query(Criteria.where("totalPurchases").exists(true));
+            query.fields().include("totalPurchases").include("tier");
+            try (CloseableIterator<Customer> customers = mongoTemplate.stream(query, Customer.class)) {
+                while (customers.hasNext()) {
+                    Customer customer = customers.next();
+                    long total = toCents(customer.getTotalPurchases());
+                    allTime.offer(customer.getId(), total);
+                    if (customer.getTier() != null) {
+                        byTier.get(customer.getTier()).offer(customer.getId(), total);
+                    }
+                }
+            }
+
+            YearMonth month = YearMonth.now();
+            LocalDateTime monthStart = month.atDay(1).atStartOfDay();
+            Aggregation monthSpend = Aggregation.newAggregation(
+                    Aggregation.match(Criteria.where("status").is(Order.OrderStatus.COMPLETED.name())
+                            .and("customerId").ne(null)
+                            .and("orderDate").gte(toDate(monthStart))),
+                    context -> new Document("$group", new Document("_id", "$customerId")
+                            .append("spend", new Document("$sum", new Document("$toDecimal", "$totalAmount")))));
+            RankedBoard monthBoard = monthBoard(month);
+            try (CloseableIterator<Document> rows = mongoTemplate.aggregateStream(monthSpend, Order.class, Document.class)) {
+                while (rows.hasNext()) {
+                    Document row = rows.next();
+                    Object spend = row.get("spend");
+                    if (spend instanceof Decimal128) {
+                        monthBoard.offer(row.getString("_id"), toCents(((Decimal128) spend).bigDecimalValue()));
+                    }
+                }
+            }
+            loaded = true;
+            log.info("Customer leaderboards loaded in {} ms - all time: {}, this month: {}",
+                    (System.nanoTime() - started) / 1_000_000, allTime.size(), monthBoard.size());
+        } catch (Exception e) {
+            log.error("Failed to load customer leaderboards: {}", e.getMessage());
+        }
+    }
+
+    private static Map<Customer.CustomerTier, RankedBoard> tierBoards() {
+        Map<Customer.CustomerTier, RankedBoard> boards = new EnumMap<>(Customer.CustomerTier.class);
+        for (Customer.CustomerTier tier : Customer.CustomerTier.values()) {
+            boards.put(tier, new RankedBoard(BOARD_CAPACITY));
+        }
+        return boards;
+    }
+
+    private static Map<String, Object> entry(String customerId, int rank, long cents) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("customerId", customerId);
+        entry.put("rank", rank + 1);
+        entry.put("totalPurchases", BigDecimal.valueOf(cents, 2));
+        return entry;
+    }
+
+    private static long toCents(BigDecimal amount) {
+        return amount != null ? amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue() : 0;
+    }
+
+    private static Date toDate(LocalDateTime dateTime) {
+        return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static final class MonthBoard {
+        private final YearMonth month;
+        private final RankedBoard board;
+
+        private MonthBoard(YearMonth month, RankedBoard board) {
+            this.month = month;
+            this.board = board;
+        }
+    }
+
+    /**
+     * Order-statistic treap ordered by score descending, then customer id. Nodes carry
+     * subtree sizes so rank and select walk a single root-to-leaf path. When full, the
+     * lowest entry is dropped.
+     */
+    static final class RankedBoard {
+
+        private final int capacity;
+        private final Map<String, Long> scores = new HashMap<>();
+        private Node root;
+
+        RankedBoard(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized int size() {
+            return scores.size();
+        }
+
+        synchronized Long scoreOf(String customerId) {
+            return scores.get(customerId);
+        }
+
+        // Sets the score, moving the customer if already present
+        synchronized void put(String customerId, long score) {
+            Long previous = scores.remove(customerId);
+            if (previous != null) {
+                root = delete(root, previous, customerId);
+            }
+            offer(customerId, score);
+        }
+
+        // Adds to the current score, or starts at delta
+        synchronized void add(String customerId, long delta) {
+            Long previous = scores.get(customerId);
+            put(customerId, previous != null ? previous + delta : delta);
+        }
+
+        synchronized void remove(String customerId) {
+            Long previous = scores.remove(customerId);
+            if (previous != null) {
+                root = delete(root, previous, customerId);
+            }
+        }
+
+        // Inserts a customer not yet on the board, unless it is full and the score would not make it
+        synchronized void offer(String customerId, long score) {
+            if (capacity == 0 || scores.containsKey(customerId)) {
+                return;
+            }
+            if (scores.size() >= capacity) {
+                Node lowest = select(scores.size() - 1);
+                if (compare(score, customerId, lowest.score, lowest.customerId) > 0) {
+                    return;
+                }
+                scores.remove(lowest.customerId);
+                root = delete(root, lowest.score, lowest.customerId);
+            }
+            scores.put(customerId, score);
+            root = insert(root, new Node(customerId, score));
+        }
+
+        // Number of entries ahead of the given one
+        synchronized int rank(String customerId, long score) {
+            int rank = 0;
+            Node node = root;
+            while (node != null) {
+                int cmp = compare(score, customerId, node.score, node.customerId);
+                if (cmp == 0) {
+                    return rank + size(node.left);
+                }
+                if (cmp < 0) {
+                    node = node.left;
+                } else {
+                    rank += size(node.left) + 1;
+                    node = node.right;
+                }
+            }
+            return rank;
+        }
+
+        synchronized Node select(int rank) {
+            Node node = root;
+            while (node != null) {
+                int leftSize = size(node.left);
+                if (rank < leftSize) {
+                    node = node.left;
+                } else if (rank == leftSize) {
+                    return node;
+                } else {
+                    rank -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+            throw new IndexOutOfBoundsException("No entry at rank " + rank);
+        }
+
+        private static Node insert(Node node, Node inserted) {
+            if (node == null) {
+                return inserted;
+            }
+            if (compare(inserted.score, inserted.customerId, node.score, node.customerId) < 0) {
+                node.left = insert(node.left, inserted);
+                if (node.left.priority > node.priority) {
+                    node = rotateRight(node);
+                }
+            } else {
+                node.right = insert(node.right, inserted);
+                if (node.right.priority > node.priority) {
+                    node = rotateLeft(node);
+                }
+            }
+            update(node);
+            return node;
+        }
+
+        private static Node delete(Node node, long score, String customerId) {
+            if (node == null) {
+                return null;
+            }
+            int cmp = compare(score, customerId, node.score, node.customerId);
+            if (cmp < 0) {
+                node.left = delete(node.left, score, customerId);
+            } else if (cmp > 0) {
+                node.right = delete(node.right, score, customerId);
+            } else {
+                if (node.left == null) {
+                    return node.right;
+                }
+                if (node.right == null) {
+                    return node.left;
+                }
+                if (node.left.priority > node.right.priority) {
+                    node = rotateRight(node);
+                    node.right = delete(node.right, score, customerId);
+                } else {
+                    node = rotateLeft(node);
+                    node.left = delete(node.left, score, customerId);
+                }
+            }
+            update(node);
+            return node;
+        }
+
+        private static Node rotateRight(Node node) {
+            Node left = node.left;
+            node.left = left.right;
+            left.right = node;
+            update(node);
+            update(left);
+            return left;
+        }
+
+        private static Node rotateLeft(Node node) {
+            Node right = node.right;
+            node.right = right.left;
+            right.left = node;
+            update(node);
+            update(right);
+            return right;
+        }
+
+        private static void update(Node node) {
+            node.size = 1 + size(node.left) + size(node.right);
+        }
+
+        private static int size(Node node) {
+            return node != null ? node.size : 0;
+        }
+
+        // Higher scores first; ties broken by customer id for a stable order
+        private static int compare(long score, String customerId, long otherScore, String otherCustomerId) {
+            if (score != otherScore) {
+                return score > otherScore ? -1 : 1;
+            }
+            return customerId.compareTo(otherCustomerId);
+        }
+
+        static final class Node {
+            final String customerId;
+            final long score;
+            final int priority = ThreadLocalRandom.current().nextInt();
+            int size = 1;
+            Node left;
+            Node right;
+
+            Node(String customerId, long score) {
+                this.customerId = customerId;
+                this.score = score;
+            }
+        }
+    }
+}
\ No newline at end of file
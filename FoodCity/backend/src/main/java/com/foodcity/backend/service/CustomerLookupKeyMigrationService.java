@@ -0,0 +1,153 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.config.MongoConfig;
+import com.foodcity.backend.model.Customer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills the derived phone/email/name/birthday lookup keys on customers saved before they existed.
+ * Runs in the background after startup, walking the collection by _id in small batches.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class CustomerLookupKeyMigrationService {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long PAUSE_BETWEEN_BATCHES_MILLIS = 100;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong migratedDocuments = new AtomicLong();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startMigration() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        Thread worker = new Thread(this::migrate, "customer-lookup-key-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public long getMigratedDocuments() {
+        return migratedDocuments.get();
+    }
+
+    private void migrate() {
+        String collection = mongoTemplate.getCollectionName(Customer.class);
+        Object lastId = null;
+        try {
+            List<Document> batch;
+            do {
+                batch = mongoTemplate.find(nextBatchQuery(lastId), Document.class, collection);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                migrateBatch(batch, collection);
+                lastId = batch.get(batch.size() - 1).get("_id");
+                Thread.sleep(PAUSE_BETWEEN_BATCHES_MILLIS);
+            } while (batch.size() == BATCH_SIZE);
+
+            if (migratedDocuments.get() > 0) {
+                log.info("Customer lookup key migration finished - migrated: {}", migratedDocuments.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Customer lookup key migration stopped after {} documents: {}",
+                    migratedDocuments.get(), e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Query nextBatchQuery(Object lastId) {
+        Criteria criteria = lastId != null
+                ? new Criteria().andOperator(Criteria.where("_id").gt(lastId), missingKeys())
+                : missingKeys();
+
+        Query query = new Query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(BATCH_SIZE);
+        query.fields().include("firstName").include("lastName").include("email").include("phone")
+                .include("dateOfBirth");
+        return query;
+    }
+
+    private Criteria missingKeys() {
+        return new Criteria().orOperator(
+                Criteria.where("nameKeys").exists(false),
+                Criteria.where("dateOfBirth").ne(null).and("birthdayKey").exists(false));
+    }
+
+    private void migrateBatch(List<Document> batch, String collection) {
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+        for (Document document : batch) {
+            Customer keys = new Customer();
+            keys.setFirstName(document.getString("firstName"));
+            keys.setLastName(document.getString("lastName"));
+            keys.setEmail(document.getString("email"));
+            keys.setPhone(document.getString("phone"));
+            keys.setDateOfBirth(toLocalDate(document.get("dateOfBirth")));
+            CustomerLookupService.applyLookupKeys(keys);
+
+            // Only touch documents still matching the batch query, so keys written by the
+            // application meanwhile are kept
+            Query filter = new Query(new Criteria().andOperator(
+                    Criteria.where("_id").is(document.get("_id")), missingKeys()));
+            Update update = new Update().set("nameKeys", keys.getNameKeys());
+            if (keys.getNormalizedPhone() != null) {
+                update.set("normalizedPhone", keys.getNormalizedPhone());
+            }
+            if (keys.getEmailLower() != null) {
+                update.set("emailLower", keys.getEmailLower());
+            }
+            if (keys.getBirthdayKey() != null) {
+                update.set("birthdayKey", keys.getBirthdayKey());
+            }
+            bulkOps.updateOne(filter, update);
+        }
+        migratedDocuments.addAndGet(bulkOps.execute().getModifiedCount());
+    }
+
+    private LocalDate toLocalDate(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        }
+        if (value instanceof String) {
+            try {
+                LocalDateTime dateTime = MongoConfig.LegacyDateStringConverter.INSTANCE.parse((String) value);
+                return dateTime != null ? dateTime.toLocalDate() : null;
+            } catch (DateTimeParseException e) {
+                log.warn("Skipping unparseable customer date of birth '{}'", value);
+            }
+        }
+        return null;
+    }
+}
\ No newline at end of file
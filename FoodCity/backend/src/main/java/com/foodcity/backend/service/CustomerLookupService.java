@@ -0,0 +1,199 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.MonthDay;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Index-backed customer lookups for the till. Phone numbers are matched on their digits,
+ * emails case-insensitively and names by prefix, each against a derived field kept on
+ * the customer document. Recently used phone/email keys are remembered in a near-cache
+ * so a repeat lookup is a single read by _id.
+ */
+@Service
+public class CustomerLookupService {
+
+    private static final int LEAP_YEAR = 2000;
+    private static final int DAYS_IN_LEAP_YEAR = 366;
+    private static final int MIN_PHONE_DIGITS = 7;
+    private static final int MAX_SEARCH_RESULTS = 50;
+    private static final Pattern PHONE_SHAPE = Pattern.compile("[+\\d\\s().-]+");
+    private static final Pattern REGEX_SPECIAL = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
+    private final MongoTemplate mongoTemplate;
+    private final Cache<String, String> customerIdsByKey;
+
+    public CustomerLookupService(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+        this.customerIdsByKey = Caffeine.newBuilder()
+                .maximumSize(50_000)
+                .expireAfterAccess(Duration.ofMinutes(30))
+                .build();
+    }
+
+    public static String normalizePhone(String phone) {
+        if (phone == null) {
+            return null;
+        }
+        String digits = phone.replaceAll("\\D", "");
+        return digits.isEmpty() ? null : digits;
+    }
+
+    public static String normalizeEmail(String email) {
+        return StringUtils.hasText(email) ? email.trim().toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Fills the derived lookup fields; call before every save that may change phone,
+     * email or name.
+     */
+    public static void applyLookupKeys(Customer customer) {
+        customer.setNormalizedPhone(normalizePhone(customer.getPhone()));
+        customer.setEmailLower(normalizeEmail(customer.getEmail()));
+        List<String> nameKeys = new ArrayList<>();
+        addNameKey(nameKeys, customer.getFirstName());
+        addNameKey(nameKeys, customer.getLastName());
+        if (StringUtils.hasText(customer.getFirstName()) && StringUtils.hasText(customer.getLastName())) {
+            addNameKey(nameKeys, customer.getFirstName().trim() + " " + customer.getLastName().trim());
+        }
+        customer.setNameKeys(nameKeys);
+        customer.setBirthdayKey(birthdayKey(customer.getDateOfBirth()));
+    }
+
+    /**
+     * Day of year in a leap year, so a given month and day always has the same key and
+     * Feb 29 sits between Feb 28 and Mar 1.
+     */
+    public static Integer birthdayKey(LocalDate date) {
+        return date != null ? MonthDay.from(date).atYear(LEAP_YEAR).getDayOfYear() : null;
+    }
+
+    /**
+     * Matches birthdays from the given day through daysAhead days later as one or two
+     * ranges on the indexed birthdayKey (two when the window wraps past Dec 31).
+     */
+    public static Criteria birthdaysWithin(LocalDate from, int daysAhead) {
+        if (daysAhead >= DAYS_IN_LEAP_YEAR - 1) {
+            return Criteria.where("birthdayKey").ne(null);
+        }
+        LocalDate to = from.plusDays(Math.max(0, daysAhead));
+        int start = birthdayKey(from);
+        int end = birthdayKey(to);
+        // Outside leap years Feb 29 birthdays are celebrated on Feb 28
+        if (!to.isLeapYear() && to.getMonth() == Month.FEBRUARY && to.getDayOfMonth() == 28) {
+            end++;
+        }
+        if (start <= end) {
+            return Criteria.where("birthdayKey").gte(start).lte(end);
+        }
+        return new Criteria().orOperator(
+                Criteria.where("birthdayKey").gte(start).lte(DAYS_IN_LEAP_YEAR),
+                Criteria.where("birthdayKey").gte(1).lte(end));
+    }
+
+    public Optional<Customer> findByPhone(String phone) {
+        String normalized = normalizePhone(phone);
+        return normalized != null ? findByKey("phone:" + normalized, "normalizedPhone", normalized) : Optional.empty();
+    }
+
+    public Optional<Customer> findByEmail(String email) {
+        String normalized = normalizeEmail(email);
+        return normalized != null ? findByKey("email:" + normalized, "emailLower", normalized) : Optional.empty();
+    }
+
+    /**
+     * Routes a free-text query by its shape: an email is an exact email match, a full
+     * phone number an exact phone match, a few digits a phone prefix, anything else a
+     * name prefix. Every route is served by an index.
+     */
+    public List<Customer> search(String query) {
+        if (!StringUtils.hasText(query)) {
+            return Collections.emptyList();
+        }
+        String trimmed = query.trim();
+        if (trimmed.contains("@")) {
+            return findByEmail(trimmed).map(List::of).orElse(Collections.emptyList());
+        }
+        if (PHONE_SHAPE.matcher(trimmed).matches()) {
+            String digits = normalizePhone(trimmed);
+            if (digits == null) {
+                return Collections.emptyList();
+            }
+            if (digits.length() >= MIN_PHONE_DIGITS) {
+                Optional<Customer> exact = findByPhone(digits);
+                if (exact.isPresent()) {
+                    return List.of(exact.get());
+                }
+            }
+            return findByPrefix("normalizedPhone", digits);
+        }
+        return findByPrefix("nameKeys", trimmed.toLowerCase(Locale.ROOT).replaceAll("\\s+", " "));
+    }
+
+    /**
+     * Drops the near-cache entries for a customer's current keys; call when the phone or
+     * email changes or the customer is removed.
+     */
+    public void evict(Customer customer) {
+        String phone = normalizePhone(customer.getPhone());
+        if (phone != null) {
+            customerIdsByKey.invalidate("phone:" + phone);
+        }
+        String email = normalizeEmail(customer.getEmail());
+        if (email != null) {
+            customerIdsByKey.invalidate("email:" + email);
+        }
+    }
+
+    private Optional<Customer> findByKey(String cacheKey, String field, String value) {
+        String customerId = customerIdsByKey.getIfPresent(cacheKey);
+        if (customerId != null) {
+            Customer customer = mongoTemplate.findById(customerId, Customer.class);
+            // Guard against keys that changed through a path that did not evict
+            if (customer != null && value.equals(field.equals("normalizedPhone")
+                    ? customer.getNormalizedPhone() : customer.getEmailLower())) {
+                return Optional.of(customer);
+            }
+            customerIdsByKey.invalidate(cacheKey);
+        }
+
+        Query query = new Query(Criteria.where(field).is(value).and("active").is(true))
+                .with(Sort.by(Sort.Direction.DESC, "lastPurchaseDate"))
+                .limit(1);
+        Customer customer = mongoTemplate.findOne(query, Customer.class);
+        if (customer != null) {
+            customerIdsByKey.put(cacheKey, customer.getId());
+        }
+        return Optional.ofNullable(customer);
+    }
+
+    // Anchored, case-normalised prefix regexes can use the index on the derived field
+    private List<Customer> findByPrefix(String field, String prefix) {
+        Query query = new Query(Criteria.where(field).regex("^" + REGEX_SPECIAL.matcher(prefix).replaceAll("\\\\$0")))
+                .limit(MAX_SEARCH_RESULTS);
+        return mongoTemplate.find(query, Customer.class);
+    }
+
+    private static void addNameKey(List<String> nameKeys, String name) {
+        if (StringUtils.hasText(name)) {
+            nameKeys.add(name.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " "));
+        }
+    }
+}
\ No newline at end of file
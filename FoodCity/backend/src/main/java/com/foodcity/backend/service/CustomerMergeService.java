@@ -0,0 +1,354 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.exception.ResourceNotFoundException;
+import com.foodcity.backend.model.ChurnScore;
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.LoyaltyLedgerEntry;
+import com.foodcity.backend.model.Order;
+import com.foodcity.backend.model.Payment;
+import com.foodcity.backend.payload.CustomerMergeRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges duplicate customer accounts into a surviving one. The source account is
+ * claimed with a single pipeline update that marks it merged and moves its points and
+ * totals into a pending mergeCredit on the same document, so nothing is lost if the
+ * merge stops there. The target is then credited with a pipeline update that also
+ * records the source in its creditedMerges and skips targets that already list it, and
+ * the source's credit is marked done. Merging the same pair again repeats whatever step
+ * did not finish. Orders, payments and loyalty entries of the claimed sources are then
+ * re-pointed with one bulk write per collection for each chunk of pairs.
+ */
+@Service
+@Slf4j
+public class CustomerMergeService {
+
+    private static final int CHUNK_SIZE = 500;
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    private final MongoTemplate mongoTemplate;
+    private final CustomerTierRecalculationService tierRecalculationService;
+    private final CustomerLeaderboardService customerLeaderboardService;
+    private final CustomerLookupService customerLookupService;
+
+    private final Counter mergedPairs;
+    private final Counter skippedPairs;
+    private final Counter failedPairs;
+    private final Counter repointedDocuments;
+    private final Timer batchTimer;
+
+    public CustomerMergeService(MongoTemplate mongoTemplate,
+                                CustomerTierRecalculationService tierRecalculationService,
+                                CustomerLeaderboardService customerLeaderboardService,
+                                CustomerLookupService customerLookupService,
+                                MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.tierRecalculationService = tierRecalculationService;
+        this.customerLeaderboardService = customerLeaderboardService;
+        this.customerLookupService = customerLookupService;
+        this.mergedPairs = meterRegistry.counter("customer.merge.pairs", "result", "merged");
+        this.skippedPairs = meterRegistry.counter("customer.merge.pairs", "result", "skipped");
+        this.failedPairs = meterRegistry.counter("customer.merge.pairs", "result", "failed");
+        this.repointedDocuments = Counter.builder("customer.merge.repointed")
+                .description("Orders, payments and loyalty entries moved to a surviving account")
+                .register(meterRegistry);
+        this.batchTimer = meterRegistry.timer("customer.merge.batch");
+    }
+
+    public Customer merge(String sourceId, String targetId) {
+        if (sourceId == null || sourceId.equals(targetId)) {
+            throw new IllegalArgumentException("Source and target customers must be different");
+        }
+        if (!mongoTemplate.exists(new Query(Criteria.where("_id").is(targetId)), Customer.class)) {
+            throw new ResourceNotFoundException("Customer", "id", targetId);
+        }
+        if (!mongoTemplate.exists(new Query(survivor(targetId)), Customer.class)) {
+            throw new IllegalArgumentException("Customer " + targetId + " was merged away or is inactive");
+        }
+        // The claim comes first, so only the merge that wins it moves the source's aggregates
+        // and documents; repeating a merge that stopped half-way finishes the credit and repoint
+        boolean claimed = claim(sourceId, targetId);
+        if (!claimed && !isMergedInto(sourceId, targetId)) {
+            throw new IllegalArgumentException("Customer " + sourceId + " does not exist or was already merged");
+        }
+        Customer target = credit(sourceId, targetId);
+        repoint(Map.of(sourceId, targetId));
+        if (claimed) {
+            mergedPairs.increment();
+        }
+        return target != null ? target : mongoTemplate.findById(targetId, Customer.class);
+    }
+
+    /**
+     * Merges a list of duplicate pairs, such as the output of {@link #findDuplicatePairs}.
+     * Chains (a into b, b into c) are collapsed onto the final target; pairs that cannot
+     * be merged are skipped or reported as failures without stopping the batch.
+     */
+    public Map<String, Object> mergeAll(List<CustomerMergeRequest> requests) {
+        long started = System.nanoTime();
+        Map<String, String> targets = resolveTargets(requests);
+        int skipped = requests.size() - targets.size();
+        skippedPairs.increment(skipped);
+
+        int merged = 0;
+        int failed = 0;
+        List<Map<String, String>> failures = new ArrayList<>();
+        List<Map.Entry<String, String>> pairs = new ArrayList<>(targets.entrySet());
+        for (int from = 0; from < pairs.size(); from += CHUNK_SIZE) {
+            Map<String, String> chunk = new LinkedHashMap<>();
+            pairs.subList(from, Math.min(pairs.size(), from + CHUNK_SIZE))
+                    .forEach(pair -> chunk.put(pair.getKey(), pair.getValue()));
+            // Claim and credit each pair first; only the pairs claimed here (or merged
+            // earlier into the same target) have their documents repointed
+            Map<String, String> claimed = new LinkedHashMap<>();
+            for (Map.Entry<String, String> pair : chunk.entrySet()) {
+                try {
+                    if (claim(pair.getKey(), pair.getValue()) || isMergedInto(pair.getKey(), pair.getValue())) {
+                        credit(pair.getKey(), pair.getValue());
+                        claimed.put(pair.getKey(), pair.getValue());
+                    } else {
+                        skipped++;
+                        skippedPairs.increment();
+                    }
+                } catch (Exception e) {
+                    failed++;
+                    failedPairs.increment();
+                    reportFailure(failures, pair.getKey(), pair.getValue(), e);
+                }
+            }
+            if (claimed.isEmpty()) {
+                continue;
+            }
+            try {
+                repoint(claimed);
+                merged += claimed.size();
+                mergedPairs.increment(claimed.size());
+            } catch (Exception e) {
+                // Merged but not repointed; running the same pairs again moves the documents
+                failed += claimed.size();
+                failedPairs.increment(claimed.size());
+                claimed.forEach((source, target) -> reportFailure(failures, source, target, e));
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - started;
+        batchTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        Map<String, Object> report = new HashMap<>();
+        report.put("requested", requests.size());
+        report.put("merged", merged);
+        report.put("skipped", skipped);
+        report.put("failed", failed);
+        report.put("failures", failures);
+        report.put("elapsedMillis", elapsedMillis);
+        report.put("pairsPerSecond", elapsedMillis > 0 ? merged * 1000L / elapsedMillis : merged);
+        log.info("Customer merge batch - requested: {}, merged: {}, skipped: {}, failed: {} in {} ms",
+                requests.size(), merged, skipped, failed, elapsedMillis);
+        return report;
+    }
+
+    /**
+     * Active accounts sharing an email or phone number. Within each group the earliest
+     * registered account is the target.
+     */
+    public List<CustomerMergeRequest> findDuplicatePairs() {
+        List<CustomerMergeRequest> pairs = new ArrayList<>();
+        for (String key : List.of("emailLower", "normalizedPhone")) {
+            AggregationOperation group = context -> new Document("$group", new Document("_id", "$" + key)
+                    .append("ids", new Document("$push", "$_id"))
+                    .append("count", new Document("$sum", 1)));
+            Aggregation aggregation = Aggregation.newAggregation(
+                    Aggregation.match(Criteria.where(key).ne(null).and("active").is(true)),
+                    Aggregation.sort(Sort.Direction.ASC, "registrationDate"),
+                    group,
+                    Aggregation.match(Criteria.where("count").gt(1)))
+                    .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+            for (Document duplicate : mongoTemplate.aggregate(aggregation, Customer.class, Document.class)) {
+                List<?> ids = duplicate.getList("ids", Object.class);
+                String targetId = ids.get(0).toString();
+                for (int i = 1; i < ids.size(); i++) {
+                    pairs.add(new CustomerMergeRequest(ids.get(i).toString(), targetId));
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static void reportFailure(List<Map<String, String>> failures, String sourceId, String targetId,
+                                      Exception e) {
+        if (failures.size() < MAX_REPORTED_FAILURES) {
+            Map<String, String> failure = new HashMap<>();
+            failure.put("sourceId", sourceId);
+            failure.put("targetId", targetId);
+            failure.put("error", e.getMessage());
+            failures.add(failure);
+        }
+    }
+
+    private boolean isMergedInto(String sourceId, String targetId) {
+        return mongoTemplate.exists(new Query(Criteria.where("_id").is(sourceId).and("mergedInto").is(targetId)),
+                Customer.class);
+    }
+
+    // A customer that can take a merge: active and not merged into another account itself
+    private static Criteria survivor(String customerId) {
+        return Criteria.where("_id").is(customerId).and("active").is(true).and("mergedInto").exists(false);
+    }
+
+    private Map<String, String> resolveTargets(List<CustomerMergeRequest> requests) {
+        Map<String, String> targets = new LinkedHashMap<>();
+        for (CustomerMergeRequest request : requests) {
+            if (request.getSourceId() != null && request.getTargetId() != null
+                    && !request.getSourceId().equals(request.getTargetId())) {
+                targets.putIfAbsent(request.getSourceId(), request.getTargetId());
+            }
+        }
+        // Follow chains to the surviving account; drop cycles
+        Map<String, String> resolved = new LinkedHashMap<>();
+        for (String source : targets.keySet()) {
+            String target = targets.get(source);
+            int hops = 0;
+            while (targets.containsKey(target) && hops++ < targets.size()) {
+                target = targets.get(target);
+            }
+            if (!targets.containsKey(target) && !target.equals(source)) {
+                resolved.put(source, target);
+            }
+        }
+        return resolved;
+    }
+
+    // Idempotent, so a chunk whose repoint failed can simply be merged again
+    private void repoint(Map<String, String> targets) {
+        repointedDocuments.increment(repoint(targets, Order.class) + repoint(targets, Payment.class)
+                + repoint(targets, LoyaltyLedgerEntry.class));
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(targets.keySet())), ChurnScore.class);
+    }
+
+    private long repoint(Map<String, String> targets, Class<?> entityType) {
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, entityType);
+        targets.forEach((source, target) -> bulkOps.updateMulti(
+                new Query(Criteria.where("customerId").is(source)), Update.update("customerId", target)));
+        return bulkOps.execute().getModifiedCount();
+    }
+
+    /**
+     * Marks the source merged into the target and moves its aggregates into a pending
+     * mergeCredit, in one update. The pipeline reads the old values before zeroing them.
+     *
+     * @return false if the source does not exist or was already merged
+     */
+    private boolean claim(String sourceId, String targetId) {
+        Date now = new Date();
+        Document pending = new Document()
+                .append("loyaltyPoints", new Document("$ifNull", List.of("$loyaltyPoints", 0)))
+                .append("totalPurchases", new Document("$toDecimal",
+                        new Document("$ifNull", List.of("$totalPurchases", 0))))
+                .append("totalOrders", new Document("$ifNull", List.of("$totalOrders", 0)))
+                .append("lastPurchaseDate", "$lastPurchaseDate")
+                .append("credited", false);
+        Document claimed = new Document()
+                .append("mergedInto", new Document("$literal", targetId))
+                .append("mergedAt", now)
+                .append("active", false)
+                .append("mergeCredit", pending)
+                .append("loyaltyPoints", 0)
+                .append("totalPurchases", new Decimal128(BigDecimal.ZERO))
+                .append("totalOrders", 0)
+                .append("lastUpdated", now);
+        AggregationOperation take = context -> new Document("$set", claimed);
+        return mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(sourceId).and("mergedInto").exists(false)),
+                AggregationUpdate.from(List.of(take)), Customer.class).getModifiedCount() > 0;
+    }
+
+    /**
+     * Adds the source's pending mergeCredit to the target and marks it done. Safe to run
+     * again: a target that already lists the source in creditedMerges is not credited
+     * twice, and only the mark on the source is repeated.
+     *
+     * @return the updated target, or null if the source has no pending credit
+     */
+    private Customer credit(String sourceId, String targetId) {
+        Query pending = new Query(Criteria.where("_id").is(sourceId).and("mergedInto").is(targetId)
+                .and("mergeCredit.credited").is(false));
+        pending.fields().include("mergeCredit").include("email").include("phone");
+        Customer source = mongoTemplate.findOne(pending, Customer.class);
+        if (source == null) {
+            return null;
+        }
+        Customer.MergeCredit credit = source.getMergeCredit();
+        int points = credit.getLoyaltyPoints() != null ? credit.getLoyaltyPoints() : 0;
+        int orders = credit.getTotalOrders() != null ? credit.getTotalOrders() : 0;
+        BigDecimal totalPurchases = credit.getTotalPurchases() != null ? credit.getTotalPurchases() : BigDecimal.ZERO;
+        Document combined = new Document()
+                .append("loyaltyPoints", new Document("$add", List.of(
+                        new Document("$ifNull", List.of("$loyaltyPoints", 0)), points)))
+                .append("totalPurchases", new Document("$add", List.of(
+                        new Document("$toDecimal", new Document("$ifNull", List.of("$totalPurchases", 0))),
+                        new Decimal128(totalPurchases))))
+                .append("totalOrders", new Document("$add", List.of(
+                        new Document("$ifNull", List.of("$totalOrders", 0)), orders)))
+                .append("creditedMerges", new Document("$concatArrays", List.of(
+                        new Document("$ifNull", List.of("$creditedMerges", List.of())),
+                        List.of(new Document("$literal", sourceId)))))
+                .append("lastUpdated", new Date());
+        // Without a source date the target keeps its own, or stays without one
+        if (credit.getLastPurchaseDate() != null) {
+            combined.append("lastPurchaseDate", new Document("$max", List.of("$lastPurchaseDate",
+                    Date.from(credit.getLastPurchaseDate().atZone(ZoneId.systemDefault()).toInstant()))));
+        }
+        AggregationOperation add = context -> new Document("$set", combined);
+        Query targetQuery = new Query(survivor(targetId).and("creditedMerges").ne(sourceId));
+        targetQuery.fields().exclude("loyaltyTransactions");
+        Customer target = mongoTemplate.findAndModify(targetQuery, AggregationUpdate.from(List.of(add)),
+                FindAndModifyOptions.options().returnNew(true), Customer.class);
+        if (target == null) {
+            Query alreadyCredited = new Query(Criteria.where("_id").is(targetId).and("creditedMerges").is(sourceId));
+            alreadyCredited.fields().exclude("loyaltyTransactions");
+            target = mongoTemplate.findOne(alreadyCredited, Customer.class);
+        }
+        if (target == null) {
+            // Target vanished, was merged away or deactivated after the claim; hand the aggregates back
+            mongoTemplate.updateFirst(pending, new Update()
+                    .unset("mergedInto").unset("mergedAt").unset("mergeCredit").set("active", true)
+                    .inc("loyaltyPoints", points)
+                    .inc("totalPurchases", new Decimal128(totalPurchases))
+                    .inc("totalOrders", orders),
+                    Customer.class);
+            throw new ResourceNotFoundException("Customer", "id", targetId);
+        }
+
+        mongoTemplate.updateFirst(pending, Update.update("mergeCredit.credited", true), Customer.class);
+        tierRecalculationService.updateTier(target);
+        customerLeaderboardService.customersMerged(sourceId, target);
+        customerLookupService.evict(source);
+        return target;
+    }
+}
\ No newline at end of file
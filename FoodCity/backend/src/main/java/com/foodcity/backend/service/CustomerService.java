@@ -1,11 +1,14 @@
 package com.foodcity.backend.service;
 
 import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.payload.CustomerMergeRequest;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface CustomerService {
     
@@ -20,8 +23,12 @@ public interface CustomerService {
     void deleteCustomer(String id);
     
     List<Customer> searchCustomers(String query, Customer.CustomerTier tier);
+
+    Optional<Customer> findCustomerForCheckout(String phone, String email);
     
     Map<String, Object> getLoyaltyPointsInfo(String id);
+
+    Map<String, Object> getLoyaltyPointsInfo(String id, Pageable pageable);
     
     Customer addLoyaltyPoints(String id, Integer points, String reason);
     
@@ -50,6 +57,8 @@ public interface CustomerService {
     double calculateCustomerLifetimeValue(String id);
     
     List<Customer> getCustomersWithBirthdays(int daysAhead);
+
+    void forEachCustomerWithBirthday(int daysAhead, Consumer<Customer> action);
     
     Map<String, Object> getCustomerInsights(String id);
     
@@ -70,6 +79,10 @@ public interface CustomerService {
     Map<String, Object> getCustomerFeedbackSummary(String id);
     
     void mergeCustomerAccounts(String sourceId, String targetId);
+
+    Map<String, Object> mergeCustomerAccounts(List<CustomerMergeRequest> pairs);
+
+    List<CustomerMergeRequest> findDuplicateCustomers();
     
     List<Map<String, Object>> getCustomerSegments();
     
@@ -0,0 +1,284 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every customer's stored tier equal to the tier their balance qualifies for,
+ * promoting or demoting as the balance moves across a threshold. A reader thread pages
+ * through the collection in _id order, parallel workers evaluate each chunk and
+ * bulk-write only the customers whose tier changes. The last _id below which every
+ * chunk has been applied is checkpointed, so an interrupted run resumes where it
+ * stopped instead of starting over.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class CustomerTierRecalculationService {
+
+    private static final String CHECKPOINT_COLLECTION = "job_checkpoints";
+    private static final String CHECKPOINT_ID = "customer-tier-recalculation";
+    private static final int CHUNK_SIZE = 5000;
+    private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int MAX_CHUNKS_IN_FLIGHT = WORKERS * 2;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS, runnable -> {
+        Thread thread = new Thread(runnable, "customer-tier-worker-" + workerCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLong demoted = new AtomicLong();
+
+    /**
+     * Starts a run in the background. With resume set, an unfinished run continues
+     * from its checkpoint; otherwise the whole collection is walked again.
+     *
+     * @return false if a run is already in progress
+     */
+    public boolean start(boolean resume) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread reader = new Thread(() -> recalculate(resume), "customer-tier-recalculation");
+        reader.setDaemon(true);
+        reader.start();
+        return true;
+    }
+
+    // Picks up a run that was cut short by a restart
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        Document checkpoint = loadCheckpoint();
+        if (checkpoint != null && !checkpoint.getBoolean("completed", true)) {
+            log.info("Resuming customer tier recalculation after _id {}", checkpoint.get("lastId"));
+            start(true);
+        }
+    }
+
+    @Scheduled(cron = "0 0 3 * * *")
+    public void nightlyRecalculation() {
+        start(false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Sets the stored tier to the one the balance qualifies for, up or down. The update
+     * only matches while the stored balance still falls in that tier's range, so a racing
+     * movement that crossed a threshold again is never overwritten with a stale tier.
+     */
+    public void updateTier(Customer customer) {
+        int points = customer.getLoyaltyPoints() != null ? customer.getLoyaltyPoints() : 0;
+        Customer.CustomerTier target = Customer.CustomerTier.forPoints(points);
+        if (target == customer.getTier()) {
+            return;
+        }
+        Query query = new Query(withinTier(Criteria.where("_id").is(customer.getId()), target)
+                .and("tier").ne(target));
+        if (mongoTemplate.updateFirst(query, Update.update("tier", target), Customer.class).getModifiedCount() > 0) {
+            customer.setTier(target);
+        }
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("running", running.get());
+        status.put("scanned", scanned.get());
+        status.put("promoted", promoted.get());
+        status.put("demoted", demoted.get());
+        Document checkpoint = loadCheckpoint();
+        if (checkpoint != null) {
+            status.put("checkpoint", checkpoint.get("lastId"));
+            status.put("completed", checkpoint.get("completed"));
+            status.put("checkpointedAt", checkpoint.get("updatedAt"));
+        }
+        return status;
+    }
+
+    private void recalculate(boolean resume) {
+        String collection = mongoTemplate.getCollectionName(Customer.class);
+        Object lastId = null;
+        if (resume) {
+            Document checkpoint = loadCheckpoint();
+            if (checkpoint != null && !checkpoint.getBoolean("completed", true)) {
+                lastId = checkpoint.get("lastId");
+                scanned.set(checkpoint.get("scanned", Number.class).longValue());
+                promoted.set(checkpoint.get("promoted", Number.class).longValue());
+                Number demotedSoFar = checkpoint.get("demoted", Number.class);
+                demoted.set(demotedSoFar != null ? demotedSoFar.longValue() : 0);
+            }
+        }
+        if (lastId == null) {
+            scanned.set(0);
+            promoted.set(0);
+            demoted.set(0);
+        }
+
+        long started = System.currentTimeMillis();
+        ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+        try {
+            saveCheckpoint(lastId, false);
+            List<Document> batch;
+            do {
+                batch = mongoTemplate.find(nextChunkQuery(lastId), Document.class, collection);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                lastId = batch.get(batch.size() - 1).get("_id");
+                List<Document> customers = batch;
+                inFlight.add(new Chunk(lastId, workers.submit(() -> applyChunk(customers, collection))));
+
+                // Bound the memory held by queued chunks and advance the checkpoint
+                // over the prefix of chunks that are fully written
+                while (!inFlight.isEmpty() && (inFlight.size() >= MAX_CHUNKS_IN_FLIGHT || inFlight.peek().result.isDone())) {
+                    completeChunk(inFlight.poll());
+                }
+            } while (batch.size() == CHUNK_SIZE);
+
+            while (!inFlight.isEmpty()) {
+                completeChunk(inFlight.poll());
+            }
+            saveCheckpoint(lastId, true);
+            log.info("Customer tier recalculation finished in {} ms - scanned: {}, promoted: {}, demoted: {}",
+                    System.currentTimeMillis() - started, scanned.get(), promoted.get(), demoted.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            inFlight.forEach(chunk -> chunk.result.cancel(true));
+            log.error("Customer tier recalculation stopped after {} customers: {}", scanned.get(), e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Query nextChunkQuery(Object lastId) {
+        Query query = new Query(lastId != null ? Criteria.where("_id").gt(lastId) : new Criteria())
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(CHUNK_SIZE);
+        query.fields().include("loyaltyPoints").include("tier");
+        return query;
+    }
+
+    private void completeChunk(Chunk chunk) throws Exception {
+        chunk.result.get();
+        saveCheckpoint(chunk.lastId, false);
+    }
+
+    private Void applyChunk(List<Document> customers, String collection) {
+        BulkOperations promotions = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+        BulkOperations demotions = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+        int promotionCount = 0;
+        int demotionCount = 0;
+
+        for (Document customer : customers) {
+            Object points = customer.get("loyaltyPoints");
+            Customer.CustomerTier target = Customer.CustomerTier.forPoints(
+                    points instanceof Number ? ((Number) points).intValue() : 0);
+            Object tier = customer.get("tier");
+            if (target.name().equals(tier)) {
+                continue;
+            }
+            // Same guard as updateTier(): only apply while the balance is still in the target's range
+            Query filter = new Query(withinTier(Criteria.where("_id").is(customer.get("_id")), target)
+                    .and("tier").ne(target.name()));
+            Update update = Update.update("tier", target.name());
+            if (tier != null && Customer.CustomerTier.valueOf(tier.toString()).compareTo(target) > 0) {
+                demotions.updateOne(filter, update);
+                demotionCount++;
+            } else {
+                promotions.updateOne(filter, update);
+                promotionCount++;
+            }
+        }
+
+        if (promotionCount > 0) {
+            promoted.addAndGet(promotions.execute().getModifiedCount());
+        }
+        if (demotionCount > 0) {
+            demoted.addAndGet(demotions.execute().getModifiedCount());
+        }
+        scanned.addAndGet(customers.size());
+        return null;
+    }
+
+    /**
+     * Balance in [tier threshold, next tier threshold). A missing balance counts as zero,
+     * so the lowest tier is matched as "not at or above the next threshold". Both bounds
+     * go on one operator document; a second call on the same key would replace the first.
+     */
+    private static Criteria withinTier(Criteria criteria, Customer.CustomerTier tier) {
+        Customer.CustomerTier[] tiers = Customer.CustomerTier.values();
+        boolean top = tier.ordinal() + 1 == tiers.length;
+        int next = top ? 0 : tiers[tier.ordinal() + 1].getRequiredPoints();
+        if (tier.getRequiredPoints() <= 0) {
+            if (!top) {
+                criteria.and("loyaltyPoints").not().gte(next);
+            }
+            return criteria;
+        }
+        Criteria balance = criteria.and("loyaltyPoints").gte(tier.getRequiredPoints());
+        if (!top) {
+            balance.lt(next);
+        }
+        return criteria;
+    }
+
+    private Document loadCheckpoint() {
+        return mongoTemplate.findById(CHECKPOINT_ID, Document.class, CHECKPOINT_COLLECTION);
+    }
+
+    private void saveCheckpoint(Object lastId, boolean completed) {
+        Document checkpoint = new Document("_id", CHECKPOINT_ID)
+                .append("lastId", lastId)
+                .append("completed", completed)
+                .append("scanned", scanned.get())
+                .append("promoted", promoted.get())
+                .append("demoted", demoted.get())
+                .append("updatedAt", new Date());
+        mongoTemplate.save(checkpoint, CHECKPOINT_COLLECTION);
+    }
+
+    private static final class Chunk {
+        private final Object lastId;
+        private final Future<Void> result;
+
+        private Chunk(Object lastId, Future<Void> result) {
+            this.lastId = lastId;
+            this.result = result;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,186 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Product;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds an immutable, versioned table of effective unit prices (discount price if set,
+ * otherwise list price) in cents. The table is rebuilt on a background thread whenever
+ * prices change and swapped in with a single volatile write, so checkout reads are
+ * lock-free and one order always prices against a single version.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class EffectivePriceService {
+
+    public static final long NO_PRICE = -1L;
+
+    private static final long FULL_REBUILD_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "effective-price-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean rebuildPending = new AtomicBoolean(false);
+    private final AtomicLong versions = new AtomicLong();
+
+    private volatile PriceTable current = PriceTable.EMPTY;
+
+    /**
+     * The table to use for one order; callers should hold on to it for every line.
+     */
+    public PriceTable current() {
+        return current;
+    }
+
+    /**
+     * Schedules a rebuild. Requests arriving while one is queued are coalesced into it.
+     */
+    public void requestRebuild() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            rebuildExecutor.execute(() -> {
+                rebuildPending.set(false);
+                rebuild();
+            });
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        requestRebuild();
+    }
+
+    // Safety net for price changes written outside this service
+    @Scheduled(fixedDelay = FULL_REBUILD_INTERVAL_MILLIS, initialDelay = FULL_REBUILD_INTERVAL_MILLIS)
+    public void scheduledRebuild() {
+        requestRebuild();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    public static long effectivePriceInCents(Product product) {
+        BigDecimal price = product.getDiscountPrice() != null ? product.getDiscountPrice() : product.getPrice();
+        if (price == null) {
+            return NO_PRICE;
+        }
+        return price.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    private void rebuild() {
+        try {
+            Query query = new Query(Criteria.where("active").is(true));
+            query.fields().include("price").include("discountPrice");
+
+            List<String> ids = new ArrayList<>();
+            List<Long> cents = new ArrayList<>();
+            try (CloseableIterator<Product> products = mongoTemplate.stream(query, Product.class)) {
+                while (products.hasNext()) {
+                    Product product = products.next();
+                    long price = effectivePriceInCents(product);
+                    if (price != NO_PRICE) {
+                        ids.add(product.getId());
+                        cents.add(price);
+                    }
+                }
+            }
+
+            PriceTable table = PriceTable.build(versions.incrementAndGet(), ids, cents);
+            current = table;
+            log.debug("Effective price table version {} built with {} products", table.getVersion(), table.size());
+        } catch (Exception e) {
+            log.error("Failed to rebuild effective price table, keeping version {}: {}",
+                    current.getVersion(), e.getMessage());
+        }
+    }
+
+    /**
+     * Open-addressed productId -> cents table backed by parallel arrays. Lookups hash the
+     * id (String caches its hash) and probe linearly, so they allocate nothing.
+     */
+    public static final class PriceTable {
+
+        static final PriceTable EMPTY = new PriceTable(0, new String[1], new long[1], 0);
+
+        private final long version;
+        private final String[] keys;
+        private final long[] cents;
+        private final int size;
+
+        private PriceTable(long version, String[] keys, long[] cents, int size) {
+            this.version = version;
+            this.keys = keys;
+            this.cents = cents;
+            this.size = size;
+        }
+
+        static PriceTable build(long version, List<String> ids, List<Long> prices) {
+            int capacity = Integer.highestOneBit(Math.max(2, ids.size() * 2 - 1)) << 1;
+            String[] keys = new String[capacity];
+            long[] cents = new long[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < ids.size(); i++) {
+                int slot = spread(ids.get(i).hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = ids.get(i);
+                cents[slot] = prices.get(i);
+            }
+            return new PriceTable(version, keys, cents, ids.size());
+        }
+
+        public long priceInCents(String productId) {
+            if (productId == null) {
+                return NO_PRICE;
+            }
+            int mask = keys.length - 1;
+            int slot = spread(productId.hashCode()) & mask;
+            String key;
+            while ((key = keys[slot]) != null) {
+                if (key.equals(productId)) {
+                    return cents[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NO_PRICE;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,133 @@
+package com.foodcity.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foodcity.backend.exception.PaymentGatewayException;
+import com.foodcity.backend.model.Payment;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * JSON over HTTP gateway. Each instance owns its HttpClient, so every gateway keeps its
+ * own pool of keep-alive connections and its own I/O threads.
+ */
+public class HttpPaymentGateway implements PaymentGateway {
+
+    private final String name;
+    private final URI baseUri;
+    private final ObjectMapper objectMapper;
+    private final HttpClient httpClient;
+
+    public HttpPaymentGateway(String name, String baseUrl, Duration connectTimeout, int threads,
+                              ObjectMapper objectMapper) {
+        this.name = name;
+        this.baseUri = URI.create(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/");
+        this.objectMapper = objectMapper;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "payment-gateway-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .version(HttpClient.Version.HTTP_1_1)
+                .build();
+    }
+
+    @Override
+    public Response authorize(Payment payment, Duration deadline) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("reference", payment.getReferenceNumber());
+        body.put("amount", amountOf(payment));
+        body.put("method", payment.getPaymentMethod());
+        if (payment.getCardDetails() != null) {
+            body.put("lastFourDigits", payment.getCardDetails().getLastFourDigits());
+            body.put("terminalId", payment.getCardDetails().getTerminalId());
+        }
+        return send(post("payments", body, payment.getReferenceNumber(), deadline));
+    }
+
+    @Override
+    public Response refund(Payment payment, Duration deadline) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("transactionId", payment.getTransactionId());
+        body.put("amount", payment.getRefundDetails() != null && payment.getRefundDetails().getRefundAmount() != null
+                ? payment.getRefundDetails().getRefundAmount()
+                : amountOf(payment));
+        return send(post("refunds", body, "refund-" + payment.getTransactionId(), deadline));
+    }
+
+    @Override
+    public Response queryStatus(String transactionId, Duration deadline) {
+        HttpRequest request = HttpRequest.newBuilder(baseUri.resolve("payments/" + transactionId))
+                .timeout(deadline)
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+        return send(request);
+    }
+
+    static BigDecimal amountOf(Payment payment) {
+        return payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount();
+    }
+
+    private HttpRequest post(String path, Map<String, Object> body, String idempotencyKey, Duration deadline) {
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(baseUri.resolve(path))
+                    .timeout(deadline)
+                    .header("Content-Type", "application/json")
+                    .header("Accept", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)));
+            if (idempotencyKey != null) {
+                builder.header("Idempotency-Key", idempotencyKey);
+            }
+            return builder.build();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Payment cannot be serialized for gateway " + name, e);
+        }
+    }
+
+    private Response send(HttpRequest request) {
+        HttpResponse<byte[]> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (HttpTimeoutException e) {
+            throw new PaymentGatewayException(name, PaymentGatewayException.TIMEOUT,
+                    "Gateway " + name + " did not answer in time", e);
+        } catch (IOException e) {
+            throw new PaymentGatewayException(name, PaymentGatewayException.UNAVAILABLE,
+                    "Gateway " + name + " is unreachable: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PaymentGatewayException(name, PaymentGatewayException.UNAVAILABLE,
+                    "Interrupted while calling gateway " + name, e);
+        }
+
+        if (response.statusCode() >= 500) {
+            throw new PaymentGatewayException(name, PaymentGatewayException.UPSTREAM_ERROR,
+                    "Gateway " + name + " answered with HTTP " + response.statusCode());
+        }
+        Response body;
+        try {
+            body = objectMapper.readValue(response.body(), Response.class);
+        } catch (IOException e) {
+            throw new PaymentGatewayException(name, PaymentGatewayException.UPSTREAM_ERROR,
+                    "Gateway " + name + " sent an unreadable response (HTTP " + response.statusCode() + ")", e);
+        }
+        if (response.statusCode() >= 400) {
+            body.setApproved(false);
+        }
+        return body;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.LoyaltyLedgerEntry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the legacy embedded Customer.loyaltyTransactions into the loyalty_ledger
+ * collection. Each legacy transaction becomes an entry with a deterministic id, written
+ * with an upsert, so a pass that stops half-way can simply run again; the embedded
+ * array is removed once its entries are stored. Legacy entries carry no expiry date,
+ * since points were never expired before the ledger existed. The ledger reconciliation
+ * pass that follows books whatever the legacy history did not explain as an opening
+ * balance.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class LoyaltyLedgerMigrationService {
+
+    private static final int BATCH_SIZE = 500;
+    private static final String LEGACY_ID_PREFIX = "legacy-";
+
+    private final MongoTemplate mongoTemplate;
+    private final LoyaltyLedgerReconciliationService reconciliationService;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong migratedCustomers = new AtomicLong();
+    private final AtomicLong migratedEntries = new AtomicLong();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startMigration() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        Thread worker = new Thread(this::migrate, "loyalty-ledger-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public long getMigratedCustomers() {
+        return migratedCustomers.get();
+    }
+
+    public long getMigratedEntries() {
+        return migratedEntries.get();
+    }
+
+    private void migrate() {
+        String lastId = null;
+        try {
+            List<Customer> batch;
+            do {
+                Criteria criteria = Criteria.where("loyaltyTransactions").exists(true);
+                if (lastId != null) {
+                    criteria.and("_id").gt(lastId);
+                }
+                Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(BATCH_SIZE);
+                query.fields().include("loyaltyTransactions").include("mergedInto");
+                batch = mongoTemplate.find(query, Customer.class);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                migrateBatch(batch);
+                lastId = batch.get(batch.size() - 1).getId();
+            } while (batch.size() == BATCH_SIZE);
+
+            if (migratedCustomers.get() > 0) {
+                log.info("Loyalty ledger migration finished - customers: {}, entries: {}",
+                        migratedCustomers.get(), migratedEntries.get());
+            }
+            reconciliationService.reconcile();
+        } catch (Exception e) {
+            log.error("Loyalty ledger migration stopped after {} customers: {}",
+                    migratedCustomers.get(), e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void migrateBatch(List<Customer> batch) {
+        BulkOperations entries = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, LoyaltyLedgerEntry.class);
+        List<String> customerIds = new ArrayList<>(batch.size());
+        int count = 0;
+        for (Customer customer : batch) {
+            customerIds.add(customer.getId());
+            List<Customer.LoyaltyTransaction> transactions = customer.getLoyaltyTransactions();
+            if (transactions == null) {
+                continue;
+            }
+            // Points of an account merged before the migration now belong to the survivor
+            String ownerId = customer.getMergedInto() != null ? customer.getMergedInto() : customer.getId();
+            for (int i = 0; i < transactions.size(); i++) {
+                LoyaltyLedgerEntry entry = toEntry(ownerId, transactions.get(i));
+                entry.setId(LEGACY_ID_PREFIX + customer.getId() + "-" + i);
+                entries.replaceOne(new Query(Criteria.where("_id").is(entry.getId())), entry,
+                        FindAndReplaceOptions.options().upsert());
+                count++;
+            }
+        }
+        if (count > 0) {
+            entries.execute();
+        }
+        mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(customerIds)),
+                new Update().unset("loyaltyTransactions"), Customer.class);
+        migratedCustomers.addAndGet(batch.size());
+        migratedEntries.addAndGet(count);
+    }
+
+    private static LoyaltyLedgerEntry toEntry(String customerId, Customer.LoyaltyTransaction transaction) {
+        int points = transaction.getPoints() != null ? transaction.getPoints() : 0;
+        LoyaltyLedgerEntry entry = new LoyaltyLedgerEntry();
+        entry.setCustomerId(customerId);
+        entry.setOrderId(transaction.getOrderId());
+        entry.setPoints(points);
+        // The legacy code typed every movement EARNED, deductions included
+        entry.setType(points < 0 ? Customer.TransactionType.REDEEMED
+                : transaction.getType() != null ? transaction.getType() : Customer.TransactionType.EARNED);
+        entry.setDate(transaction.getDate());
+        entry.setDescription(transaction.getDescription());
+        return entry;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.LoyaltyLedgerEntry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Repair path for the loyalty ledger. A points movement changes Customer.loyaltyPoints
+ * with $inc first and inserts its ledger entry second, so a crash in between leaves a
+ * balance the ledger does not explain. The balance is authoritative: this pass sums each
+ * customer's ledger and inserts an ADJUSTED entry for any difference, which also books
+ * the opening balance of accounts migrated from the embedded history. Customers updated
+ * within the quiet period are skipped so a movement still in flight is not booked twice.
+ */
+@Service
+@Slf4j
+public class LoyaltyLedgerReconciliationService {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long QUIET_PERIOD_MINUTES = 10;
+
+    private final MongoTemplate mongoTemplate;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "loyalty-ledger-reconciliation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong checkedCustomers = new AtomicLong();
+    private final AtomicLong adjustedCustomers = new AtomicLong();
+
+    public LoyaltyLedgerReconciliationService(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Scheduled(cron = "0 0 4 * * *")
+    public void scheduledReconciliation() {
+        executor.execute(this::reconcile);
+    }
+
+    /**
+     * Runs one pass on the calling thread.
+     *
+     * @return number of customers that received an adjustment, or -1 if a pass is already running
+     */
+    public long reconcile() {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        checkedCustomers.set(0);
+        adjustedCustomers.set(0);
+        Object lastId = null;
+        try {
+            List<Document> batch;
+            do {
+                Criteria criteria = lastId != null ? Criteria.where("_id").gt(lastId) : new Criteria();
+                Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(BATCH_SIZE);
+                query.fields().include("_id");
+                batch = mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(Customer.class));
+                if (batch.isEmpty()) {
+                    break;
+                }
+                List<String> ids = new ArrayList<>(batch.size());
+                batch.forEach(customer -> ids.add(customer.get("_id").toString()));
+                reconcileBatch(ids);
+                lastId = batch.get(batch.size() - 1).get("_id");
+            } while (batch.size() == BATCH_SIZE);
+            log.info("Loyalty ledger reconciliation finished - customers: {}, adjusted: {}",
+                    checkedCustomers.get(), adjustedCustomers.get());
+        } catch (Exception e) {
+            log.error("Loyalty ledger reconciliation stopped after {} customers: {}",
+                    checkedCustomers.get(), e.getMessage());
+        } finally {
+            running.set(false);
+        }
+        return adjustedCustomers.get();
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("running", running.get());
+        status.put("checkedCustomers", checkedCustomers.get());
+        status.put("adjustedCustomers", adjustedCustomers.get());
+        return status;
+    }
+
+    private void reconcileBatch(List<String> customerIds) {
+        // Ledger first, balances second: a movement that lands in between has a fresh
+        // lastUpdated and is skipped, instead of being counted on one side only
+        Map<String, Long> ledgerSums = new HashMap<>();
+        Aggregation sums = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("customerId").in(customerIds)),
+                Aggregation.group("customerId").sum("points").as("points"));
+        for (Document sum : mongoTemplate.aggregate(sums, LoyaltyLedgerEntry.class, Document.class)) {
+            ledgerSums.put(String.valueOf(sum.get("_id")), ((Number) sum.get("points")).longValue());
+        }
+
+        Query balancesQuery = new Query(Criteria.where("_id").in(customerIds));
+        balancesQuery.fields().include("loyaltyPoints").include("lastUpdated");
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime quietSince = now.minusMinutes(QUIET_PERIOD_MINUTES);
+        List<LoyaltyLedgerEntry> adjustments = new ArrayList<>();
+        for (Customer customer : mongoTemplate.find(balancesQuery, Customer.class)) {
+            long balance = customer.getLoyaltyPoints() != null ? customer.getLoyaltyPoints() : 0;
+            long difference = balance - ledgerSums.getOrDefault(customer.getId(), 0L);
+            if (difference == 0
+                    || (customer.getLastUpdated() != null && customer.getLastUpdated().isAfter(quietSince))) {
+                continue;
+            }
+            LoyaltyLedgerEntry adjustment = new LoyaltyLedgerEntry();
+            adjustment.setCustomerId(customer.getId());
+            adjustment.setPoints(Math.toIntExact(difference));
+            adjustment.setType(Customer.TransactionType.ADJUSTED);
+            adjustment.setDate(now);
+            adjustment.setDescription("Ledger reconciliation");
+            adjustment.setBalanceAfter(Math.toIntExact(balance));
+            adjustments.add(adjustment);
+        }
+        if (!adjustments.isEmpty()) {
+            mongoTemplate.insert(adjustments, LoyaltyLedgerEntry.class);
+        }
+        checkedCustomers.addAndGet(customerIds.size());
+        adjustedCustomers.addAndGet(adjustments.size());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,278 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.LoyaltyLedgerEntry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Expires earned loyalty points whose expiry date has passed. Due ledger entries are
+ * streamed with a cursor in expiry date order and handled in fixed-size batches, so
+ * memory stays flat however many entries are due: each batch marks its entries,
+ * decrements each affected balance with a guarded update and inserts EXPIRED entries
+ * in bulk for the balances that were decremented.
+ * Only the unredeemed remainder of an entry expires. Deductions consume earned points
+ * first-in first-out, so the remainder of an entry is what is left of it once every
+ * deduction so far (redemptions and earlier expiries) has used up the entries before it.
+ */
+@Service
+@Slf4j
+public class LoyaltyPointsExpiryService {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final Comparator<LoyaltyLedgerEntry> FIFO_ORDER = Comparator
+            .comparing(LoyaltyLedgerEntry::getDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(LoyaltyLedgerEntry::getId);
+
+    private final MongoTemplate mongoTemplate;
+    private final CustomerTierRecalculationService tierRecalculationService;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "loyalty-points-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong processedEntries = new AtomicLong();
+    private final AtomicLong expiredPoints = new AtomicLong();
+    private final AtomicLong affectedCustomers = new AtomicLong();
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+    private volatile LocalDateTime reachedExpiryDate;
+
+    public LoyaltyPointsExpiryService(MongoTemplate mongoTemplate,
+                                      CustomerTierRecalculationService tierRecalculationService) {
+        this.mongoTemplate = mongoTemplate;
+        this.tierRecalculationService = tierRecalculationService;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // Runs on its own thread so a long pass does not hold up the other scheduled jobs
+    @Scheduled(cron = "0 30 2 * * *")
+    public void scheduledExpiry() {
+        executor.execute(this::expireDuePoints);
+    }
+
+    /**
+     * Runs one expiry pass on the calling thread.
+     *
+     * @return number of ledger entries expired, or -1 if a pass is already running
+     */
+    public long expireDuePoints() {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        startedAt = now;
+        finishedAt = null;
+        reachedExpiryDate = null;
+        processedEntries.set(0);
+        expiredPoints.set(0);
+        affectedCustomers.set(0);
+
+        Query query = new Query(Criteria.where("expiryDate").lte(now).and("expiredAt").exists(false))
+                .with(Sort.by(Sort.Direction.ASC, "expiryDate"))
+                .cursorBatchSize(BATCH_SIZE);
+        query.fields().include("customerId").include("points").include("date").include("expiryDate");
+
+        List<LoyaltyLedgerEntry> batch = new ArrayList<>(BATCH_SIZE);
+        try (CloseableIterator<LoyaltyLedgerEntry> due = mongoTemplate.stream(query, LoyaltyLedgerEntry.class)) {
+            while (due.hasNext()) {
+                batch.add(due.next());
+                if (batch.size() == BATCH_SIZE) {
+                    expireBatch(batch, now);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                expireBatch(batch, now);
+            }
+            log.info("Loyalty points expiry finished - entries: {}, points: {}, customers: {}, {} entries/s",
+                    processedEntries.get(), expiredPoints.get(), affectedCustomers.get(), throughput());
+            return processedEntries.get();
+        } catch (Exception e) {
+            log.error("Loyalty points expiry stopped after {} entries: {}", processedEntries.get(), e.getMessage());
+            return processedEntries.get();
+        } finally {
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("running", running.get());
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("reachedExpiryDate", reachedExpiryDate);
+        status.put("processedEntries", processedEntries.get());
+        status.put("expiredPoints", expiredPoints.get());
+        status.put("affectedCustomers", affectedCustomers.get());
+        status.put("entriesPerSecond", throughput());
+        return status;
+    }
+
+    private void expireBatch(List<LoyaltyLedgerEntry> batch, LocalDateTime now) {
+        Map<String, List<LoyaltyLedgerEntry>> dueByCustomer = new HashMap<>();
+        batch.forEach(entry -> dueByCustomer.computeIfAbsent(entry.getCustomerId(), id -> new ArrayList<>()).add(entry));
+        Map<String, Ledger> ledgers = loadLedgers(dueByCustomer.keySet());
+
+        List<String> entryIds = new ArrayList<>(batch.size());
+        Map<String, Integer> pointsByCustomer = new HashMap<>();
+        List<LoyaltyLedgerEntry> expiredEntries = new ArrayList<>(batch.size());
+        dueByCustomer.forEach((customerId, due) -> {
+            Ledger ledger = ledgers.getOrDefault(customerId, new Ledger());
+            due.sort(FIFO_ORDER);
+            for (LoyaltyLedgerEntry source : due) {
+                entryIds.add(source.getId());
+                int remainder = ledger.expire(source);
+                if (remainder == 0) {
+                    continue;
+                }
+                pointsByCustomer.merge(customerId, remainder, Integer::sum);
+
+                LoyaltyLedgerEntry expired = new LoyaltyLedgerEntry();
+                expired.setCustomerId(customerId);
+                expired.setPoints(-remainder);
+                expired.setType(Customer.TransactionType.EXPIRED);
+                expired.setDate(now);
+                expired.setDescription(remainder + " of " + source.getPoints() + " points earned on "
+                        + source.getDate().toLocalDate() + " expired");
+                expired.setSourceEntryId(source.getId());
+                expiredEntries.add(expired);
+            }
+        });
+
+        // Mark the sources first: if the pass dies mid-batch, a rerun can at worst miss
+        // a decrement, never apply one twice
+        mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(entryIds)),
+                Update.update("expiredAt", now), LoyaltyLedgerEntry.class);
+
+        // The remainder never exceeds what the ledger says is left; a balance that has
+        // drifted below it is left alone for the ledger reconciliation to resolve, without
+        // an EXPIRED entry for a decrement that did not happen
+        Map<String, Integer> applied = new HashMap<>();
+        pointsByCustomer.forEach((customerId, points) -> {
+            long matched = mongoTemplate.updateFirst(
+                    new Query(Criteria.where("_id").is(customerId).and("loyaltyPoints").gte(points)),
+                    new Update().inc("loyaltyPoints", -points).set("lastUpdated", now), Customer.class)
+                    .getMatchedCount();
+            if (matched > 0) {
+                applied.put(customerId, points);
+            } else {
+                log.warn("Balance of customer {} is below the {} points due to expire, left for reconciliation",
+                        customerId, points);
+            }
+        });
+
+        if (!applied.isEmpty()) {
+            List<LoyaltyLedgerEntry> appliedEntries = new ArrayList<>(expiredEntries.size());
+            for (LoyaltyLedgerEntry expired : expiredEntries) {
+                if (applied.containsKey(expired.getCustomerId())) {
+                    appliedEntries.add(expired);
+                }
+            }
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, LoyaltyLedgerEntry.class)
+                    .insert(appliedEntries)
+                    .execute();
+            updateTiers(applied.keySet());
+        }
+
+        processedEntries.addAndGet(batch.size());
+        expiredPoints.addAndGet(applied.values().stream().mapToLong(Integer::longValue).sum());
+        affectedCustomers.addAndGet(applied.size());
+        reachedExpiryDate = batch.get(batch.size() - 1).getExpiryDate();
+        log.debug("Loyalty points expiry progress - entries: {}, reached expiry date {}, {} entries/s",
+                processedEntries.get(), reachedExpiryDate, throughput());
+    }
+
+    /**
+     * Credits (every positive entry, in FIFO order) and the total deducted so far for each
+     * customer with an entry in the batch.
+     */
+    private Map<String, Ledger> loadLedgers(Collection<String> customerIds) {
+        Map<String, Ledger> ledgers = new HashMap<>();
+        Query query = new Query(Criteria.where("customerId").in(customerIds));
+        query.fields().include("customerId").include("points").include("date");
+        try (CloseableIterator<LoyaltyLedgerEntry> entries = mongoTemplate.stream(query, LoyaltyLedgerEntry.class)) {
+            while (entries.hasNext()) {
+                LoyaltyLedgerEntry entry = entries.next();
+                int points = entry.getPoints() != null ? entry.getPoints() : 0;
+                Ledger ledger = ledgers.computeIfAbsent(entry.getCustomerId(), id -> new Ledger());
+                if (points > 0) {
+                    ledger.credits.add(entry);
+                } else {
+                    ledger.deducted -= points;
+                }
+            }
+        }
+        ledgers.values().forEach(ledger -> ledger.credits.sort(FIFO_ORDER));
+        return ledgers;
+    }
+
+    // Expiry lowers balances, which can take a customer below their tier
+    private void updateTiers(Collection<String> customerIds) {
+        Query query = new Query(Criteria.where("_id").in(customerIds));
+        query.fields().include("loyaltyPoints").include("tier");
+        mongoTemplate.find(query, Customer.class).forEach(tierRecalculationService::updateTier);
+    }
+
+    private static final class Ledger {
+        private final List<LoyaltyLedgerEntry> credits = new ArrayList<>();
+        private long deducted;
+
+        /**
+         * Points of the entry not consumed by deductions, which are applied to the credits
+         * oldest first. The expired remainder counts as deducted from then on.
+         */
+        private int expire(LoyaltyLedgerEntry source) {
+            long creditedThroughSource = 0;
+            for (LoyaltyLedgerEntry credit : credits) {
+                creditedThroughSource += credit.getPoints();
+                if (credit.getId().equals(source.getId())) {
+                    long unconsumed = Math.max(0, creditedThroughSource - deducted);
+                    int remainder = (int) Math.min(credit.getPoints(), unconsumed);
+                    deducted += remainder;
+                    return remainder;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private long throughput() {
+        LocalDateTime start = startedAt;
+        if (start == null) {
+            return 0;
+        }
+        LocalDateTime end = finishedAt != null ? finishedAt : LocalDateTime.now();
+        long millis = Duration.between(start, end).toMillis();
+        return millis > 0 ? processedEntries.get() * 1000 / millis : processedEntries.get();
+    }
+}
\ No newline at end of file
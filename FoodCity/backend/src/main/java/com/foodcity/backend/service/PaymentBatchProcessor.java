@@ -0,0 +1,305 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Payment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs batch payments through the gateway in parallel. Each chunk is split into one lane
+ * per gateway, with as many workers as that gateway's concurrency limit; a shared permit
+ * per gateway keeps the limit when several batches run at once. The finished chunk is
+ * then persisted with a single bulk insert. A payment whose id already exists, or repeats
+ * an id earlier in the batch, is rejected before it reaches the gateway; a batch never
+ * overwrites a stored payment.
+ */
+@Service
+@Slf4j
+public class PaymentBatchProcessor {
+
+    private static final int CHUNK_SIZE = 500;
+    private static final String DEFAULT_GATEWAY = "DEFAULT";
+
+    private final MongoTemplate mongoTemplate;
+    private final PaymentRollupService paymentRollupService;
+    private final int defaultConcurrency;
+    private final Map<String, Integer> concurrencyLimits;
+    private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "payment-batch-" + workerCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter completedPayments;
+    private final Counter failedPayments;
+    private final Counter rejectedPayments;
+    private final Timer batchTimer;
+
+    public PaymentBatchProcessor(MongoTemplate mongoTemplate,
+                                 PaymentRollupService paymentRollupService,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${payment.batch.default-gateway-concurrency:8}") int defaultConcurrency,
+                                 @Value("${payment.batch.gateway-concurrency:}") String gatewayConcurrency) {
+        if (defaultConcurrency < 1) {
+            throw new IllegalArgumentException("payment.batch.default-gateway-concurrency must be at least 1");
+        }
+        this.mongoTemplate = mongoTemplate;
+        this.paymentRollupService = paymentRollupService;
+        this.defaultConcurrency = defaultConcurrency;
+        this.concurrencyLimits = parseLimits(gatewayConcurrency);
+        this.completedPayments = meterRegistry.counter("payment.batch.items", "result", "completed");
+        this.failedPayments = meterRegistry.counter("payment.batch.items", "result", "failed");
+        this.rejectedPayments = meterRegistry.counter("payment.batch.items", "result", "rejected");
+        this.batchTimer = meterRegistry.timer("payment.batch");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public static String gatewayOf(Payment payment) {
+        if (StringUtils.hasText(payment.getPaymentGateway())) {
+            return payment.getPaymentGateway();
+        }
+        return payment.getPaymentMethod() != null ? payment.getPaymentMethod().name() : DEFAULT_GATEWAY;
+    }
+
+    public int concurrencyLimit(String gateway) {
+        return concurrencyLimits.getOrDefault(gateway, defaultConcurrency);
+    }
+
+    /**
+     * Authorizes every payment with the given step, which must not persist anything, and
+     * saves the outcomes chunk by chunk. A payment the step rejects by throwing is reported
+     * and not saved; gateway failures are expected to be recorded on the payment itself.
+     */
+    public Map<String, Object> process(List<Payment> payments, Consumer<Payment> authorize) {
+        long started = System.nanoTime();
+        String batchId = UUID.randomUUID().toString();
+        List<Map<String, Object>> items = new ArrayList<>(payments.size());
+        for (int i = 0; i < payments.size(); i++) {
+            items.add(null);
+        }
+
+        int completed = 0;
+        int failed = 0;
+        int rejected = 0;
+        for (int from = 0; from < payments.size(); from += CHUNK_SIZE) {
+            int to = Math.min(payments.size(), from + CHUNK_SIZE);
+            List<Integer> accepted = runChunk(payments, from, to, batchId, authorize, items);
+            persist(payments, accepted, items);
+            for (int index = from; index < to; index++) {
+                Object status = items.get(index).get("status");
+                if (status == Payment.PaymentStatus.COMPLETED) {
+                    completed++;
+                } else if (status == null) {
+                    rejected++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+        completedPayments.increment(completed);
+        failedPayments.increment(failed);
+        rejectedPayments.increment(rejected);
+
+        long elapsedNanos = System.nanoTime() - started;
+        batchTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        Map<String, Object> report = new HashMap<>();
+        report.put("batchId", batchId);
+        report.put("requested", payments.size());
+        report.put("completed", completed);
+        report.put("failed", failed);
+        report.put("rejected", rejected);
+        report.put("items", items);
+        report.put("elapsedMillis", elapsedMillis);
+        report.put("paymentsPerSecond", elapsedMillis > 0 ? payments.size() * 1000L / elapsedMillis : payments.size());
+        log.info("Payment batch {} - requested: {}, completed: {}, failed: {}, rejected: {} in {} ms",
+                batchId, payments.size(), completed, failed, rejected, elapsedMillis);
+        return report;
+    }
+
+    private List<Integer> runChunk(List<Payment> payments, int from, int to, String batchId,
+                                   Consumer<Payment> authorize, List<Map<String, Object>> items) {
+        Set<String> taken = existingIds(payments, from, to);
+        Map<String, Queue<Integer>> lanes = new LinkedHashMap<>();
+        for (int index = from; index < to; index++) {
+            String id = payments.get(index).getId();
+            if (id != null && !taken.add(id)) {
+                items.set(index, rejected(index, "Payment " + id + " already exists"));
+                continue;
+            }
+            lanes.computeIfAbsent(gatewayOf(payments.get(index)), gateway -> new ConcurrentLinkedQueue<>())
+                    .add(index);
+        }
+
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (Map.Entry<String, Queue<Integer>> lane : lanes.entrySet()) {
+            String gateway = lane.getKey();
+            Semaphore gatewayPermits = permits.computeIfAbsent(gateway, key -> new Semaphore(concurrencyLimit(key)));
+            int laneWorkers = Math.min(concurrencyLimit(gateway), lane.getValue().size());
+            for (int i = 0; i < laneWorkers; i++) {
+                running.add(CompletableFuture.runAsync(() -> {
+                    Integer index;
+                    while ((index = lane.getValue().poll()) != null) {
+                        items.set(index, authorizeOne(payments.get(index), index, gateway, batchId,
+                                gatewayPermits, authorize));
+                    }
+                }, workers));
+            }
+        }
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+
+        List<Integer> accepted = new ArrayList<>(to - from);
+        for (int index = from; index < to; index++) {
+            if (items.get(index).get("status") != null) {
+                accepted.add(index);
+            }
+        }
+        return accepted;
+    }
+
+    // Client-supplied ids of the chunk that are already stored
+    private Set<String> existingIds(List<Payment> payments, int from, int to) {
+        Set<String> ids = new HashSet<>();
+        for (int index = from; index < to; index++) {
+            if (payments.get(index).getId() != null) {
+                ids.add(payments.get(index).getId());
+            }
+        }
+        Set<String> existing = new HashSet<>();
+        if (ids.isEmpty()) {
+            return existing;
+        }
+        Query query = new Query(Criteria.where("_id").in(ids));
+        query.fields().include("_id");
+        mongoTemplate.find(query, Payment.class).forEach(payment -> existing.add(payment.getId()));
+        return existing;
+    }
+
+    private static Map<String, Object> rejected(int index, String errorMessage) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("index", index);
+        item.put("errorMessage", errorMessage);
+        return item;
+    }
+
+    private Map<String, Object> authorizeOne(Payment payment, int index, String gateway, String batchId,
+                                             Semaphore gatewayPermits, Consumer<Payment> authorize) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("index", index);
+        item.put("gateway", gateway);
+        long started = System.nanoTime();
+        boolean acquired = false;
+        try {
+            gatewayPermits.acquire();
+            acquired = true;
+            payment.setBatchId(batchId);
+            authorize.accept(payment);
+            if (payment.getId() == null) {
+                payment.setId(new ObjectId().toHexString());
+            }
+            item.put("paymentId", payment.getId());
+            item.put("status", payment.getStatus());
+            item.put("errorCode", payment.getErrorCode());
+            item.put("errorMessage", payment.getErrorMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            item.put("errorMessage", "Interrupted before reaching the gateway");
+        } catch (Exception e) {
+            item.put("errorMessage", e.getMessage());
+        } finally {
+            if (acquired) {
+                gatewayPermits.release();
+            }
+        }
+        item.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        return item;
+    }
+
+    /**
+     * Inserts the accepted payments. An id stored by someone else since the existence
+     * check fails its insert alone; that payment is reported as rejected and left out of
+     * the rollups.
+     */
+    private void persist(List<Payment> payments, List<Integer> accepted, List<Map<String, Object>> items) {
+        if (accepted.isEmpty()) {
+            return;
+        }
+        List<Payment> inserts = new ArrayList<>(accepted.size());
+        accepted.forEach(index -> inserts.add(payments.get(index)));
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Payment.class);
+        bulkOps.insert(inserts);
+        Set<Integer> notInserted = new HashSet<>();
+        try {
+            bulkOps.execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                int index = accepted.get(error.getIndex());
+                notInserted.add(index);
+                items.set(index, rejected(index, "Payment not saved: " + error.getMessage()));
+            }
+            log.warn("{} payments of a batch were not saved: {}", notInserted.size(), e.getMessage());
+        }
+        List<Payment> inserted = new ArrayList<>(inserts.size());
+        accepted.stream()
+                .filter(index -> !notInserted.contains(index))
+                .forEach(index -> inserted.add(payments.get(index)));
+        paymentRollupService.paymentsCreated(inserted);
+    }
+
+    private static Map<String, Integer> parseLimits(String value) {
+        Map<String, Integer> limits = new HashMap<>();
+        if (!StringUtils.hasText(value)) {
+            return limits;
+        }
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid gateway concurrency entry: " + entry);
+            }
+            int limit = Integer.parseInt(parts[1].trim());
+            if (limit < 1) {
+                throw new IllegalArgumentException("Gateway concurrency must be at least 1: " + entry);
+            }
+            limits.put(parts[0].trim(), limit);
+        }
+        return limits;
+    }
+}
\ No newline at end of file
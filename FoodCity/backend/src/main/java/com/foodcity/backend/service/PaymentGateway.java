@@ -0,0 +1,34 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Payment;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Duration;
+
+/**
+ * One acquirer or payment provider. Implementations make a single blocking call and
+ * must give up once the deadline has passed; retries, limits and circuit breaking are
+ * handled by PaymentGatewayClient.
+ */
+public interface PaymentGateway {
+
+    Response authorize(Payment payment, Duration deadline);
+
+    Response refund(Payment payment, Duration deadline);
+
+    // Idempotent, so the client may send it more than once
+    Response queryStatus(String transactionId, Duration deadline);
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    class Response {
+        private boolean approved;
+        private String transactionId;
+        private String authorizationCode;
+        private String responseCode;
+        private String message;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,430 @@
+package com.foodcity.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foodcity.backend.exception.PaymentGatewayException;
+import com.foodcity.backend.model.Payment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Entry point for every payment gateway call. Each gateway gets its own channel: a
+ * pooled client, a bulkhead capping concurrent calls, a per-call deadline and a circuit
+ * breaker that fails fast while the gateway keeps erroring. Status queries are
+ * idempotent and may be hedged with a second request when the first one is slow.
+ * Latency and error meters per gateway and operation feed {@link #health()}.
+ *
+ * Settings are read as payment.gateway.&lt;gateway&gt;.&lt;key&gt; with payment.gateway.&lt;key&gt;
+ * as the default. A gateway without a url is served by {@link SimulatedPaymentGateway}
+ * under the dev and test profiles only; anywhere else the gateways of all card and
+ * online payment methods must have a url, or startup fails.
+ */
+@Service
+@Slf4j
+public class PaymentGatewayClient {
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+    private static final String PREFIX = "payment.gateway.";
+    private static final String[] SIMULATOR_PROFILES = {"dev", "test"};
+
+    private final Environment environment;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private final AtomicInteger hedgeThreads = new AtomicInteger();
+    private final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "payment-gateway-hedge-" + hedgeThreads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "payment-gateway-hedge-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PaymentGatewayClient(Environment environment, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.environment = environment;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+    }
+
+    // Fails startup when a payment method's gateway has no url outside the simulator profiles
+    @PostConstruct
+    public void createChannels() {
+        for (Payment.PaymentMethod method : Payment.PaymentMethod.values()) {
+            if (requiresGateway(method)) {
+                channel(method.name());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hedgeTimer.shutdownNow();
+        hedgeExecutor.shutdownNow();
+    }
+
+    /**
+     * Cash and loyalty point payments are settled in store and never reach a gateway.
+     */
+    public static boolean requiresGateway(Payment payment) {
+        return requiresGateway(payment.getPaymentMethod());
+    }
+
+    private static boolean requiresGateway(Payment.PaymentMethod method) {
+        return method != Payment.PaymentMethod.CASH && method != Payment.PaymentMethod.LOYALTY_POINTS;
+    }
+
+    /**
+     * Replaces the gateway behind a channel, e.g. with an in-process fake in tests.
+     * Limits, deadlines and meters are kept.
+     */
+    public void register(String gateway, PaymentGateway implementation) {
+        channels.compute(gateway, (name, channel) -> {
+            if (channel == null) {
+                return createChannel(name, implementation);
+            }
+            channel.gateway = implementation;
+            return channel;
+        });
+    }
+
+    public PaymentGateway.Response authorize(Payment payment) {
+        Channel channel = channel(PaymentBatchProcessor.gatewayOf(payment));
+        return channel.call(Operation.AUTHORIZE, () -> channel.gateway.authorize(payment, channel.deadline));
+    }
+
+    public PaymentGateway.Response refund(Payment payment) {
+        Channel channel = channel(payment.getPaymentGateway() != null
+                ? payment.getPaymentGateway()
+                : PaymentBatchProcessor.gatewayOf(payment));
+        return channel.call(Operation.REFUND, () -> channel.gateway.refund(payment, channel.deadline));
+    }
+
+    /**
+     * Sends a second, identical query if the first has not answered within the hedge
+     * delay, and returns whichever answers first. Both count against the bulkhead.
+     */
+    public PaymentGateway.Response queryStatus(String gateway, String transactionId) {
+        Channel channel = channel(gateway);
+        Supplier<PaymentGateway.Response> query = () -> channel.call(Operation.STATUS,
+                () -> channel.gateway.queryStatus(transactionId, channel.deadline));
+        if (channel.hedgeDelay.isZero()) {
+            return query.get();
+        }
+
+        CompletableFuture<PaymentGateway.Response> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        Runnable attempt = () -> CompletableFuture.supplyAsync(query, hedgeExecutor).whenComplete((response, error) -> {
+            if (error == null) {
+                result.complete(response);
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(error);
+            }
+        });
+        attempt.run();
+        hedgeTimer.schedule(() -> {
+            if (!result.isDone() && outstanding.incrementAndGet() > 1) {
+                channel.hedges.increment();
+                attempt.run();
+            }
+        }, channel.hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+
+        try {
+            return result.get(channel.deadline.toMillis() + channel.hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PaymentGatewayException(gateway, PaymentGatewayException.UNAVAILABLE,
+                    "Interrupted while querying gateway " + gateway, e);
+        } catch (TimeoutException e) {
+            throw new PaymentGatewayException(gateway, PaymentGatewayException.TIMEOUT,
+                    "Gateway " + gateway + " did not answer in time", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PaymentGatewayException(gateway, PaymentGatewayException.UPSTREAM_ERROR, cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Live view of every gateway used since startup: circuit state, bulkhead usage and
+     * latency percentiles and error counts per operation.
+     */
+    public Map<String, Object> health() {
+        Map<String, Object> gateways = new LinkedHashMap<>();
+        channels.forEach((name, channel) -> gateways.put(name, channel.health()));
+
+        Map<String, Object> health = new HashMap<>();
+        health.put("gateways", gateways);
+        health.put("status", channels.values().stream().anyMatch(channel -> channel.circuit.isOpen()) ? "DEGRADED" : "UP");
+        return health;
+    }
+
+    private Channel channel(String gateway) {
+        return channels.computeIfAbsent(gateway, name -> createChannel(name, null));
+    }
+
+    private Channel createChannel(String gateway, PaymentGateway registered) {
+        int maxConcurrentCalls = setting(gateway, "max-concurrent-calls", Integer.class, 32);
+        String url = setting(gateway, "url", String.class, "");
+        PaymentGateway implementation = registered;
+        if (implementation != null) {
+            log.info("Payment gateway {} is served by {}", gateway, implementation.getClass().getSimpleName());
+        } else if (StringUtils.hasText(url)) {
+            implementation = new HttpPaymentGateway(gateway, url,
+                    Duration.ofMillis(setting(gateway, "connect-timeout-millis", Long.class, 2000L)),
+                    Math.max(2, maxConcurrentCalls / 4), objectMapper);
+        } else if (environment.acceptsProfiles(Profiles.of(SIMULATOR_PROFILES))) {
+            log.warn("No url configured for payment gateway {}, using the simulated gateway", gateway);
+            implementation = new SimulatedPaymentGateway(gateway,
+                    Duration.ofMillis(setting(gateway, "simulated.latency-millis", Long.class, 50L)),
+                    setting(gateway, "simulated.failure-rate", Double.class, 0.0));
+        } else {
+            throw new PaymentGatewayException(gateway, PaymentGatewayException.NOT_CONFIGURED,
+                    "No url configured for payment gateway " + gateway + " (" + PREFIX + gateway
+                            + ".url); the simulated gateway is only used under the dev and test profiles");
+        }
+        return new Channel(gateway, implementation, maxConcurrentCalls,
+                Duration.ofMillis(setting(gateway, "bulkhead-wait-millis", Long.class, 100L)),
+                Duration.ofMillis(setting(gateway, "deadline-millis", Long.class, 5000L)),
+                Duration.ofMillis(setting(gateway, "hedge-delay-millis", Long.class, 300L)),
+                new CircuitBreaker(setting(gateway, "circuit.failure-threshold", Integer.class, 5),
+                        Duration.ofMillis(setting(gateway, "circuit.open-millis", Long.class, 30000L))));
+    }
+
+    private <T> T setting(String gateway, String key, Class<T> type, T defaultValue) {
+        T value = environment.getProperty(PREFIX + gateway + "." + key, type);
+        return value != null ? value : environment.getProperty(PREFIX + key, type, defaultValue);
+    }
+
+    private enum Operation {
+        AUTHORIZE,
+        REFUND,
+        STATUS
+    }
+
+    private final class Channel {
+        private final String name;
+        private volatile PaymentGateway gateway;
+        private final int maxConcurrentCalls;
+        private final Semaphore bulkhead;
+        private final Duration bulkheadWait;
+        private final Duration deadline;
+        private final Duration hedgeDelay;
+        private final CircuitBreaker circuit;
+        private final Counter hedges;
+        private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+        private final Map<String, Counter> errors = new ConcurrentHashMap<>();
+
+        private Channel(String name, PaymentGateway gateway, int maxConcurrentCalls, Duration bulkheadWait,
+                        Duration deadline, Duration hedgeDelay, CircuitBreaker circuit) {
+            this.name = name;
+            this.gateway = gateway;
+            this.maxConcurrentCalls = maxConcurrentCalls;
+            this.bulkhead = new Semaphore(maxConcurrentCalls);
+            this.bulkheadWait = bulkheadWait;
+            this.deadline = deadline;
+            this.hedgeDelay = hedgeDelay;
+            this.circuit = circuit;
+            this.hedges = meterRegistry.counter("payment.gateway.hedges", "gateway", name);
+        }
+
+        private PaymentGateway.Response call(Operation operation, Supplier<PaymentGateway.Response> request) {
+            if (!circuit.allowRequest()) {
+                error(operation, PaymentGatewayException.CIRCUIT_OPEN).increment();
+                throw new PaymentGatewayException(name, PaymentGatewayException.CIRCUIT_OPEN,
+                        "Gateway " + name + " is failing, calls are suspended");
+            }
+            boolean acquired;
+            try {
+                acquired = bulkhead.tryAcquire(bulkheadWait.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                circuit.releaseTrial();
+                error(operation, PaymentGatewayException.BULKHEAD_FULL).increment();
+                throw new PaymentGatewayException(name, PaymentGatewayException.BULKHEAD_FULL,
+                        "Gateway " + name + " has too many calls in flight");
+            }
+
+            long started = System.nanoTime();
+            try {
+                PaymentGateway.Response response = request.get();
+                circuit.recordSuccess();
+                timer(operation, response.isApproved() ? "approved" : "declined")
+                        .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                return response;
+            } catch (RuntimeException e) {
+                circuit.recordFailure();
+                String code = e instanceof PaymentGatewayException
+                        ? ((PaymentGatewayException) e).getCode()
+                        : PaymentGatewayException.UPSTREAM_ERROR;
+                timer(operation, "error").record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                error(operation, code).increment();
+                throw e;
+            } finally {
+                bulkhead.release();
+            }
+        }
+
+        private Timer timer(Operation operation, String outcome) {
+            return timers.computeIfAbsent(operation + "|" + outcome, key -> Timer.builder("payment.gateway.latency")
+                    .tag("gateway", name)
+                    .tag("operation", operation.name().toLowerCase())
+                    .tag("outcome", outcome)
+                    .publishPercentiles(PERCENTILES)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+
+        private Counter error(Operation operation, String code) {
+            return errors.computeIfAbsent(operation + "|" + code, key -> Counter.builder("payment.gateway.errors")
+                    .tag("gateway", name)
+                    .tag("operation", operation.name().toLowerCase())
+                    .tag("code", code)
+                    .register(meterRegistry));
+        }
+
+        private Map<String, Object> health() {
+            Map<String, Object> operations = new LinkedHashMap<>();
+            for (Operation operation : Operation.values()) {
+                long calls = 0;
+                long failures = 0;
+                Map<String, Object> latency = new LinkedHashMap<>();
+                for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                    if (!entry.getKey().startsWith(operation + "|")) {
+                        continue;
+                    }
+                    String outcome = entry.getKey().substring(operation.name().length() + 1);
+                    HistogramSnapshot snapshot = entry.getValue().takeSnapshot();
+                    calls += snapshot.count();
+                    if ("error".equals(outcome)) {
+                        failures += snapshot.count();
+                    }
+                    Map<String, Object> percentiles = new LinkedHashMap<>();
+                    percentiles.put("count", snapshot.count());
+                    percentiles.put("meanMillis", snapshot.mean(TimeUnit.MILLISECONDS));
+                    for (ValueAtPercentile value : snapshot.percentileValues()) {
+                        percentiles.put("p" + Math.round(value.percentile() * 100) + "Millis",
+                                value.value(TimeUnit.MILLISECONDS));
+                    }
+                    latency.put(outcome, percentiles);
+                }
+                Map<String, Double> errorCounts = new LinkedHashMap<>();
+                errors.forEach((key, counter) -> {
+                    if (key.startsWith(operation + "|")) {
+                        errorCounts.put(key.substring(operation.name().length() + 1), counter.count());
+                    }
+                });
+                if (calls == 0 && errorCounts.isEmpty()) {
+                    continue;
+                }
+                Map<String, Object> summary = new LinkedHashMap<>();
+                summary.put("calls", calls);
+                summary.put("errorRate", calls > 0 ? (double) failures / calls : 0.0);
+                summary.put("latency", latency);
+                summary.put("errors", errorCounts);
+                operations.put(operation.name().toLowerCase(), summary);
+            }
+
+            Map<String, Object> health = new LinkedHashMap<>();
+            health.put("type", gateway instanceof SimulatedPaymentGateway ? "simulated" : gateway.getClass().getSimpleName());
+            health.put("circuit", circuit.state());
+            health.put("consecutiveFailures", circuit.consecutiveFailures.get());
+            health.put("inFlight", maxConcurrentCalls - bulkhead.availablePermits());
+            health.put("maxConcurrentCalls", maxConcurrentCalls);
+            health.put("deadlineMillis", deadline.toMillis());
+            health.put("hedges", hedges.count());
+            health.put("operations", operations);
+            return health;
+        }
+    }
+
+    /**
+     * Opens after a run of consecutive failures and stays open for a cool-down period;
+     * after that a single trial call decides whether it closes again.
+     */
+    private static final class CircuitBreaker {
+        private final int failureThreshold;
+        private final long openNanos;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicBoolean trialInFlight = new AtomicBoolean(false);
+        private volatile long openedAt;
+        private volatile boolean open;
+
+        private CircuitBreaker(int failureThreshold, Duration openDuration) {
+            this.failureThreshold = failureThreshold;
+            this.openNanos = openDuration.toNanos();
+        }
+
+        private boolean allowRequest() {
+            if (!open) {
+                return true;
+            }
+            return System.nanoTime() - openedAt >= openNanos && trialInFlight.compareAndSet(false, true);
+        }
+
+        private void recordSuccess() {
+            consecutiveFailures.set(0);
+            open = false;
+            trialInFlight.set(false);
+        }
+
+        private void recordFailure() {
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold || trialInFlight.get()) {
+                openedAt = System.nanoTime();
+                open = true;
+            }
+            trialInFlight.set(false);
+        }
+
+        // A trial that never reached the gateway does not count either way
+        private void releaseTrial() {
+            trialInFlight.set(false);
+        }
+
+        private boolean isOpen() {
+            return open;
+        }
+
+        private String state() {
+            if (!open) {
+                return "CLOSED";
+            }
+            return System.nanoTime() - openedAt >= openNanos ? "HALF_OPEN" : "OPEN";
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,426 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.exception.PaymentGatewayException;
+import com.foodcity.backend.exception.ResourceNotFoundException;
+import com.foodcity.backend.model.Payment;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Drains queued refunds. A run claims a batch of due refunds by writing a lease (owner
+ * and expiry) onto them, sends them to the gateways in parallel with a per-gateway
+ * limit, and writes all outcomes back in one bulk update that only applies while the
+ * lease is still held. Failed calls are put back in the queue with exponential backoff
+ * until the attempts run out; a refund whose worker died becomes claimable again once
+ * its lease expires. Gateways see a retried refund under the same idempotency key.
+ * The lease covers the slowest possible batch: every call in the busiest lane waiting
+ * out the bulkhead and running into the gateway deadline. Scheduled drains run on their
+ * own thread, so a long drain does not hold up the other scheduled jobs.
+ */
+@Service
+@Slf4j
+public class PaymentRefundPipeline {
+
+    private static final String REFUND = "refundDetails.";
+    private static final Duration LEASE_MARGIN = Duration.ofSeconds(30);
+
+    private final MongoTemplate mongoTemplate;
+    private final PaymentGatewayClient paymentGatewayClient;
+    private final PaymentRollupService paymentRollupService;
+    private final int batchSize;
+    private final int gatewayConcurrency;
+    private final int maxAttempts;
+    private final Duration lease;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "payment-refund-" + workerCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService drainer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "payment-refund-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter completedRefunds;
+    private final Counter retriedRefunds;
+    private final Counter failedRefunds;
+    private final Counter lostLeases;
+    private final Timer batchTimer;
+
+    public PaymentRefundPipeline(MongoTemplate mongoTemplate,
+                                 PaymentGatewayClient paymentGatewayClient,
+                                 PaymentRollupService paymentRollupService,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${payment.refund.batch-size:200}") int batchSize,
+                                 @Value("${payment.refund.gateway-concurrency:8}") int gatewayConcurrency,
+                                 @Value("${payment.refund.max-attempts:6}") int maxAttempts,
+                                 @Value("${payment.refund.lease-seconds:0}") long leaseSeconds,
+                                 @Value("${payment.refund.initial-backoff-seconds:30}") long initialBackoffSeconds,
+                                 @Value("${payment.refund.max-backoff-seconds:3600}") long maxBackoffSeconds,
+                                 @Value("${payment.gateway.deadline-millis:5000}") long gatewayDeadlineMillis,
+                                 @Value("${payment.gateway.bulkhead-wait-millis:100}") long gatewayBulkheadWaitMillis) {
+        if (batchSize < 1 || gatewayConcurrency < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "payment.refund batch-size, gateway-concurrency and max-attempts must be at least 1");
+        }
+        // One lane can hold the whole batch, and its calls run gateway-concurrency at a time
+        long callsPerWorker = (batchSize + gatewayConcurrency - 1) / gatewayConcurrency;
+        Duration worstCaseBatch = Duration.ofMillis(gatewayDeadlineMillis + gatewayBulkheadWaitMillis)
+                .multipliedBy(callsPerWorker);
+        Duration minimumLease = worstCaseBatch.plus(LEASE_MARGIN);
+        if (leaseSeconds > 0 && Duration.ofSeconds(leaseSeconds).compareTo(minimumLease) < 0) {
+            throw new IllegalArgumentException("payment.refund.lease-seconds must be at least "
+                    + (minimumLease.toMillis() + 999) / 1000 + " for batch-size " + batchSize
+                    + ", gateway-concurrency " + gatewayConcurrency + " and a gateway deadline of "
+                    + gatewayDeadlineMillis + " ms");
+        }
+        this.mongoTemplate = mongoTemplate;
+        this.paymentGatewayClient = paymentGatewayClient;
+        this.paymentRollupService = paymentRollupService;
+        this.batchSize = batchSize;
+        this.gatewayConcurrency = gatewayConcurrency;
+        this.maxAttempts = maxAttempts;
+        this.lease = leaseSeconds > 0 ? Duration.ofSeconds(leaseSeconds) : minimumLease;
+        this.initialBackoff = Duration.ofSeconds(initialBackoffSeconds);
+        this.maxBackoff = Duration.ofSeconds(maxBackoffSeconds);
+        this.completedRefunds = meterRegistry.counter("payment.refund.items", "result", "completed");
+        this.retriedRefunds = meterRegistry.counter("payment.refund.items", "result", "retry");
+        this.failedRefunds = meterRegistry.counter("payment.refund.items", "result", "failed");
+        this.lostLeases = meterRegistry.counter("payment.refund.items", "result", "lease_lost");
+        this.batchTimer = meterRegistry.timer("payment.refund.batch");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        drainer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Queues a full refund of a completed payment. The check and the write are a single
+     * conditional update, so a payment can only be queued once.
+     */
+    public Payment enqueue(String paymentId, String reason) {
+        Criteria refundable = Criteria.where("_id").is(paymentId)
+                .and("status").is(Payment.PaymentStatus.COMPLETED)
+                .and(REFUND + "status").nin(Payment.RefundStatus.PENDING, Payment.RefundStatus.PROCESSING,
+                        Payment.RefundStatus.COMPLETED);
+        Query query = new Query(refundable);
+        query.fields().include("totalAmount").include("amount");
+        Payment payment = mongoTemplate.findOne(query, Payment.class);
+        if (payment == null) {
+            throw notRefundable(paymentId);
+        }
+
+        Payment.RefundDetails refund = new Payment.RefundDetails();
+        refund.setRefundAmount(payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount());
+        refund.setRefundReason(reason);
+        refund.setStatus(Payment.RefundStatus.PENDING);
+        refund.setRequestedDate(LocalDateTime.now());
+        refund.setNextAttemptAt(refund.getRequestedDate());
+        Payment queued = mongoTemplate.findAndModify(new Query(refundable), new Update().set("refundDetails", refund),
+                FindAndModifyOptions.options().returnNew(true), Payment.class);
+        if (queued == null) {
+            throw notRefundable(paymentId);
+        }
+        return queued;
+    }
+
+    /**
+     * Runs one queued refund right away instead of waiting for the next drain. Returns the
+     * payment as stored afterwards; if another worker holds the refund, it is returned as is.
+     */
+    public Payment processNow(String paymentId) {
+        List<Payment> claimed = claim(Criteria.where("_id").is(paymentId), 1);
+        if (!claimed.isEmpty()) {
+            process(claimed);
+        }
+        Payment payment = mongoTemplate.findById(paymentId, Payment.class);
+        if (payment == null) {
+            throw new ResourceNotFoundException("Payment", "id", paymentId);
+        }
+        return payment;
+    }
+
+    @Scheduled(fixedDelayString = "${payment.refund.poll-millis:60000}")
+    public void scheduledDrain() {
+        drainer.execute(this::drain);
+    }
+
+    /**
+     * Claims and processes batches until no due refund is left, on the calling thread.
+     * Overlapping calls return immediately; other instances are kept apart by the leases.
+     */
+    public int drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return 0;
+        }
+        int processed = 0;
+        try {
+            List<Payment> claimed;
+            do {
+                claimed = claim(new Criteria(), batchSize);
+                if (!claimed.isEmpty()) {
+                    process(claimed);
+                    processed += claimed.size();
+                }
+            } while (claimed.size() == batchSize);
+        } catch (Exception e) {
+            log.error("Refund drain stopped after {} refunds: {}", processed, e.getMessage());
+        } finally {
+            draining.set(false);
+        }
+        if (processed > 0) {
+            log.info("Processed {} queued refunds", processed);
+        }
+        return processed;
+    }
+
+    private List<Payment> claim(Criteria scope, int limit) {
+        LocalDateTime now = LocalDateTime.now();
+        Criteria claimable = new Criteria().andOperator(scope, new Criteria().orOperator(
+                Criteria.where(REFUND + "status").is(Payment.RefundStatus.PENDING)
+                        .and(REFUND + "nextAttemptAt").lte(now),
+                Criteria.where(REFUND + "status").is(Payment.RefundStatus.PENDING)
+                        .and(REFUND + "nextAttemptAt").exists(false),
+                Criteria.where(REFUND + "status").is(Payment.RefundStatus.PROCESSING)
+                        .and(REFUND + "leaseExpiresAt").lt(now)));
+
+        Query candidates = new Query(claimable).with(Sort.by(REFUND + "nextAttemptAt")).limit(limit);
+        candidates.fields().include("_id");
+        List<String> ids = mongoTemplate.find(candidates, Payment.class).stream()
+                .map(Payment::getId)
+                .collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        // Re-check the claimable condition so a refund taken by someone else in between is skipped
+        String owner = UUID.randomUUID().toString();
+        mongoTemplate.updateMulti(new Query(new Criteria().andOperator(Criteria.where("_id").in(ids), claimable)),
+                new Update()
+                        .set(REFUND + "status", Payment.RefundStatus.PROCESSING)
+                        .set(REFUND + "leaseOwner", owner)
+                        .set(REFUND + "leaseExpiresAt", now.plus(lease))
+                        .inc(REFUND + "attempts", 1),
+                Payment.class);
+        return mongoTemplate.find(new Query(Criteria.where("_id").in(ids).and(REFUND + "leaseOwner").is(owner)),
+                Payment.class);
+    }
+
+    private void process(List<Payment> claimed) {
+        long started = System.nanoTime();
+        Map<String, Queue<Payment>> lanes = new LinkedHashMap<>();
+        for (Payment payment : claimed) {
+            lanes.computeIfAbsent(PaymentBatchProcessor.gatewayOf(payment), gateway -> new ConcurrentLinkedQueue<>())
+                    .add(payment);
+        }
+        Map<String, Outcome> outcomes = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (Queue<Payment> lane : lanes.values()) {
+            for (int i = 0; i < Math.min(gatewayConcurrency, lane.size()); i++) {
+                running.add(CompletableFuture.runAsync(() -> {
+                    Payment payment;
+                    while ((payment = lane.poll()) != null) {
+                        outcomes.put(payment.getId(), refund(payment));
+                    }
+                }, workers));
+            }
+        }
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+
+        write(claimed, outcomes);
+        batchTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+    }
+
+    private Outcome refund(Payment payment) {
+        if (!PaymentGatewayClient.requiresGateway(payment)) {
+            return Outcome.completed(null);
+        }
+        try {
+            PaymentGateway.Response response = paymentGatewayClient.refund(payment);
+            if (response.isApproved()) {
+                return Outcome.completed(response.getTransactionId());
+            }
+            return Outcome.failed(PaymentGatewayException.DECLINED, response.getMessage() != null
+                    ? response.getMessage()
+                    : "Refund declined by the gateway", false);
+        } catch (PaymentGatewayException e) {
+            return Outcome.failed(e.getCode(), e.getMessage(), e.isRetryable());
+        } catch (Exception e) {
+            return Outcome.failed(PaymentGatewayException.UPSTREAM_ERROR, e.getMessage(), true);
+        }
+    }
+
+    /**
+     * Applies every outcome guarded by the lease and moves the refunded payments in the
+     * rollups. A completed refund keeps its lease owner, so when some writes found their
+     * lease taken over, the refunds this run did complete can be told apart.
+     */
+    private void write(List<Payment> claimed, Map<String, Outcome> outcomes) {
+        LocalDateTime now = LocalDateTime.now();
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Payment.class);
+        List<PaymentRollupService.Snapshot> before = new ArrayList<>();
+        List<Payment> refunded = new ArrayList<>();
+        int retried = 0;
+        int failed = 0;
+        for (Payment payment : claimed) {
+            Payment.RefundDetails refund = payment.getRefundDetails();
+            Outcome outcome = outcomes.get(payment.getId());
+            Update update = new Update().unset(REFUND + "leaseExpiresAt");
+            if (outcome.errorCode == null) {
+                Payment.PaymentStatus status = isPartial(payment)
+                        ? Payment.PaymentStatus.PARTIALLY_REFUNDED
+                        : Payment.PaymentStatus.REFUNDED;
+                update.set(REFUND + "status", Payment.RefundStatus.COMPLETED)
+                        .set(REFUND + "refundDate", now)
+                        .set(REFUND + "refundTransactionId", outcome.transactionId)
+                        .unset(REFUND + "nextAttemptAt")
+                        .set("status", status);
+                before.add(PaymentRollupService.Snapshot.of(payment));
+                payment.setStatus(status);
+                refunded.add(payment);
+            } else {
+                update.unset(REFUND + "leaseOwner")
+                        .set(REFUND + "lastErrorCode", outcome.errorCode)
+                        .set(REFUND + "lastErrorMessage", outcome.errorMessage);
+                if (outcome.retryable && refund.getAttempts() < maxAttempts) {
+                    update.set(REFUND + "status", Payment.RefundStatus.PENDING)
+                            .set(REFUND + "nextAttemptAt", now.plus(backoff(refund.getAttempts())));
+                    retried++;
+                } else {
+                    update.set(REFUND + "status", Payment.RefundStatus.FAILED)
+                            .unset(REFUND + "nextAttemptAt");
+                    failed++;
+                }
+            }
+            bulkOps.updateOne(new Query(Criteria.where("_id").is(payment.getId())
+                    .and(REFUND + "leaseOwner").is(refund.getLeaseOwner())), update);
+        }
+
+        BulkWriteResult result = bulkOps.execute();
+        int lost = claimed.size() - result.getMatchedCount();
+        if (lost > 0) {
+            // Only happens when a batch outlives its lease; refunds are then idempotent at the gateway
+            lostLeases.increment(lost);
+            log.warn("{} of {} refunds lost their lease before the results were written", lost, claimed.size());
+            if (!refunded.isEmpty()) {
+                List<String> written = writtenRefunds(refunded);
+                for (int i = refunded.size() - 1; i >= 0; i--) {
+                    if (!written.contains(refunded.get(i).getId())) {
+                        refunded.remove(i);
+                        before.remove(i);
+                    }
+                }
+            }
+        }
+        completedRefunds.increment(refunded.size());
+        retriedRefunds.increment(retried);
+        failedRefunds.increment(failed);
+        if (!refunded.isEmpty()) {
+            paymentRollupService.paymentsChanged(before, refunded);
+        }
+    }
+
+    // Ids of the given refunds that are completed under the lease this run held
+    private List<String> writtenRefunds(List<Payment> refunded) {
+        List<Criteria> ownedByRun = new ArrayList<>(refunded.size());
+        for (Payment payment : refunded) {
+            ownedByRun.add(Criteria.where("_id").is(payment.getId())
+                    .and(REFUND + "leaseOwner").is(payment.getRefundDetails().getLeaseOwner())
+                    .and(REFUND + "status").is(Payment.RefundStatus.COMPLETED));
+        }
+        Query query = new Query(new Criteria().orOperator(ownedByRun));
+        query.fields().include("_id");
+        return mongoTemplate.find(query, Payment.class).stream()
+                .map(Payment::getId)
+                .collect(Collectors.toList());
+    }
+
+    private Duration backoff(int attempts) {
+        Duration delay = initialBackoff.multipliedBy(1L << Math.min(attempts - 1, 20));
+        return delay.compareTo(maxBackoff) > 0 ? maxBackoff : delay;
+    }
+
+    private static boolean isPartial(Payment payment) {
+        BigDecimal total = payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount();
+        BigDecimal refunded = payment.getRefundDetails().getRefundAmount();
+        return total != null && refunded != null && refunded.compareTo(total) < 0;
+    }
+
+    private RuntimeException notRefundable(String paymentId) {
+        Query query = new Query(Criteria.where("_id").is(paymentId));
+        query.fields().include("status").include(REFUND + "status");
+        Payment payment = mongoTemplate.findOne(query, Payment.class);
+        if (payment == null) {
+            return new ResourceNotFoundException("Payment", "id", paymentId);
+        }
+        if (payment.getStatus() != Payment.PaymentStatus.COMPLETED) {
+            return new IllegalStateException("Payment must be completed to process refund");
+        }
+        return new IllegalStateException(payment.getRefundDetails().getStatus() == Payment.RefundStatus.COMPLETED
+                ? "Payment has already been refunded"
+                : "A refund for this payment is already in progress");
+    }
+
+    private static final class Outcome {
+        private final String transactionId;
+        private final String errorCode;
+        private final String errorMessage;
+        private final boolean retryable;
+
+        private Outcome(String transactionId, String errorCode, String errorMessage, boolean retryable) {
+            this.transactionId = transactionId;
+            this.errorCode = errorCode;
+            this.errorMessage = errorMessage;
+            this.retryable = retryable;
+        }
+
+        private static Outcome completed(String transactionId) {
+            return new Outcome(transactionId, null, null, false);
+        }
+
+        private static Outcome failed(String errorCode, String errorMessage, boolean retryable) {
+            return new Outcome(null, errorCode, errorMessage, retryable);
+        }
+    }
+}
\ No newline at end of file
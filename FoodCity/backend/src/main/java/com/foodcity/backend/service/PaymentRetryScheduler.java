@@ -0,0 +1,326 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.exception.PaymentGatewayException;
+import com.foodcity.backend.model.Payment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Retries failed payments automatically. A failed payment gets a nextRetryAt on the
+ * payment document (exponential backoff from its retry count, with jitter so a burst of
+ * failures does not come back as a burst) and an entry in an in-memory delay queue that a
+ * small worker pool takes from. Before retrying, a worker claims the payment by clearing
+ * nextRetryAt only if it still holds the scheduled time, so a payment retried by hand or
+ * by another instance in the meantime is skipped. Only payments that failed for a
+ * transient reason (timeout, unavailable or busy gateway) are retried. The outcome of
+ * a retry is written as a partial update guarded by the status and retry count it
+ * started from, so webhook or refund fields written in the meantime are kept. Since the
+ * schedule lives on the payments, it is rebuilt from the database after a restart.
+ */
+@Service
+@Slf4j
+public class PaymentRetryScheduler {
+
+    private static final int RECOVERY_PAGE_SIZE = 500;
+
+    private final MongoTemplate mongoTemplate;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Duration stalePending;
+    private final int workerCount;
+
+    private final DelayQueue<DueRetry> queue = new DelayQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService workers;
+
+    private final Counter scheduledRetries;
+    private final Counter skippedRetries;
+    private final Map<String, Counter> retryOutcomes = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+
+    public PaymentRetryScheduler(MongoTemplate mongoTemplate,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${payment.retry.max-attempts:5}") int maxAttempts,
+                                 @Value("${payment.retry.initial-backoff-seconds:30}") long initialBackoffSeconds,
+                                 @Value("${payment.retry.max-backoff-seconds:1800}") long maxBackoffSeconds,
+                                 @Value("${payment.retry.workers:2}") int workerCount,
+                                 @Value("${payment.retry.stale-pending-minutes:10}") long stalePendingMinutes) {
+        if (maxAttempts < 0 || workerCount < 1) {
+            throw new IllegalArgumentException("payment.retry.max-attempts must not be negative and workers at least 1");
+        }
+        this.mongoTemplate = mongoTemplate;
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = Duration.ofSeconds(initialBackoffSeconds);
+        this.maxBackoff = Duration.ofSeconds(maxBackoffSeconds);
+        this.stalePending = Duration.ofMinutes(stalePendingMinutes);
+        this.workerCount = workerCount;
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "payment-retry-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduledRetries = meterRegistry.counter("payment.retry.scheduled");
+        this.skippedRetries = meterRegistry.counter("payment.retry.skipped");
+        meterRegistry.gauge("payment.retry.queue.depth", queue, DelayQueue::size);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running.set(false);
+        workers.shutdownNow();
+    }
+
+    /**
+     * Starts the workers. Each due payment is claimed and handed to the retry step, which
+     * is expected to authorize, save and plan the payment again.
+     */
+    public void start(Consumer<Payment> retry) {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(() -> work(retry));
+        }
+    }
+
+    /**
+     * Sets nextRetryAt on a failed payment that has attempts left, before it is saved.
+     * Returns whether a retry was planned.
+     */
+    public boolean planRetry(Payment payment) {
+        if (!isRetryable(payment)) {
+            payment.setNextRetryAt(null);
+            return false;
+        }
+        payment.setNextRetryAt(LocalDateTime.now().plus(backoff(payment.getRetryCount()))
+                .truncatedTo(ChronoUnit.MILLIS));
+        return true;
+    }
+
+    /**
+     * Queues the saved payments that have a planned retry.
+     */
+    public void enqueue(Collection<Payment> payments) {
+        for (Payment payment : payments) {
+            if (payment.getId() != null && payment.getNextRetryAt() != null) {
+                queue.add(new DueRetry(payment.getId(), payment.getNextRetryAt()));
+                scheduledRetries.increment();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the queue after a restart from the payments that need attention: those
+     * with a planned retry, failures with a transient cause and attempts left, and
+     * attempts stuck pending. They are read in _id pages, so older failures that can
+     * never be retried are not loaded at all.
+     */
+    public void recover() {
+        Criteria attention = new Criteria().orOperator(
+                Criteria.where("status").in(Payment.PaymentStatus.FAILED, Payment.PaymentStatus.PENDING)
+                        .and("nextRetryAt").exists(true),
+                Criteria.where("status").is(Payment.PaymentStatus.FAILED)
+                        .and("retryCount").lt(maxAttempts)
+                        .and("errorCode").in(PaymentGatewayException.TRANSIENT_CODES),
+                Criteria.where("status").is(Payment.PaymentStatus.PENDING)
+                        .and("paymentDate").lt(stalePendingBefore()));
+        String lastId = null;
+        int newlyPlanned = 0;
+        List<Payment> page;
+        do {
+            Criteria criteria = lastId != null
+                    ? new Criteria().andOperator(Criteria.where("_id").gt(lastId), attention)
+                    : attention;
+            Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(RECOVERY_PAGE_SIZE);
+            query.fields().include("status").include("retryCount").include("errorCode")
+                    .include("paymentDate").include("nextRetryAt");
+            page = mongoTemplate.find(query, Payment.class);
+            if (page.isEmpty()) {
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+            newlyPlanned += recover(page);
+        } while (page.size() == RECOVERY_PAGE_SIZE);
+        log.info("Recovered {} payment retries ({} newly planned)", queue.size(), newlyPlanned);
+    }
+
+    /**
+     * Queues one page of recovered payments. Payments that already have a retry time keep
+     * it; the others are planned now and saved with a single bulk write.
+     *
+     * @return how many retries were newly planned
+     */
+    private int recover(Collection<Payment> payments) {
+        List<Payment> planned = new ArrayList<>();
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Payment.class);
+        for (Payment payment : payments) {
+            if (payment.getNextRetryAt() != null || !planRetry(payment)) {
+                continue;
+            }
+            bulkOps.updateOne(new Query(Criteria.where("_id").is(payment.getId())
+                            .and("status").is(payment.getStatus())
+                            .and("nextRetryAt").exists(false)),
+                    new Update().set("nextRetryAt", payment.getNextRetryAt()));
+            planned.add(payment);
+        }
+        if (!planned.isEmpty()) {
+            bulkOps.execute();
+        }
+        enqueue(payments);
+        return planned.size();
+    }
+
+    /**
+     * Writes the outcome of a retry attempt: the fields authorization sets, the retry
+     * count and the planned next retry. Applies only while the payment still has the
+     * status and retry count the attempt started from.
+     *
+     * @return whether the attempt was written
+     */
+    public boolean saveAttempt(Payment payment, Payment.PaymentStatus previousStatus, int previousRetryCount) {
+        Update update = new Update()
+                .set("status", payment.getStatus())
+                .set("paymentDate", payment.getPaymentDate())
+                .set("processedDate", payment.getProcessedDate())
+                .set("referenceNumber", payment.getReferenceNumber())
+                .set("paymentGateway", payment.getPaymentGateway())
+                .set("transactionId", payment.getTransactionId())
+                .set("errorCode", payment.getErrorCode())
+                .set("errorMessage", payment.getErrorMessage())
+                .set("retryCount", payment.getRetryCount())
+                .set("nextRetryAt", payment.getNextRetryAt());
+        if (payment.getCardDetails() != null) {
+            update.set("cardDetails.authorizationCode", payment.getCardDetails().getAuthorizationCode());
+        }
+        Query query = new Query(Criteria.where("_id").is(payment.getId())
+                .and("status").is(previousStatus)
+                .and("retryCount").is(previousRetryCount));
+        return mongoTemplate.updateFirst(query, update, Payment.class).getMatchedCount() > 0;
+    }
+
+    // Payments still pending from before this time were cut off mid-attempt
+    private LocalDateTime stalePendingBefore() {
+        return LocalDateTime.now().minus(stalePending);
+    }
+
+    /**
+     * Whether the payment may be sent to the gateway again: a failure with a transient
+     * cause, or an attempt left pending past the stale threshold. Any other status has an
+     * outcome a retry must not repeat, such as a completed or refunded charge.
+     */
+    public boolean canRetry(Payment payment) {
+        if (payment.getStatus() == Payment.PaymentStatus.PENDING) {
+            return payment.getPaymentDate() != null && payment.getPaymentDate().isBefore(stalePendingBefore());
+        }
+        return payment.getStatus() == Payment.PaymentStatus.FAILED
+                && PaymentGatewayException.isRetryable(payment.getErrorCode());
+    }
+
+    private boolean isRetryable(Payment payment) {
+        return payment.getRetryCount() < maxAttempts && canRetry(payment);
+    }
+
+    // Equal jitter: at least half of the exponential delay, so retries spread without collapsing to zero
+    private Duration backoff(int retryCount) {
+        Duration delay = initialBackoff.multipliedBy(1L << Math.min(retryCount, 20));
+        if (delay.compareTo(maxBackoff) > 0) {
+            delay = maxBackoff;
+        }
+        long half = delay.toMillis() / 2;
+        return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(half + 1));
+    }
+
+    private void work(Consumer<Payment> retry) {
+        while (running.get()) {
+            DueRetry due;
+            try {
+                due = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                Payment payment = claim(due);
+                if (payment == null) {
+                    skippedRetries.increment();
+                    continue;
+                }
+                retry.accept(payment);
+                outcome(payment.getStatus()).increment();
+            } catch (Exception e) {
+                // The claim cleared nextRetryAt; startup recovery picks the payment up again
+                log.error("Scheduled retry of payment {} failed: {}", due.paymentId, e.getMessage());
+            }
+        }
+    }
+
+    private Payment claim(DueRetry due) {
+        return mongoTemplate.findAndModify(
+                new Query(Criteria.where("_id").is(due.paymentId)
+                        .and("nextRetryAt").is(due.at)
+                        .and("status").in(Payment.PaymentStatus.FAILED, Payment.PaymentStatus.PENDING)),
+                new Update().unset("nextRetryAt"),
+                FindAndModifyOptions.options().returnNew(true),
+                Payment.class);
+    }
+
+    private Counter outcome(Payment.PaymentStatus status) {
+        return retryOutcomes.computeIfAbsent(String.valueOf(status), key -> meterRegistry.counter(
+                "payment.retry.attempts", "status", key));
+    }
+
+    private static final class DueRetry implements Delayed {
+        private final String paymentId;
+        private final LocalDateTime at;
+        private final long dueMillis;
+
+        private DueRetry(String paymentId, LocalDateTime at) {
+            this.paymentId = paymentId;
+            this.at = at;
+            this.dueMillis = at.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueMillis, ((DueRetry) other).dueMillis);
+        }
+    }
+}
\ No newline at end of file
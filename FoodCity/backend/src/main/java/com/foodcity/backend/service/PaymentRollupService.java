@@ -0,0 +1,312 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Payment;
+import com.foodcity.backend.model.PaymentRollup;
+import lombok.RequiredArgsConstructor;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps per-method, per-hour payment counters (count and amount for each status) in the
+ * payment_rollups collection, plus all-time totals per method. Every status transition
+ * moves one payment from its old counters to its new ones with $inc upserts, so payment
+ * dashboards read at most one document per method and hour instead of the payments.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class PaymentRollupService {
+
+    private static final String ALL_TIME = "ALL";
+    private static final String CHECKPOINT_COLLECTION = "job_checkpoints";
+    private static final String CHECKPOINT_ID = "payment-rollup-rebuild";
+    private static final int BATCH_SIZE = 1000;
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    /**
+     * The fields of a payment that decide which counters it is in. Take it before
+     * changing a payment that is already stored.
+     */
+    public static final class Snapshot {
+        private final Payment.PaymentStatus status;
+        private final Payment.PaymentMethod method;
+        private final LocalDateTime paymentDate;
+        private final long cents;
+
+        private Snapshot(Payment payment) {
+            this.status = payment.getStatus();
+            this.method = payment.getPaymentMethod();
+            this.paymentDate = payment.getPaymentDate();
+            this.cents = amountInCents(payment);
+        }
+
+        public static Snapshot of(Payment payment) {
+            return new Snapshot(payment);
+        }
+
+        private boolean counted() {
+            return status != null && method != null && paymentDate != null;
+        }
+    }
+
+    public void paymentCreated(Payment payment) {
+        paymentChanged(null, payment);
+    }
+
+    public void paymentsCreated(Collection<Payment> payments) {
+        Map<String, Delta> deltas = new HashMap<>();
+        for (Payment payment : payments) {
+            add(deltas, Snapshot.of(payment), 1);
+        }
+        apply(deltas);
+    }
+
+    public void paymentChanged(Snapshot before, Payment after) {
+        paymentsChanged(before != null ? List.of(before) : List.of(), List.of(after));
+    }
+
+    /**
+     * Moves the given payments out of the counters of their earlier snapshots and into
+     * the ones of their current state, in one bulk write.
+     */
+    public void paymentsChanged(Collection<Snapshot> before, Collection<Payment> after) {
+        Map<String, Delta> deltas = new HashMap<>();
+        for (Snapshot snapshot : before) {
+            add(deltas, snapshot, -1);
+        }
+        for (Payment payment : after) {
+            add(deltas, Snapshot.of(payment), 1);
+        }
+        apply(deltas);
+    }
+
+    public List<PaymentRollup> findHourly(LocalDateTime start, LocalDateTime end) {
+        return mongoTemplate.find(new Query(Criteria.where("hour").gte(start.truncatedTo(ChronoUnit.HOURS)).lt(end)),
+                PaymentRollup.class);
+    }
+
+    public List<PaymentRollup> findAllTime() {
+        return mongoTemplate.find(new Query(Criteria.where("hour").exists(false)), PaymentRollup.class);
+    }
+
+    /**
+     * Fills the counters from the payments collection until a completed rebuild is
+     * recorded in job_checkpoints. Payments created from the cutoff on are counted by the
+     * regular write path, so only older ones are read, in _id batches; after each batch
+     * the last _id is checkpointed and a restart resumes from there. Every batch stamps
+     * its number on the counters it touches and skips counters already stamped, so a
+     * batch that was applied but not yet checkpointed is not counted again. A payment
+     * that changes status while this runs may end up counted twice.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildUnlessCompleted() {
+        Document checkpoint = loadCheckpoint();
+        if ((checkpoint != null && checkpoint.getBoolean("completed", false))
+                || !rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread worker = new Thread(() -> rebuild(checkpoint), "payment-rollup-rebuild");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void rebuild(Document checkpoint) {
+        Date cutoff;
+        Object lastId = null;
+        long batches = 0;
+        long payments = 0;
+        try {
+            if (checkpoint == null) {
+                // Counters written before the marker existed may come from an interrupted
+                // run, so the first checkpointed rebuild starts from empty counters
+                mongoTemplate.remove(new Query(), PaymentRollup.class);
+                cutoff = new Date();
+                saveCheckpoint(cutoff, null, 0, false);
+            } else {
+                cutoff = checkpoint.getDate("cutoff");
+                lastId = checkpoint.get("lastId");
+                batches = checkpoint.get("batches", Number.class).longValue();
+                log.info("Resuming payment rollup rebuild after _id {}", lastId);
+            }
+
+            List<Payment> batch;
+            do {
+                Criteria criteria = Criteria.where("paymentDate").lt(cutoff);
+                if (lastId != null) {
+                    criteria.and("_id").gt(lastId);
+                }
+                Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(BATCH_SIZE);
+                query.fields().include("status").include("paymentMethod").include("paymentDate")
+                        .include("amount").include("totalAmount");
+                batch = mongoTemplate.find(query, Payment.class);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                Map<String, Delta> deltas = new HashMap<>();
+                batch.forEach(payment -> add(deltas, Snapshot.of(payment), 1));
+                applyBatch(deltas, ++batches);
+                lastId = batch.get(batch.size() - 1).getId();
+                payments += batch.size();
+                saveCheckpoint(cutoff, lastId, batches, false);
+            } while (batch.size() == BATCH_SIZE);
+
+            saveCheckpoint(cutoff, lastId, batches, true);
+            log.info("Payment rollups rebuilt from {} payments in {} batches", payments, batches);
+        } catch (Exception e) {
+            log.error("Payment rollup rebuild stopped after {} payments: {}", payments, e.getMessage());
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    /**
+     * Adds one rebuild batch to the counters. The filter only matches counters not yet
+     * stamped with this batch; for a counter that exists and is stamped, the upsert fails
+     * on its duplicate _id, and so does one racing a live write that inserted the counter
+     * first. Those are retried as plain updates, which then match only in the second case.
+     */
+    private void applyBatch(Map<String, Delta> deltas, long batch) {
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PaymentRollup.class);
+        List<Query> filters = new ArrayList<>();
+        List<Update> updates = new ArrayList<>();
+        for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+            Update update = entry.getValue().toUpdate();
+            if (update != null) {
+                Query filter = new Query(Criteria.where("_id").is(entry.getKey()).and("rebuildBatch").not().gte(batch));
+                update.set("rebuildBatch", batch);
+                bulkOps.upsert(filter, update);
+                filters.add(filter);
+                updates.add(update);
+            }
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        try {
+            bulkOps.execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+            for (BulkWriteError error : e.getErrors()) {
+                mongoTemplate.updateFirst(filters.get(error.getIndex()), updates.get(error.getIndex()),
+                        PaymentRollup.class);
+            }
+        }
+    }
+
+    private Document loadCheckpoint() {
+        return mongoTemplate.findById(CHECKPOINT_ID, Document.class, CHECKPOINT_COLLECTION);
+    }
+
+    private void saveCheckpoint(Date cutoff, Object lastId, long batches, boolean completed) {
+        Document checkpoint = new Document("_id", CHECKPOINT_ID)
+                .append("cutoff", cutoff)
+                .append("lastId", lastId)
+                .append("batches", batches)
+                .append("completed", completed)
+                .append("updatedAt", new Date());
+        mongoTemplate.save(checkpoint, CHECKPOINT_COLLECTION);
+    }
+
+    private void add(Map<String, Delta> deltas, Snapshot snapshot, int sign) {
+        if (!snapshot.counted()) {
+            return;
+        }
+        LocalDateTime hour = snapshot.paymentDate.truncatedTo(ChronoUnit.HOURS);
+        deltas.computeIfAbsent(hour + "|" + snapshot.method, id -> new Delta(hour, snapshot.method))
+                .add(snapshot.status, sign, snapshot.cents);
+        deltas.computeIfAbsent(ALL_TIME + "|" + snapshot.method, id -> new Delta(null, snapshot.method))
+                .add(snapshot.status, sign, snapshot.cents);
+    }
+
+    private void apply(Map<String, Delta> deltas) {
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PaymentRollup.class);
+        int updates = 0;
+        for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+            Update update = entry.getValue().toUpdate();
+            if (update != null) {
+                bulkOps.upsert(new Query(Criteria.where("_id").is(entry.getKey())), update);
+                updates++;
+            }
+        }
+        if (updates == 0) {
+            return;
+        }
+        // The payment itself is already saved; a lost increment must not fail the request
+        try {
+            bulkOps.execute();
+        } catch (Exception e) {
+            log.error("Failed to update {} payment rollup counters: {}", updates, e.getMessage());
+        }
+    }
+
+    private static long amountInCents(Payment payment) {
+        BigDecimal amount = payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount();
+        return amount != null ? SettlementReconciliationService.toCents(amount) : 0;
+    }
+
+    private static final class Delta {
+        private final LocalDateTime hour;
+        private final Payment.PaymentMethod method;
+        private final Map<Payment.PaymentStatus, long[]> byStatus = new HashMap<>();
+
+        private Delta(LocalDateTime hour, Payment.PaymentMethod method) {
+            this.hour = hour;
+            this.method = method;
+        }
+
+        private void add(Payment.PaymentStatus status, int sign, long cents) {
+            long[] totals = byStatus.computeIfAbsent(status, key -> new long[2]);
+            totals[0] += sign;
+            totals[1] += sign * cents;
+        }
+
+        // Null when the transitions cancel out, e.g. a status set to its current value
+        private Update toUpdate() {
+            Update update = new Update();
+            byStatus.forEach((status, totals) -> {
+                if (totals[0] != 0 || totals[1] != 0) {
+                    update.inc("counts." + status.name(), totals[0]);
+                    update.inc("amountCents." + status.name(), totals[1]);
+                }
+            });
+            if (update.getUpdateObject().isEmpty()) {
+                return null;
+            }
+            update.setOnInsert("method", method);
+            if (hour != null) {
+                update.setOnInsert("hour", hour);
+            }
+            return update;
+        }
+    }
+}
\ No newline at end of file
@@ -37,7 +37,7 @@ public interface PaymentService {
     
     List<Payment> searchPayments(String query, Payment.PaymentMethod method);
     
-    List<Payment> processBatchPayments(List<Payment> payments);
+    Map<String, Object> processBatchPayments(List<Payment> payments);
     
     Map<String, Object> getPaymentGatewayHealth();
     
@@ -0,0 +1,357 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.config.WebSocketConfig;
+import com.foodcity.backend.model.Payment;
+import com.foodcity.backend.payload.WebSocketMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sliding-window velocity checks run on every payment before it reaches the gateway.
+ * Attempts are counted per card (last four digits and terminal), per customer and per
+ * cashier in fixed tables of ring buffers: each key owns a small array of time buckets
+ * holding a count and an amount, so recording and evaluating a payment is a few array
+ * writes and allocates nothing once a key has been seen. A payment that exceeds a rule
+ * is flagged and announced on the system alerts topic from a separate thread.
+ *
+ * Rules are read from payment.velocity.&lt;card|customer|cashier&gt;.{window-seconds,
+ * max-count,max-amount}; payment.velocity.block decides whether flagged payments are
+ * declined or only reported.
+ */
+@Service
+@Slf4j
+public class PaymentVelocityService {
+
+    private static final String PREFIX = "payment.velocity.";
+    private static final int BUCKETS = 12;
+    private static final int TABLE_SIZE = 1 << 14;
+    private static final int LOCK_STRIPES = 256;
+    private static final int MAX_PROBES = 8;
+    private static final int RECENT_FLAGS = 100;
+
+    public enum Dimension {
+        CARD(600, 5, 2000),
+        CUSTOMER(3600, 10, 5000),
+        CASHIER(300, 60, 20000);
+
+        private final long defaultWindowSeconds;
+        private final int defaultMaxCount;
+        private final long defaultMaxAmount;
+
+        Dimension(long defaultWindowSeconds, int defaultMaxCount, long defaultMaxAmount) {
+            this.defaultWindowSeconds = defaultWindowSeconds;
+            this.defaultMaxCount = defaultMaxCount;
+            this.defaultMaxAmount = defaultMaxAmount;
+        }
+    }
+
+    private final WebSocketService webSocketService;
+    private final boolean blockFlagged;
+    private final Map<Dimension, VelocityTable> tables = new EnumMap<>(Dimension.class);
+
+    private final Timer checkTimer;
+    private final Counter checkedPayments;
+    private final Map<Dimension, Counter> flaggedByDimension = new EnumMap<>(Dimension.class);
+    private final Deque<Map<String, Object>> recentFlags = new ArrayDeque<>();
+
+    private final ThreadPoolExecutor alertExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1000), runnable -> {
+                Thread thread = new Thread(runnable, "payment-velocity-alerts");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public PaymentVelocityService(WebSocketService webSocketService, Environment environment,
+                                  MeterRegistry meterRegistry) {
+        this.webSocketService = webSocketService;
+        this.blockFlagged = environment.getProperty(PREFIX + "block", Boolean.class, false);
+        for (Dimension dimension : Dimension.values()) {
+            String prefix = PREFIX + dimension.name().toLowerCase() + ".";
+            long windowSeconds = environment.getProperty(prefix + "window-seconds", Long.class,
+                    dimension.defaultWindowSeconds);
+            int maxCount = environment.getProperty(prefix + "max-count", Integer.class, dimension.defaultMaxCount);
+            BigDecimal maxAmount = environment.getProperty(prefix + "max-amount", BigDecimal.class,
+                    BigDecimal.valueOf(dimension.defaultMaxAmount));
+            tables.put(dimension, new VelocityTable(TimeUnit.SECONDS.toMillis(windowSeconds), maxCount,
+                    SettlementReconciliationService.toCents(maxAmount)));
+            flaggedByDimension.put(dimension, meterRegistry.counter("payment.velocity.flagged",
+                    "dimension", dimension.name().toLowerCase()));
+        }
+        this.checkTimer = Timer.builder("payment.velocity.check")
+                .description("Time spent recording and evaluating velocity rules for one payment")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.checkedPayments = meterRegistry.counter("payment.velocity.checked");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        alertExecutor.shutdownNow();
+    }
+
+    public boolean isBlockingFlagged() {
+        return blockFlagged;
+    }
+
+    /**
+     * Records the payment attempt in every window it belongs to and returns the dimensions
+     * whose limits it pushed over, or null when it passes. Flagged payments are marked and
+     * an alert is queued.
+     */
+    public List<Dimension> check(Payment payment) {
+        long started = System.nanoTime();
+        long now = System.currentTimeMillis();
+        long cents = amountInCents(payment);
+
+        Payment.CardDetails card = payment.getCardDetails();
+        boolean cardExceeded = card != null && card.getLastFourDigits() != null
+                && tables.get(Dimension.CARD).record(card.getLastFourDigits(), card.getTerminalId(), now, cents);
+        boolean customerExceeded = payment.getCustomerId() != null
+                && tables.get(Dimension.CUSTOMER).record(payment.getCustomerId(), null, now, cents);
+        boolean cashierExceeded = payment.getCashierId() != null
+                && tables.get(Dimension.CASHIER).record(payment.getCashierId(), null, now, cents);
+
+        checkedPayments.increment();
+        checkTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        if (!cardExceeded && !customerExceeded && !cashierExceeded) {
+            return null;
+        }
+
+        List<Dimension> exceeded = new ArrayList<>(3);
+        if (cardExceeded) {
+            exceeded.add(Dimension.CARD);
+        }
+        if (customerExceeded) {
+            exceeded.add(Dimension.CUSTOMER);
+        }
+        if (cashierExceeded) {
+            exceeded.add(Dimension.CASHIER);
+        }
+        flagged(payment, exceeded);
+        return exceeded;
+    }
+
+    public Map<String, Object> getReport() {
+        Map<String, Object> rules = new LinkedHashMap<>();
+        Map<String, Object> flagged = new LinkedHashMap<>();
+        tables.forEach((dimension, table) -> {
+            Map<String, Object> rule = new HashMap<>();
+            rule.put("windowSeconds", TimeUnit.MILLISECONDS.toSeconds(table.windowMillis));
+            rule.put("maxCount", table.maxCount);
+            rule.put("maxAmount", SettlementReconciliationService.toAmount(table.maxCents));
+            rule.put("trackedKeys", table.trackedKeys());
+            rules.put(dimension.name(), rule);
+            flagged.put(dimension.name(), (long) flaggedByDimension.get(dimension).count());
+        });
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("checkedPayments", (long) checkedPayments.count());
+        report.put("flaggedByDimension", flagged);
+        report.put("rules", rules);
+        report.put("blocking", blockFlagged);
+        report.put("checkLatencyMeanMicros", checkTimer.mean(TimeUnit.MICROSECONDS));
+        report.put("checkLatencyMaxMicros", checkTimer.max(TimeUnit.MICROSECONDS));
+        report.put("recentFlags", getRecentFlags().size());
+        return report;
+    }
+
+    public List<Map<String, Object>> getRecentFlags() {
+        synchronized (recentFlags) {
+            return new ArrayList<>(recentFlags);
+        }
+    }
+
+    private void flagged(Payment payment, List<Dimension> exceeded) {
+        List<String> reasons = new ArrayList<>(exceeded.size());
+        for (Dimension dimension : exceeded) {
+            reasons.add(dimension.name() + "_VELOCITY");
+            flaggedByDimension.get(dimension).increment();
+        }
+        payment.setFraudCheckFlag(true);
+        payment.setFraudReasons(reasons);
+
+        Map<String, Object> details = new HashMap<>();
+        details.put("reference", payment.getReferenceNumber());
+        details.put("customerId", payment.getCustomerId());
+        details.put("cashierId", payment.getCashierId());
+        details.put("amount", payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount());
+        details.put("reasons", reasons);
+        details.put("blocked", blockFlagged);
+        details.put("flaggedAt", LocalDateTime.now());
+        synchronized (recentFlags) {
+            if (recentFlags.size() == RECENT_FLAGS) {
+                recentFlags.removeLast();
+            }
+            recentFlags.addFirst(details);
+        }
+
+        try {
+            alertExecutor.execute(() -> {
+                WebSocketMessage message = WebSocketMessage.createAlert(WebSocketConfig.Destinations.SYSTEM_ALERTS,
+                        "Payment velocity limit exceeded: " + String.join(", ", reasons),
+                        WebSocketMessage.Priority.HIGH);
+                message.addMetadata("payment", details);
+                webSocketService.sendMessage(WebSocketConfig.Destinations.SYSTEM_ALERTS, message);
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Dropping velocity alert for payment {}, alert queue is full", payment.getReferenceNumber());
+        }
+    }
+
+    private static long amountInCents(Payment payment) {
+        BigDecimal amount = payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount();
+        return amount != null ? SettlementReconciliationService.toCents(amount) : 0;
+    }
+
+    /**
+     * Fixed-size open-addressed table of windows. A key's existing window is looked up
+     * across all its probes first; only then is a slot claimed, reusing one whose window
+     * has been idle for a full window length, or taking over the least recently used one
+     * if every probed slot is live. Lookup and claim run under a lock striped by hash, so
+     * two attempts for the same key cannot claim two slots.
+     */
+    private static final class VelocityTable {
+        private final long windowMillis;
+        private final long bucketMillis;
+        private final int maxCount;
+        private final long maxCents;
+        private final AtomicReferenceArray<Window> slots = new AtomicReferenceArray<>(TABLE_SIZE);
+        private final Object[] stripes = new Object[LOCK_STRIPES];
+
+        private VelocityTable(long windowMillis, int maxCount, long maxCents) {
+            this.windowMillis = windowMillis;
+            this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+            this.maxCount = maxCount;
+            this.maxCents = maxCents;
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                stripes[i] = new Object();
+            }
+        }
+
+        /**
+         * Adds one attempt and tells whether the key is now over either limit.
+         */
+        private boolean record(String key, String subKey, long now, long cents) {
+            int hash = key.hashCode() * 31 + (subKey != null ? subKey.hashCode() : 0);
+            hash ^= hash >>> 16;
+            synchronized (stripes[hash & (LOCK_STRIPES - 1)]) {
+                for (int probe = 0; probe < MAX_PROBES; probe++) {
+                    Window window = slots.get((hash + probe) & (TABLE_SIZE - 1));
+                    if (window == null) {
+                        // Slots are never emptied, so the key cannot own one further along
+                        break;
+                    }
+                    synchronized (window) {
+                        if (window.owns(key, subKey)) {
+                            return window.add(now, cents, this);
+                        }
+                    }
+                }
+
+                Window oldest = null;
+                for (int probe = 0; probe < MAX_PROBES; probe++) {
+                    int slot = (hash + probe) & (TABLE_SIZE - 1);
+                    Window window = slots.get(slot);
+                    if (window == null) {
+                        slots.compareAndSet(slot, null, new Window());
+                        window = slots.get(slot);
+                    }
+                    synchronized (window) {
+                        if (window.key == null || now - window.lastSeen >= windowMillis) {
+                            window.reset(key, subKey);
+                            return window.add(now, cents, this);
+                        }
+                    }
+                    if (oldest == null || window.lastSeen < oldest.lastSeen) {
+                        oldest = window;
+                    }
+                }
+                synchronized (oldest) {
+                    if (!oldest.owns(key, subKey)) {
+                        oldest.reset(key, subKey);
+                    }
+                    return oldest.add(now, cents, this);
+                }
+            }
+        }
+
+        private int trackedKeys() {
+            long now = System.currentTimeMillis();
+            int tracked = 0;
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                Window window = slots.get(i);
+                if (window != null && window.key != null && now - window.lastSeen < windowMillis) {
+                    tracked++;
+                }
+            }
+            return tracked;
+        }
+    }
+
+    private static final class Window {
+        private final long[] bucketEpochs = new long[BUCKETS];
+        private final int[] counts = new int[BUCKETS];
+        private final long[] amounts = new long[BUCKETS];
+        private volatile String key;
+        private String subKey;
+        private volatile long lastSeen;
+
+        private boolean owns(String key, String subKey) {
+            return key.equals(this.key) && (subKey == null ? this.subKey == null : subKey.equals(this.subKey));
+        }
+
+        private void reset(String key, String subKey) {
+            this.key = key;
+            this.subKey = subKey;
+            for (int i = 0; i < BUCKETS; i++) {
+                bucketEpochs[i] = -1;
+                counts[i] = 0;
+                amounts[i] = 0;
+            }
+        }
+
+        private boolean add(long now, long cents, VelocityTable table) {
+            long epoch = now / table.bucketMillis;
+            int bucket = (int) (epoch % BUCKETS);
+            if (bucketEpochs[bucket] != epoch) {
+                bucketEpochs[bucket] = epoch;
+                counts[bucket] = 0;
+                amounts[bucket] = 0;
+            }
+            counts[bucket]++;
+            amounts[bucket] += cents;
+            lastSeen = now;
+
+            int count = 0;
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (epoch - bucketEpochs[i] < BUCKETS) {
+                    count += counts[i];
+                    total += amounts[i];
+                }
+            }
+            return count > table.maxCount || total > table.maxCents;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,585 @@
+package com.foodcity.backend.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foodcity.backend.model.Payment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Takes gateway webhooks off the request thread. An accepted event is deduplicated by
+ * its event id against the ids seen within the dedupe window and put on a bounded
+ * in-memory queue; when the queue is full it is appended to a local spill file instead,
+ * so the gateway is only acknowledged once the event is either queued or on disk. A
+ * single worker drains the queue (and later the spill file) in batches and applies each
+ * batch as one bulk write of partial updates. Every update is guarded by the event time,
+ * so an event that arrives late or out of order never overwrites a newer one, and by
+ * the current status, so a webhook can only make an allowed transition: refunded,
+ * partially refunded, declined and cancelled payments are never moved again. A batch
+ * that fails to apply is spilled and retried; a spilled line that cannot be read is
+ * moved to a dead-letter file next to the spill file.
+ *
+ * Events are JSON objects with an eventId, the paymentId or the gateway transactionId,
+ * and optionally status, errorCode, errorMessage, authorizationCode and occurredAt.
+ */
+@Service
+@Slf4j
+public class PaymentWebhookQueue {
+
+    private static final int MAX_TRACKED_EVENTS = 200_000;
+    private static final TypeReference<Map<String, Object>> JSON_OBJECT = new TypeReference<>() {
+    };
+    // Statuses a webhook may move a payment out of, per target status. Repeating the
+    // current status is allowed so late details (e.g. an authorization code) still land.
+    private static final Map<Payment.PaymentStatus, Set<Payment.PaymentStatus>> ALLOWED_FROM =
+            new EnumMap<>(Payment.PaymentStatus.class);
+
+    static {
+        allow(Payment.PaymentStatus.PENDING, Payment.PaymentStatus.PENDING);
+        allow(Payment.PaymentStatus.PROCESSING,
+                Payment.PaymentStatus.PENDING, Payment.PaymentStatus.PROCESSING, Payment.PaymentStatus.FAILED);
+        allow(Payment.PaymentStatus.COMPLETED, Payment.PaymentStatus.PENDING, Payment.PaymentStatus.PROCESSING,
+                Payment.PaymentStatus.FAILED, Payment.PaymentStatus.COMPLETED);
+        allow(Payment.PaymentStatus.FAILED,
+                Payment.PaymentStatus.PENDING, Payment.PaymentStatus.PROCESSING, Payment.PaymentStatus.FAILED);
+        allow(Payment.PaymentStatus.DECLINED, Payment.PaymentStatus.PENDING, Payment.PaymentStatus.PROCESSING,
+                Payment.PaymentStatus.FAILED, Payment.PaymentStatus.DECLINED);
+        allow(Payment.PaymentStatus.CANCELLED,
+                Payment.PaymentStatus.PENDING, Payment.PaymentStatus.PROCESSING, Payment.PaymentStatus.CANCELLED);
+        allow(Payment.PaymentStatus.REFUNDED, Payment.PaymentStatus.COMPLETED, Payment.PaymentStatus.REFUNDED);
+        allow(Payment.PaymentStatus.PARTIALLY_REFUNDED,
+                Payment.PaymentStatus.COMPLETED, Payment.PaymentStatus.PARTIALLY_REFUNDED);
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final PaymentRollupService paymentRollupService;
+    private final ObjectMapper objectMapper;
+    private final byte[] secret;
+    private final int batchSize;
+    private final Duration dedupeWindow;
+    private final Path spillFile;
+    private final Path replayFile;
+    private final Path deadLetterFile;
+
+    private final BlockingQueue<Event> queue;
+    private final LinkedHashMap<String, Long> seenEvents = new LinkedHashMap<>();
+    private final Object spillLock = new Object();
+    private final AtomicLong spilledEvents = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile Thread worker;
+
+    private final Counter acceptedEvents;
+    private final Counter duplicateEvents;
+    private final Counter spilledCounter;
+    private final Counter appliedEvents;
+    private final Counter staleEvents;
+    private final Counter unmatchedEvents;
+    private final Counter rejectedEvents;
+    private final Counter deadLetters;
+    private final Timer lagTimer;
+
+    public PaymentWebhookQueue(MongoTemplate mongoTemplate,
+                               PaymentRollupService paymentRollupService,
+                               ObjectMapper objectMapper,
+                               MeterRegistry meterRegistry,
+                               @Value("${payment.webhook.secret:}") String secret,
+                               @Value("${payment.webhook.queue-capacity:10000}") int queueCapacity,
+                               @Value("${payment.webhook.batch-size:500}") int batchSize,
+                               @Value("${payment.webhook.dedupe-minutes:1440}") long dedupeMinutes,
+                               @Value("${payment.webhook.spill-file:webhooks/payment-webhooks.ndjson}") String spillFile) {
+        if (queueCapacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("payment.webhook queue-capacity and batch-size must be at least 1");
+        }
+        this.mongoTemplate = mongoTemplate;
+        this.paymentRollupService = paymentRollupService;
+        this.objectMapper = objectMapper;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.batchSize = batchSize;
+        this.dedupeWindow = Duration.ofMinutes(dedupeMinutes);
+        this.spillFile = Paths.get(spillFile);
+        this.replayFile = Paths.get(spillFile + ".replaying");
+        this.deadLetterFile = Paths.get(spillFile + ".dead");
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.acceptedEvents = meterRegistry.counter("payment.webhook.events", "result", "accepted");
+        this.duplicateEvents = meterRegistry.counter("payment.webhook.events", "result", "duplicate");
+        this.spilledCounter = meterRegistry.counter("payment.webhook.events", "result", "spilled");
+        this.appliedEvents = meterRegistry.counter("payment.webhook.events", "result", "applied");
+        this.staleEvents = meterRegistry.counter("payment.webhook.events", "result", "stale");
+        this.unmatchedEvents = meterRegistry.counter("payment.webhook.events", "result", "unmatched");
+        this.rejectedEvents = meterRegistry.counter("payment.webhook.events", "result", "rejected");
+        this.deadLetters = meterRegistry.counter("payment.webhook.events", "result", "dead_letter");
+        this.lagTimer = Timer.builder("payment.webhook.lag")
+                .description("Time from receiving a webhook to applying it")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        meterRegistry.gauge("payment.webhook.queue.depth", queue, BlockingQueue::size);
+        meterRegistry.gauge("payment.webhook.spill.depth", spilledEvents);
+    }
+
+    /**
+     * Webhooks are only taken when a shared secret is configured and the caller sends it.
+     */
+    public boolean isTrusted(String providedSecret) {
+        return secret.length > 0 && providedSecret != null
+                && MessageDigest.isEqual(secret, providedSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues one webhook and returns once it is safe to acknowledge. Returns false for an
+     * event id that was already accepted within the dedupe window.
+     */
+    public boolean accept(Map<String, Object> payload) {
+        Event event = Event.parse(payload, System.currentTimeMillis());
+        if (!firstSighting(event.eventId, event.receivedAt)) {
+            duplicateEvents.increment();
+            return false;
+        }
+        try {
+            if (!queue.offer(event)) {
+                spill(List.of(event));
+                spilledCounter.increment();
+            }
+        } catch (RuntimeException e) {
+            forget(event.eventId);
+            throw e;
+        }
+        acceptedEvents.increment();
+        return true;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() throws IOException {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        spilledEvents.set(countLines(replayFile) + countLines(spillFile));
+        worker = new Thread(this::run, "payment-webhook-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the worker and writes whatever is still queued to the spill file, which is
+     * replayed on the next start.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running.set(false);
+        Thread current = worker;
+        if (current != null) {
+            current.interrupt();
+            current.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        List<Event> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            spill(remaining);
+            log.info("Saved {} unprocessed payment webhooks to {}", remaining.size(), spillFile);
+        }
+    }
+
+    private void run() {
+        List<Event> batch = new ArrayList<>(batchSize);
+        while (running.get()) {
+            try {
+                if (queue.isEmpty() && spilledEvents.get() > 0) {
+                    replaySpill();
+                    continue;
+                }
+                Event first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                apply(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // A failed queue batch goes to the spill file; a failed replay keeps its file and is retried
+                log.error("Failed to apply payment webhooks: {}", e.getMessage());
+                if (!batch.isEmpty()) {
+                    spillFailed(batch);
+                }
+                if (!pause()) {
+                    break;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void spillFailed(List<Event> batch) {
+        try {
+            spill(batch);
+            log.info("Spilled {} payment webhooks for a later retry", batch.size());
+        } catch (UncheckedIOException e) {
+            log.error("Lost {} payment webhooks that could neither be applied nor spilled: {}",
+                    batch.size(), e.getMessage());
+        }
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(1000);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void replaySpill() throws IOException {
+        synchronized (spillLock) {
+            // Finish an interrupted replay before taking the next spill file
+            if (!Files.exists(replayFile)) {
+                if (!Files.exists(spillFile)) {
+                    spilledEvents.set(0);
+                    return;
+                }
+                Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        long replayed = 0;
+        List<Event> batch = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!StringUtils.hasText(line)) {
+                    continue;
+                }
+                Event event;
+                try {
+                    event = readSpilled(line);
+                } catch (Exception e) {
+                    deadLetter(line, e);
+                    continue;
+                }
+                batch.add(event);
+                if (batch.size() == batchSize) {
+                    apply(batch);
+                    replayed += batch.size();
+                    batch.clear();
+                }
+            }
+        }
+        apply(batch);
+        replayed += batch.size();
+        synchronized (spillLock) {
+            Files.delete(replayFile);
+            spilledEvents.set(countLines(spillFile));
+        }
+        log.info("Replayed {} spilled payment webhooks", replayed);
+    }
+
+    private void apply(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        // Keep the newest event per payment; older ones in the same batch would be overwritten anyway
+        Map<String, Event> latest = new LinkedHashMap<>();
+        for (Event event : events) {
+            latest.merge(event.key(), event, (current, candidate) ->
+                    candidate.occurredAt.isAfter(current.occurredAt) ? candidate : current);
+        }
+        staleEvents.increment(events.size() - latest.size());
+
+        List<String> ids = new ArrayList<>();
+        List<String> transactionIds = new ArrayList<>();
+        for (Event event : latest.values()) {
+            if (event.paymentId != null) {
+                ids.add(event.paymentId);
+            } else {
+                transactionIds.add(event.transactionId);
+            }
+        }
+        Query lookup = new Query(new Criteria().orOperator(
+                Criteria.where("_id").in(ids), Criteria.where("transactionId").in(transactionIds)));
+        lookup.fields().include("transactionId").include("status").include("paymentMethod")
+                .include("paymentDate").include("amount").include("totalAmount").include("lastWebhookEventAt");
+        Map<String, Payment> payments = new HashMap<>();
+        for (Payment payment : mongoTemplate.find(lookup, Payment.class)) {
+            payments.put("id:" + payment.getId(), payment);
+            if (payment.getTransactionId() != null) {
+                payments.put("tx:" + payment.getTransactionId(), payment);
+            }
+        }
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Payment.class);
+        List<PaymentRollupService.Snapshot> before = new ArrayList<>();
+        List<Payment> after = new ArrayList<>();
+        List<Event> changes = new ArrayList<>();
+        List<Long> receivedAt = new ArrayList<>();
+        for (Event event : latest.values()) {
+            Payment payment = payments.get(event.key());
+            if (payment == null) {
+                unmatchedEvents.increment();
+                log.warn("Payment webhook {} does not match a payment", event.eventId);
+                continue;
+            }
+            if (payment.getLastWebhookEventAt() != null && !event.occurredAt.isAfter(payment.getLastWebhookEventAt())) {
+                staleEvents.increment();
+                continue;
+            }
+            if (event.status != null && !ALLOWED_FROM.get(event.status).contains(payment.getStatus())) {
+                rejectedEvents.increment();
+                log.warn("Payment webhook {} would move payment {} from {} to {}", event.eventId,
+                        payment.getId(), payment.getStatus(), event.status);
+                continue;
+            }
+            Criteria guard = Criteria.where("_id").is(payment.getId());
+            if (event.status != null) {
+                guard.and("status").in(ALLOWED_FROM.get(event.status));
+            }
+            bulkOps.updateOne(new Query(new Criteria().andOperator(guard, new Criteria().orOperator(
+                            Criteria.where("lastWebhookEventAt").exists(false),
+                            Criteria.where("lastWebhookEventAt").lt(event.occurredAt)))),
+                    event.toUpdate());
+            receivedAt.add(event.receivedAt);
+            if (event.status != null && event.status != payment.getStatus()) {
+                before.add(PaymentRollupService.Snapshot.of(payment));
+                payment.setStatus(event.status);
+                after.add(payment);
+                changes.add(event);
+            }
+        }
+        if (receivedAt.isEmpty()) {
+            return;
+        }
+        int matched = bulkOps.execute().getMatchedCount();
+        long now = System.currentTimeMillis();
+        receivedAt.forEach(received -> lagTimer.record(now - received, TimeUnit.MILLISECONDS));
+        appliedEvents.increment(matched);
+        // A guard that no longer held skipped its update; those payments stay in their counters
+        staleEvents.increment(receivedAt.size() - matched);
+        if (matched < receivedAt.size() && !after.isEmpty()) {
+            List<String> written = writtenChanges(after, changes);
+            for (int i = after.size() - 1; i >= 0; i--) {
+                if (!written.contains(after.get(i).getId())) {
+                    after.remove(i);
+                    before.remove(i);
+                }
+            }
+        }
+        if (!after.isEmpty()) {
+            paymentRollupService.paymentsChanged(before, after);
+        }
+    }
+
+    // Ids of the changed payments that now carry the status and event time of their event
+    private List<String> writtenChanges(List<Payment> changed, List<Event> events) {
+        List<Criteria> written = new ArrayList<>(changed.size());
+        for (int i = 0; i < changed.size(); i++) {
+            written.add(Criteria.where("_id").is(changed.get(i).getId())
+                    .and("status").is(events.get(i).status)
+                    .and("lastWebhookEventAt").is(events.get(i).occurredAt));
+        }
+        Query query = new Query(new Criteria().orOperator(written));
+        query.fields().include("_id");
+        return mongoTemplate.find(query, Payment.class).stream()
+                .map(Payment::getId)
+                .collect(Collectors.toList());
+    }
+
+    private void spill(List<Event> events) {
+        StringBuilder lines = new StringBuilder();
+        try {
+            for (Event event : events) {
+                Map<String, Object> line = new HashMap<>();
+                line.put("receivedAt", event.receivedAt);
+                line.put("payload", event.payload);
+                lines.append(objectMapper.writeValueAsString(line)).append('\n');
+            }
+            synchronized (spillLock) {
+                Path directory = spillFile.toAbsolutePath().getParent();
+                if (directory != null) {
+                    Files.createDirectories(directory);
+                }
+                // DSYNC: the gateway is acknowledged only after the event reached the disk
+                Files.write(spillFile, lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+                spilledEvents.addAndGet(events.size());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Payment webhooks could not be written to " + spillFile, e);
+        }
+    }
+
+    // Keeps a spilled line that cannot be read out of the replay, so it is not retried forever
+    private void deadLetter(String line, Exception cause) throws IOException {
+        log.error("Moving unreadable spilled payment webhook to {}: {}", deadLetterFile, cause.getMessage());
+        Files.write(deadLetterFile, (line + '\n').getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        deadLetters.increment();
+    }
+
+    private Event readSpilled(String line) throws IOException {
+        Map<String, Object> spilled = objectMapper.readValue(line, JSON_OBJECT);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> payload = (Map<String, Object>) spilled.get("payload");
+        return Event.parse(payload, ((Number) spilled.get("receivedAt")).longValue());
+    }
+
+    private static void allow(Payment.PaymentStatus target, Payment.PaymentStatus... from) {
+        ALLOWED_FROM.put(target, EnumSet.copyOf(List.of(from)));
+    }
+
+    private synchronized boolean firstSighting(String eventId, long now) {
+        long expired = now - dedupeWindow.toMillis();
+        Iterator<Map.Entry<String, Long>> oldest = seenEvents.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<String, Long> entry = oldest.next();
+            if (entry.getValue() >= expired && seenEvents.size() < MAX_TRACKED_EVENTS) {
+                break;
+            }
+            oldest.remove();
+        }
+        return seenEvents.putIfAbsent(eventId, now) == null;
+    }
+
+    private synchronized void forget(String eventId) {
+        seenEvents.remove(eventId);
+    }
+
+    private static long countLines(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return lines.filter(StringUtils::hasText).count();
+        }
+    }
+
+    private static final class Event {
+        private final Map<String, Object> payload;
+        private final String eventId;
+        private final String paymentId;
+        private final String transactionId;
+        private final Payment.PaymentStatus status;
+        private final LocalDateTime occurredAt;
+        private final long receivedAt;
+
+        private Event(Map<String, Object> payload, long receivedAt) {
+            this.payload = payload;
+            this.eventId = text(payload, "eventId");
+            this.paymentId = text(payload, "paymentId");
+            this.transactionId = text(payload, "transactionId");
+            String statusName = text(payload, "status");
+            this.status = statusName != null ? Payment.PaymentStatus.valueOf(statusName.toUpperCase(Locale.ROOT)) : null;
+            this.occurredAt = timestamp(payload.get("occurredAt"), receivedAt);
+            this.receivedAt = receivedAt;
+        }
+
+        private static Event parse(Map<String, Object> payload, long receivedAt) {
+            if (payload == null) {
+                throw new IllegalArgumentException("Webhook body is required");
+            }
+            Event event;
+            try {
+                event = new Event(payload, receivedAt);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Webhook occurredAt is not a valid timestamp", e);
+            }
+            if (event.eventId == null) {
+                throw new IllegalArgumentException("Webhook eventId is required");
+            }
+            if (event.paymentId == null && event.transactionId == null) {
+                throw new IllegalArgumentException("Webhook must name a paymentId or transactionId");
+            }
+            return event;
+        }
+
+        private String key() {
+            return paymentId != null ? "id:" + paymentId : "tx:" + transactionId;
+        }
+
+        private Update toUpdate() {
+            Update update = new Update().set("lastWebhookEventAt", occurredAt);
+            if (status != null) {
+                update.set("status", status);
+                update.set("processedDate", occurredAt);
+            }
+            setIfPresent(update, "errorCode", "errorCode");
+            setIfPresent(update, "errorMessage", "errorMessage");
+            setIfPresent(update, "authorizationCode", "cardDetails.authorizationCode");
+            return update;
+        }
+
+        private void setIfPresent(Update update, String key, String field) {
+            String value = text(payload, key);
+            if (value != null) {
+                update.set(field, value);
+            }
+        }
+
+        private static String text(Map<String, Object> payload, String key) {
+            Object value = payload.get(key);
+            return value != null && StringUtils.hasText(value.toString()) ? value.toString() : null;
+        }
+
+        // Epoch millis, an ISO instant or offset date-time, or a local date-time
+        private static LocalDateTime timestamp(Object value, long fallback) {
+            if (value instanceof Number) {
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(((Number) value).longValue()), ZoneId.systemDefault());
+            }
+            if (value == null || !StringUtils.hasText(value.toString())) {
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(fallback), ZoneId.systemDefault());
+            }
+            String text = value.toString();
+            if (text.endsWith("Z") || text.matches(".*[+-]\\d{2}:\\d{2}$")) {
+                return OffsetDateTime.parse(text).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+            }
+            return LocalDateTime.parse(text);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,243 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Product;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.beans.BeanUtils;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Key scheme, read-through loading and targeted invalidation for the product catalog caches.
+ * Callers get their own copy of a cached product, page or list, never the cached instance,
+ * so a caller mutating its result cannot change what the next reader sees.
+ * Every write path reports the products it touched here so only the affected entries are
+ * dropped; inside a transaction that happens after commit, so a reader cannot cache the
+ * pre-commit state again.
+ */
+@Service
+@RequiredArgsConstructor
+public class ProductCatalogCache {
+
+    public static final String PRODUCTS = "products";
+    public static final String PRODUCT_PAGES = "product-pages";
+    public static final String ACTIVE_PRODUCTS = "active-products";
+
+    private static final String ALL_CATEGORIES = "*";
+    private static final String KEY_SEPARATOR = "|";
+    private static final String LAST_UPDATED = "lastUpdated";
+
+    private final CacheManager cacheManager;
+    private final MongoTemplate mongoTemplate;
+
+    // Bumped before every eviction; a load that overlapped one does not keep its result cached
+    private final AtomicLong generation = new AtomicLong();
+
+    // Start time keeps a tag handed out before a restart from matching a version after it
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<String> storedState = new AtomicReference<>();
+
+    /**
+     * ETag for any catalog response. It is kept in memory so conditional requests never
+     * touch the database: local writes bump it after commit, together with the evictions,
+     * and {@link #pollStoredCatalog()} bumps it for writes from other instances or migrations.
+     * Read it before loading the data so a concurrent write can only make the tag older
+     * than the body, never newer.
+     */
+    public String etag() {
+        return epoch + "-" + version.get();
+    }
+
+    /**
+     * Compares the newest lastUpdated plus the product count with the last poll, so a write
+     * this instance did not make (or a delete) still changes the tag within one interval.
+     */
+    @Scheduled(fixedDelayString = "${catalog.etag.poll-millis:5000}")
+    public void pollStoredCatalog() {
+        Query newest = new Query().with(Sort.by(Sort.Direction.DESC, LAST_UPDATED)).limit(1);
+        newest.fields().include(LAST_UPDATED).exclude("_id");
+        Document latest = mongoTemplate.findOne(newest, Document.class, mongoTemplate.getCollectionName(Product.class));
+        Object lastUpdated = latest != null ? latest.get(LAST_UPDATED) : null;
+        long lastUpdatedMillis = lastUpdated instanceof Date ? ((Date) lastUpdated).getTime() : 0L;
+        String state = mongoTemplate.estimatedCount(Product.class) + "-" + Long.toHexString(lastUpdatedMillis);
+        String previous = storedState.getAndSet(state);
+        if (previous != null && !previous.equals(state)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Page keys are prefixed with their category so a write only evicts the pages
+     * of that category plus the uncategorised listing.
+     */
+    public String pageKey(String category, Pageable pageable) {
+        String scope = StringUtils.hasText(category) ? category : ALL_CATEGORIES;
+        if (pageable == null || pageable.isUnpaged()) {
+            return scope + KEY_SEPARATOR + "all";
+        }
+        return scope + KEY_SEPARATOR + pageable.getPageNumber()
+                + KEY_SEPARATOR + pageable.getPageSize()
+                + KEY_SEPARATOR + pageable.getSort();
+    }
+
+    public Product product(String id, Supplier<Product> loader) {
+        return read(PRODUCTS, id, loader);
+    }
+
+    public Page<Product> page(String key, Supplier<Page<Product>> loader) {
+        return read(PRODUCT_PAGES, key, loader);
+    }
+
+    public List<Product> list(String cacheName, String key, Supplier<List<Product>> loader) {
+        return read(cacheName, key, loader);
+    }
+
+    public void productChanged(Product product) {
+        productChanged(product, product.getCategory());
+    }
+
+    public void productChanged(Product product, String previousCategory) {
+        String id = product.getId();
+        String category = product.getCategory();
+        afterCommit(() -> {
+            evictProduct(id);
+            evictCategoryPages(category);
+            if (previousCategory != null && !previousCategory.equals(category)) {
+                evictCategoryPages(previousCategory);
+            }
+            evictActiveProducts();
+            version.incrementAndGet();
+        });
+    }
+
+    public void productsChanged(Collection<String> productIds, Collection<String> categories) {
+        List<String> ids = List.copyOf(productIds);
+        List<String> categoryList = new ArrayList<>(categories);
+        afterCommit(() -> {
+            ids.forEach(this::evictProduct);
+            categoryList.forEach(this::evictCategoryPages);
+            evictActiveProducts();
+            version.incrementAndGet();
+        });
+    }
+
+    public void evictProduct(String id) {
+        Cache cache = cacheManager.getCache(PRODUCTS);
+        if (cache != null && id != null) {
+            generation.incrementAndGet();
+            cache.evict(id);
+        }
+    }
+
+    public void evictCategoryPages(String category) {
+        Cache cache = cacheManager.getCache(PRODUCT_PAGES);
+        if (!(cache instanceof CaffeineCache)) {
+            return;
+        }
+        generation.incrementAndGet();
+        String categoryPrefix = (StringUtils.hasText(category) ? category : ALL_CATEGORIES) + KEY_SEPARATOR;
+        String allPrefix = ALL_CATEGORIES + KEY_SEPARATOR;
+        ((CaffeineCache) cache).getNativeCache().asMap().keySet().removeIf(key ->
+                key.toString().startsWith(categoryPrefix) || key.toString().startsWith(allPrefix));
+    }
+
+    public void evictActiveProducts() {
+        Cache cache = cacheManager.getCache(ACTIVE_PRODUCTS);
+        if (cache != null) {
+            generation.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Read-through lookup. The loaded value is cached as a private copy, and dropped again
+     * if an eviction ran while it was loading: a put that lands after that eviction would
+     * otherwise bring the old state back for the whole TTL.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T read(String cacheName, Object key, Supplier<T> loader) {
+        Cache cache = cacheManager.getCache(cacheName);
+        if (cache == null) {
+            return loader.get();
+        }
+        Cache.ValueWrapper cached = cache.get(key);
+        if (cached != null) {
+            return (T) copy(cached.get());
+        }
+        long loadedAt = generation.get();
+        T loaded = loader.get();
+        if (loaded == null || generation.get() != loadedAt) {
+            return loaded;
+        }
+        cache.put(key, copy(loaded));
+        if (generation.get() != loadedAt) {
+            // An eviction ran between the check and the put; it may have missed this entry
+            cache.evict(key);
+        }
+        return loaded;
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof Product) {
+            return copyProduct((Product) value);
+        }
+        if (value instanceof Page) {
+            Page<?> page = (Page<?>) value;
+            return new PageImpl<>(copyList(page.getContent()), page.getPageable(), page.getTotalElements());
+        }
+        if (value instanceof List) {
+            return copyList((List<?>) value);
+        }
+        return value;
+    }
+
+    private static List<Object> copyList(List<?> values) {
+        List<Object> copies = new ArrayList<>(values.size());
+        for (Object value : values) {
+            copies.add(copy(value));
+        }
+        return copies;
+    }
+
+    // All Product fields are immutable values, so a shallow copy does not share state
+    private static Product copyProduct(Product product) {
+        Product copy = new Product();
+        BeanUtils.copyProperties(product, copy);
+        return copy;
+    }
+
+    // Inside a transaction, evicting before commit lets a concurrent reader cache the old state again
+    private static void afterCommit(Runnable eviction) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            eviction.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                eviction.run();
+            }
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.config.MongoConfig;
+import com.foodcity.backend.model.Product;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.schema.JsonSchemaObject;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts product lastUpdated/expiryDate values stored as strings into BSON dates.
+ * Runs in the background after startup, walking the collection by _id in small batches
+ * so the application keeps serving while old documents are rewritten. Strings that are
+ * not dates are moved to legacyDateValues.&lt;field&gt; so they stay available for repair
+ * without being read as dates.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ProductDateMigrationService {
+
+    private static final List<String> DATE_FIELDS = List.of("lastUpdated", "expiryDate");
+    private static final String DATE_ONLY_FIELD = "expiryDate";
+    private static final String LEGACY_VALUES = "legacyDateValues.";
+    private static final int BATCH_SIZE = 1000;
+    private static final long PAUSE_BETWEEN_BATCHES_MILLIS = 100;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong migratedDocuments = new AtomicLong();
+    private final AtomicLong skippedValues = new AtomicLong();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startMigration() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        Thread worker = new Thread(this::migrate, "product-date-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public long getMigratedDocuments() {
+        return migratedDocuments.get();
+    }
+
+    public long getSkippedValues() {
+        return skippedValues.get();
+    }
+
+    private void migrate() {
+        String collection = mongoTemplate.getCollectionName(Product.class);
+        Object lastId = null;
+        try {
+            List<Document> batch;
+            do {
+                batch = mongoTemplate.find(nextBatchQuery(lastId), Document.class, collection);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                migrateBatch(batch, collection);
+                lastId = batch.get(batch.size() - 1).get("_id");
+                log.debug("Product date migration progress - migrated: {}, skipped: {}",
+                        migratedDocuments.get(), skippedValues.get());
+                Thread.sleep(PAUSE_BETWEEN_BATCHES_MILLIS);
+            } while (batch.size() == BATCH_SIZE);
+
+            log.info("Product date migration finished - migrated: {}, skipped: {}",
+                    migratedDocuments.get(), skippedValues.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Product date migration stopped after {} documents: {}",
+                    migratedDocuments.get(), e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Query nextBatchQuery(Object lastId) {
+        Criteria stringDates = new Criteria().orOperator(DATE_FIELDS.stream()
+                .map(field -> Criteria.where(field).type(JsonSchemaObject.Type.STRING))
+                .toArray(Criteria[]::new));
+        Criteria criteria = lastId != null
+                ? new Criteria().andOperator(Criteria.where("_id").gt(lastId), stringDates)
+                : stringDates;
+
+        Query query = new Query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(BATCH_SIZE);
+        DATE_FIELDS.forEach(field -> query.fields().include(field));
+        return query;
+    }
+
+    private void migrateBatch(List<Document> batch, String collection) {
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+        int updates = 0;
+
+        for (Document document : batch) {
+            // Only overwrite values that are still the original strings, so a concurrent
+            // write that already stored a real date is never clobbered
+            Criteria filter = Criteria.where("_id").is(document.get("_id"));
+            Update update = new Update();
+            for (String field : DATE_FIELDS) {
+                Object value = document.get(field);
+                if (value instanceof String) {
+                    filter.and(field).is(value);
+                    Date converted = toDate(field, (String) value);
+                    if (converted != null) {
+                        update.set(field, converted);
+                    } else {
+                        update.set(LEGACY_VALUES + field, value).unset(field);
+                    }
+                }
+            }
+            if (!update.getUpdateObject().isEmpty()) {
+                bulkOps.updateOne(new Query(filter), update);
+                updates++;
+            }
+        }
+
+        if (updates > 0) {
+            migratedDocuments.addAndGet(bulkOps.execute().getModifiedCount());
+        }
+    }
+
+    // Null for blank and unparseable values, which are both moved aside
+    private Date toDate(String field, String value) {
+        try {
+            LocalDateTime dateTime = MongoConfig.LegacyDateStringConverter.INSTANCE.parse(value);
+            if (dateTime == null) {
+                return null;
+            }
+            if (DATE_ONLY_FIELD.equals(field)) {
+                dateTime = dateTime.toLocalDate().atStartOfDay();
+            }
+            return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
+            skippedValues.incrementAndGet();
+            log.warn("Moving unparseable product {} '{}' to {}{}", field, value, LEGACY_VALUES, field);
+            return null;
+        }
+    }
+}
\ No newline at end of file
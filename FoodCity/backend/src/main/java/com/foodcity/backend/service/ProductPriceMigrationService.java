@@ -0,0 +1,88 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Product;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.schema.JsonSchemaObject;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Converts product price/discountPrice values stored as strings or doubles into Decimal128,
+ * so range queries and sorts on price compare one BSON type. Each field is rewritten by a
+ * single server-side update pipeline; values that cannot be converted are left as they are
+ * and reported.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ProductPriceMigrationService {
+
+    private static final List<String> PRICE_FIELDS = List.of("price", "discountPrice");
+    private static final JsonSchemaObject.Type[] LEGACY_TYPES = {JsonSchemaObject.Type.STRING,
+            JsonSchemaObject.Type.DOUBLE, JsonSchemaObject.Type.INT_32, JsonSchemaObject.Type.INT_64};
+
+    private final MongoTemplate mongoTemplate;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startMigration() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        Thread worker = new Thread(this::migrate, "product-price-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    private void migrate() {
+        try {
+            for (String field : PRICE_FIELDS) {
+                Query legacy = new Query(Criteria.where(field).type(LEGACY_TYPES));
+                long converted = mongoTemplate.updateMulti(legacy, AggregationUpdate.from(List.of(toDecimal(field), touchIfConverted(field))),
+                        Product.class).getModifiedCount();
+                long remaining = mongoTemplate.count(
+                        new Query(Criteria.where(field).type(JsonSchemaObject.Type.STRING)), Product.class);
+                if (converted > 0 || remaining > 0) {
+                    log.info("Product {} migration - converted: {}, unparseable strings left: {}",
+                            field, converted, remaining);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Product price migration stopped: {}", e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // field = $convert(field to decimal), keeping the original value when it does not parse
+    private static AggregationOperation toDecimal(String field) {
+        Document convert = new Document("$convert", new Document("input", "$" + field)
+                .append("to", "decimal")
+                .append("onError", "$" + field)
+                .append("onNull", null));
+        return context -> new Document("$set", new Document(field, convert));
+    }
+
+    // Converted products get a new lastUpdated, which the catalog ETag is derived from
+    private static AggregationOperation touchIfConverted(String field) {
+        Document converted = new Document("$eq", List.of(new Document("$type", "$" + field), "decimal"));
+        return context -> new Document("$set", new Document("lastUpdated",
+                new Document("$cond", List.of(converted, "$$NOW", "$lastUpdated"))));
+    }
+}
\ No newline at end of file
@@ -37,7 +37,9 @@ public interface ProductService {
     
     List<Product> getProductsBySupplier(String supplierId);
     
-    void updateBulkPrices(List<String> productIds, Double percentageChange);
+    long updateBulkPrices(List<String> productIds, Double percentageChange, Double absoluteChange);
+    
+    long updateCategoryPrices(String category, Double percentageChange, Double absoluteChange);
     
     List<Product> getOutOfStockProducts();
     
@@ -0,0 +1,326 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.Order;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Recency/frequency/monetary segmentation computed from completed orders, aggregated per
+ * customer in the database and joined onto the full customer list.
+ * Scores are quintiles (1-5) computed per dimension in parallel. A snapshot maps every
+ * segment to a bitmap of customer ordinals, so segment sizes and membership pulls never
+ * touch the database; it is rebuilt in the background and swapped in atomically.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RfmSegmentationService {
+
+    private static final int SCORE_LEVELS = 5;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rfm-segmentation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean rebuildPending = new AtomicBoolean(false);
+
+    private volatile Snapshot current = Snapshot.EMPTY;
+
+    public enum Segment {
+        CHAMPIONS,
+        LOYAL_CUSTOMERS,
+        POTENTIAL_LOYALISTS,
+        NEW_CUSTOMERS,
+        NEEDS_ATTENTION,
+        AT_RISK,
+        HIBERNATING,
+        LOST,
+        NO_PURCHASES;
+
+        static Segment of(int recency, int frequency, int monetary) {
+            int value = Math.round((frequency + monetary) / 2.0f);
+            if (recency >= 4) {
+                return value >= 4 ? CHAMPIONS : value >= 2 ? POTENTIAL_LOYALISTS : NEW_CUSTOMERS;
+            }
+            if (recency == 3) {
+                return value >= 4 ? LOYAL_CUSTOMERS : NEEDS_ATTENTION;
+            }
+            if (value >= 3) {
+                return AT_RISK;
+            }
+            return recency == 2 ? HIBERNATING : LOST;
+        }
+    }
+
+    public void requestRebuild() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            rebuildExecutor.execute(() -> {
+                rebuildPending.set(false);
+                rebuild();
+            });
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        requestRebuild();
+    }
+
+    @Scheduled(cron = "0 0 4 * * *")
+    public void nightlyRebuild() {
+        requestRebuild();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    public LocalDateTime getComputedAt() {
+        return current.computedAt;
+    }
+
+    public int getSegmentSize(Segment segment) {
+        return current.sizes[segment.ordinal()];
+    }
+
+    public List<Map<String, Object>> getSegmentSummaries() {
+        Snapshot snapshot = current;
+        List<Map<String, Object>> summaries = new ArrayList<>();
+        for (Segment segment : Segment.values()) {
+            int size = snapshot.sizes[segment.ordinal()];
+            Map<String, Object> summary = new HashMap<>();
+            summary.put("segment", segment.name());
+            summary.put("customers", size);
+            summary.put("share", snapshot.ids.length > 0 ? (double) size / snapshot.ids.length : 0.0);
+            summary.put("computedAt", snapshot.computedAt);
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    /**
+     * Customer ids in the segment, in ordinal order, for paging through a marketing pull.
+     */
+    public List<String> getCustomerIds(Segment segment, int offset, int limit) {
+        Snapshot snapshot = current;
+        BitSet members = snapshot.members[segment.ordinal()];
+        List<String> ids = new ArrayList<>(Math.max(0, Math.min(limit, snapshot.sizes[segment.ordinal()] - offset)));
+        int ordinal = members.nextSetBit(0);
+        for (int skipped = 0; ordinal >= 0 && skipped < offset; skipped++) {
+            ordinal = members.nextSetBit(ordinal + 1);
+        }
+        while (ordinal >= 0 && ids.size() < limit) {
+            ids.add(snapshot.ids[ordinal]);
+            ordinal = members.nextSetBit(ordinal + 1);
+        }
+        return ids;
+    }
+
+    private void rebuild() {
+        try {
+            long started = System.nanoTime();
+            LocalDateTime now = LocalDateTime.now();
+
+            // Every customer gets an ordinal, buyers or not
+            Query query = new Query();
+            query.fields().include("_id");
+            List<String> ids = new ArrayList<>();
+            Map<String, Integer> ordinals = new HashMap<>();
+            try (CloseableIterator<Document> customers = mongoTemplate.stream(query, Document.class,
+                    mongoTemplate.getCollectionName(Customer.class))) {
+                while (customers.hasNext()) {
+                    String id = customers.next().get("_id").toString();
+                    ordinals.put(id, ids.size());
+                    ids.add(id);
+                }
+            }
+
+            // Left join of the completed-order aggregates onto those customers
+            Columns columns = new Columns(ids.size());
+            try (CloseableIterator<Document> rows = mongoTemplate.aggregateStream(purchasesByCustomer(),
+                    Order.class, Document.class)) {
+                while (rows.hasNext()) {
+                    Document row = rows.next();
+                    Integer ordinal = ordinals.get(String.valueOf(row.get("_id")));
+                    Object lastPurchase = row.get("lastPurchase");
+                    if (ordinal == null || !(lastPurchase instanceof Date)) {
+                        continue;
+                    }
+                    Object spent = row.get("spent");
+                    columns.set(ordinal,
+                            Duration.between(((Date) lastPurchase).toInstant(), now.atZone(ZoneId.systemDefault())).toDays(),
+                            ((Number) row.get("orders")).intValue(),
+                            spent instanceof Decimal128 ? ((Decimal128) spent).bigDecimalValue().doubleValue() : 0.0);
+                }
+            }
+
+            Snapshot snapshot = score(ids.toArray(new String[0]), columns, now);
+            current = snapshot;
+            log.info("RFM segmentation rebuilt for {} customers in {} ms",
+                    snapshot.ids.length, (System.nanoTime() - started) / 1_000_000);
+        } catch (Exception e) {
+            log.error("RFM segmentation rebuild failed, keeping snapshot from {}: {}",
+                    current.computedAt, e.getMessage());
+        }
+    }
+
+    // Last purchase, order count and spend per customer from completed orders
+    private static Aggregation purchasesByCustomer() {
+        return Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("status").is(Order.OrderStatus.COMPLETED.name())
+                        .and("customerId").ne(null)),
+                context -> new Document("$group", new Document("_id", "$customerId")
+                        .append("lastPurchase", new Document("$max", "$orderDate"))
+                        .append("orders", new Document("$sum", 1))
+                        .append("spent", new Document("$sum", new Document("$toDecimal", "$totalAmount")))))
+                .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+    }
+
+    private Snapshot score(String[] ids, Columns columns, LocalDateTime computedAt) {
+        int count = ids.length;
+        long[] recencyDays = columns.recencyDays;
+        int[] orders = columns.orders;
+        double[] monetary = columns.monetary;
+
+        // Quantile cut points only over customers who have bought something
+        int[] buyers = IntStream.range(0, count).filter(i -> orders[i] > 0 && recencyDays[i] >= 0).toArray();
+        CompletableFuture<double[]> recencyCuts = CompletableFuture.supplyAsync(
+                () -> cutPoints(buyers, i -> recencyDays[i]));
+        CompletableFuture<double[]> frequencyCuts = CompletableFuture.supplyAsync(
+                () -> cutPoints(buyers, i -> orders[i]));
+        CompletableFuture<double[]> monetaryCuts = CompletableFuture.supplyAsync(
+                () -> cutPoints(buyers, i -> monetary[i]));
+        double[] recencyBounds = recencyCuts.join();
+        double[] frequencyBounds = frequencyCuts.join();
+        double[] monetaryBounds = monetaryCuts.join();
+
+        byte[] segments = new byte[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            if (orders[i] <= 0 || recencyDays[i] < 0) {
+                segments[i] = (byte) Segment.NO_PURCHASES.ordinal();
+                return;
+            }
+            // Fewer days since the last purchase is better
+            int recency = SCORE_LEVELS + 1 - level(recencyBounds, recencyDays[i]);
+            int frequencyScore = level(frequencyBounds, orders[i]);
+            int monetaryScore = level(monetaryBounds, monetary[i]);
+            segments[i] = (byte) Segment.of(recency, frequencyScore, monetaryScore).ordinal();
+        });
+
+        Segment[] allSegments = Segment.values();
+        BitSet[] members = new BitSet[allSegments.length];
+        int[] sizes = new int[allSegments.length];
+        for (int s = 0; s < members.length; s++) {
+            members[s] = new BitSet(count);
+        }
+        for (int i = 0; i < count; i++) {
+            members[segments[i]].set(i);
+        }
+        for (int s = 0; s < members.length; s++) {
+            sizes[s] = members[s].cardinality();
+        }
+        return new Snapshot(ids, members, sizes, computedAt);
+    }
+
+    /**
+     * Upper bounds of the first four quintiles of the given values.
+     */
+    private double[] cutPoints(int[] rows, IntToDoubleFunction value) {
+        double[] sorted = new double[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            sorted[i] = value.applyAsDouble(rows[i]);
+        }
+        Arrays.parallelSort(sorted);
+        double[] bounds = new double[SCORE_LEVELS - 1];
+        for (int q = 1; q < SCORE_LEVELS; q++) {
+            bounds[q - 1] = sorted.length > 0 ? sorted[Math.min(sorted.length - 1, sorted.length * q / SCORE_LEVELS)] : 0;
+        }
+        return bounds;
+    }
+
+    // 1 for the lowest quintile up to SCORE_LEVELS for the highest
+    private static int level(double[] bounds, double value) {
+        int level = 1;
+        while (level < SCORE_LEVELS && value > bounds[level - 1]) {
+            level++;
+        }
+        return level;
+    }
+
+    private static final class Columns {
+        private final long[] recencyDays;
+        private final int[] orders;
+        private final double[] monetary;
+
+        Columns(int size) {
+            recencyDays = new long[size];
+            orders = new int[size];
+            monetary = new double[size];
+            Arrays.fill(recencyDays, -1);
+        }
+
+        void set(int ordinal, long days, int orderCount, double spent) {
+            recencyDays[ordinal] = days;
+            orders[ordinal] = orderCount;
+            monetary[ordinal] = spent;
+        }
+    }
+
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new String[0], emptyMembers(),
+                new int[Segment.values().length], null);
+
+        private final String[] ids;
+        private final BitSet[] members;
+        private final int[] sizes;
+        private final LocalDateTime computedAt;
+
+        private Snapshot(String[] ids, BitSet[] members, int[] sizes, LocalDateTime computedAt) {
+            this.ids = ids;
+            this.members = members;
+            this.sizes = sizes;
+            this.computedAt = computedAt;
+        }
+
+        private static BitSet[] emptyMembers() {
+            BitSet[] members = new BitSet[Segment.values().length];
+            Arrays.setAll(members, s -> new BitSet(0));
+            return members;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,802 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.exception.ResourceNotFoundException;
+import com.foodcity.backend.model.Payment;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciles an acquirer settlement file (CSV with a header row, one transaction per line)
+ * against the payments recorded for the same day. The file is read through memory-mapped
+ * windows and amounts are parsed straight from the mapped bytes. If the file is not already
+ * ordered by transaction id it is sorted externally into run files, and it is then
+ * merge-joined with the payments streamed from Mongo in transaction id order, so neither
+ * side is ever held in memory. Records sharing a transaction id, such as a sale and its
+ * refund, are joined as one: the charged amounts (positive rows) are compared and refund
+ * rows are counted against the transaction. Matched, mismatched and missing transactions
+ * go to CSV files.
+ */
+@Service
+@Slf4j
+public class SettlementReconciliationService {
+
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int RUN_SIZE = 200_000;
+    private static final int MAX_SAMPLES = 20;
+    private static final String PAYMENT_DATE_INDEX = "payment_date_transaction";
+    private static final List<Payment.PaymentStatus> SETTLED_STATUSES = List.of(
+            Payment.PaymentStatus.COMPLETED, Payment.PaymentStatus.REFUNDED, Payment.PaymentStatus.PARTIALLY_REFUNDED);
+
+    private final MongoTemplate mongoTemplate;
+    private final Path settlementDirectory;
+    private final String filePattern;
+    private final Path reportDirectory;
+
+    public SettlementReconciliationService(MongoTemplate mongoTemplate,
+                                           @Value("${settlement.directory:settlements}") String settlementDirectory,
+                                           @Value("${settlement.file-pattern:settlement-%s.csv}") String filePattern,
+                                           @Value("${settlement.report-directory:settlements/reports}") String reportDirectory) {
+        this.mongoTemplate = mongoTemplate;
+        this.settlementDirectory = Paths.get(settlementDirectory);
+        this.filePattern = filePattern;
+        this.reportDirectory = Paths.get(reportDirectory);
+    }
+
+    /**
+     * Totals of the settlement file for the given day, read in a single pass.
+     */
+    public Map<String, Object> settlementSummary(LocalDate date) {
+        Path file = settlementFile(date);
+        long records = 0;
+        long settledCents = 0;
+        long feeCents = 0;
+        try (SettlementCursor cursor = new SettlementCursor(file, WINDOW_SIZE)) {
+            while (cursor.next()) {
+                records++;
+                settledCents += cursor.cents();
+                feeCents += cursor.feeCents();
+            }
+            Map<String, Object> summary = new HashMap<>();
+            summary.put("date", date);
+            summary.put("settlementFile", file.toString());
+            summary.put("records", records);
+            summary.put("malformedRows", cursor.malformedRows);
+            summary.put("settledAmount", toAmount(settledCents));
+            summary.put("feeAmount", toAmount(feeCents));
+            summary.put("netAmount", toAmount(settledCents - feeCents));
+            return summary;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read settlement file " + file, e);
+        }
+    }
+
+    public Map<String, Object> reconcile(LocalDate date) {
+        long started = System.nanoTime();
+        Path file = settlementFile(date);
+        List<Path> runs = new ArrayList<>();
+        try {
+            Files.createDirectories(reportDirectory);
+            boolean sorted;
+            try (SettlementCursor cursor = new SettlementCursor(file, WINDOW_SIZE)) {
+                sorted = cursor.isSortedById();
+            }
+            if (!sorted) {
+                runs = writeSortedRuns(file);
+            }
+
+            Map<String, Object> report;
+            try (RecordSource settlements = sorted ? new SettlementCursor(file, WINDOW_SIZE) : new RunMerger(runs);
+                 PaymentSource payments = new PaymentSource(streamPayments(date));
+                 ReconciliationOutput output = new ReconciliationOutput(reportDirectory, date)) {
+                report = mergeJoin(settlements, payments, output);
+                report.put("outputFiles", output.files());
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            report.put("date", date);
+            report.put("settlementFile", file.toString());
+            report.put("settlementFileSorted", sorted);
+            report.put("sortRuns", runs.size());
+            report.put("elapsedMillis", elapsedMillis);
+            log.info("Settlement reconciliation for {} - matched: {}, mismatched: {}, missing from settlement: {}, "
+                            + "missing from payments: {} in {} ms", date, report.get("matched"), report.get("mismatched"),
+                    report.get("missingFromSettlement"), report.get("missingFromPayments"), elapsedMillis);
+            return report;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Reconciliation for " + date + " failed", e);
+        } finally {
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    log.warn("Could not delete sort run {}: {}", run, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Path settlementFile(LocalDate date) {
+        Path file = settlementDirectory.resolve(String.format(filePattern, date));
+        if (!Files.isRegularFile(file)) {
+            throw new ResourceNotFoundException("Settlement file", "date", date);
+        }
+        return file;
+    }
+
+    /**
+     * Range scan of the day on the {paymentDate, transactionId} index, so only that day's keys
+     * are read. Mongo sorts just those payments by transaction id and spills to disk when a
+     * day does not fit the in-memory sort limit.
+     */
+    private CloseableIterator<Payment> streamPayments(LocalDate date) {
+        Query query = new Query(Criteria.where("paymentDate").gte(date.atStartOfDay()).lt(date.plusDays(1).atStartOfDay())
+                .and("status").in(SETTLED_STATUSES)
+                .and("transactionId").ne(null))
+                .with(Sort.by(Sort.Direction.ASC, "transactionId"))
+                .withHint(PAYMENT_DATE_INDEX)
+                .allowDiskUse(true);
+        query.fields().include("transactionId").include("amount").include("totalAmount");
+        return mongoTemplate.stream(query, Payment.class);
+    }
+
+    private Map<String, Object> mergeJoin(RecordSource settlementRecords, RecordSource paymentRecords,
+                                          ReconciliationOutput output) throws IOException {
+        long matched = 0;
+        long mismatched = 0;
+        long missingFromSettlement = 0;
+        long missingFromPayments = 0;
+        long refundRecords = 0;
+        long settledCents = 0;
+        long paymentCents = 0;
+        List<Map<String, Object>> samples = new ArrayList<>();
+
+        TransactionGroups settlements = new TransactionGroups(settlementRecords);
+        TransactionGroups payments = new TransactionGroups(paymentRecords);
+        boolean hasSettlement = settlements.next();
+        boolean hasPayment = payments.next();
+        while (hasSettlement || hasPayment) {
+            int order = !hasSettlement ? 1 : !hasPayment ? -1 : settlements.id.compareTo(payments.id);
+            if (order < 0) {
+                missingFromPayments++;
+                settledCents += settlements.netCents();
+                output.missingFromPayments(settlements.id, settlements.netCents());
+                hasSettlement = settlements.next();
+            } else if (order > 0) {
+                missingFromSettlement++;
+                paymentCents += payments.chargedCents;
+                output.missingFromSettlement(payments.id, payments.chargedCents);
+                hasPayment = payments.next();
+            } else {
+                settledCents += settlements.netCents();
+                paymentCents += payments.chargedCents;
+                refundRecords += settlements.refundRecords;
+                if (settlements.chargedCents == payments.chargedCents) {
+                    matched++;
+                    output.matched(settlements.id, settlements.chargedCents);
+                } else {
+                    mismatched++;
+                    output.mismatched(settlements.id, settlements.chargedCents, payments.chargedCents);
+                    if (samples.size() < MAX_SAMPLES) {
+                        Map<String, Object> sample = new HashMap<>();
+                        sample.put("transactionId", settlements.id);
+                        sample.put("settledAmount", toAmount(settlements.chargedCents));
+                        sample.put("paymentAmount", toAmount(payments.chargedCents));
+                        samples.add(sample);
+                    }
+                }
+                hasSettlement = settlements.next();
+                hasPayment = payments.next();
+            }
+        }
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("matched", matched);
+        report.put("mismatched", mismatched);
+        report.put("missingFromSettlement", missingFromSettlement);
+        report.put("missingFromPayments", missingFromPayments);
+        report.put("refundRecords", refundRecords);
+        report.put("settledAmount", toAmount(settledCents));
+        report.put("paymentAmount", toAmount(paymentCents));
+        report.put("difference", toAmount(settledCents - paymentCents));
+        report.put("mismatchSamples", samples);
+        return report;
+    }
+
+    /**
+     * Sorts the file in runs of RUN_SIZE records, each written to a temporary file that
+     * the merge reads back sequentially.
+     */
+    private List<Path> writeSortedRuns(Path file) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        List<SettlementRecord> run = new ArrayList<>(RUN_SIZE);
+        try (SettlementCursor cursor = new SettlementCursor(file, WINDOW_SIZE)) {
+            while (cursor.next()) {
+                run.add(new SettlementRecord(cursor.id(), cursor.cents()));
+                if (run.size() == RUN_SIZE) {
+                    runs.add(writeRun(run));
+                    run.clear();
+                }
+            }
+            if (!run.isEmpty()) {
+                runs.add(writeRun(run));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path written : runs) {
+                Files.deleteIfExists(written);
+            }
+            throw e;
+        }
+        return runs;
+    }
+
+    private Path writeRun(List<SettlementRecord> records) throws IOException {
+        records.sort(Comparator.comparing(SettlementRecord::getId));
+        Path path = Files.createTempFile(reportDirectory, "settlement-run-", ".bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            for (SettlementRecord record : records) {
+                out.writeUTF(record.id);
+                out.writeLong(record.cents);
+            }
+        }
+        return path;
+    }
+
+    static BigDecimal toAmount(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    private interface RecordSource extends Closeable {
+        boolean next() throws IOException;
+
+        String id();
+
+        long cents();
+    }
+
+    /**
+     * Collapses consecutive records with the same transaction id into one group; positive
+     * amounts are charges and negative ones refunds. Sources are sorted by id, so every
+     * record of a transaction is consecutive.
+     */
+    private static final class TransactionGroups {
+        private final RecordSource source;
+        private boolean pending;
+        private String id;
+        private long chargedCents;
+        private long refundedCents;
+        private long refundRecords;
+
+        private TransactionGroups(RecordSource source) {
+            this.source = source;
+        }
+
+        private boolean next() throws IOException {
+            if (id == null && !pending) {
+                pending = source.next();
+            }
+            if (!pending) {
+                return false;
+            }
+            id = source.id();
+            chargedCents = 0;
+            refundedCents = 0;
+            refundRecords = 0;
+            do {
+                long cents = source.cents();
+                if (cents < 0) {
+                    refundedCents -= cents;
+                    refundRecords++;
+                } else {
+                    chargedCents += cents;
+                }
+                pending = source.next();
+            } while (pending && source.id().equals(id));
+            return true;
+        }
+
+        private long netCents() {
+            return chargedCents - refundedCents;
+        }
+    }
+
+    private static final class SettlementRecord {
+        private final String id;
+        private final long cents;
+
+        private SettlementRecord(String id, long cents) {
+            this.id = id;
+            this.cents = cents;
+        }
+
+        private String getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Walks the settlement file through read-only mapped windows. Field boundaries and
+     * amounts are taken from the mapped bytes; only the transaction id of a returned record
+     * is decoded into a String, and only when asked for. Fields may be quoted, with commas
+     * and doubled quotes inside the quotes; a field cannot span lines.
+     */
+    static final class SettlementCursor implements RecordSource {
+        private final Path path;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final long windowSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private int position;
+
+        private final int idColumn;
+        private final int amountColumn;
+        private final int feeColumn;
+
+        private int idStart;
+        private int idEnd;
+        private boolean idEscaped;
+        private long cents;
+        private long feeCents;
+        private String id;
+        private long malformedRows;
+
+        SettlementCursor(Path path, long windowSize) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.fileSize = channel.size();
+            this.windowSize = windowSize;
+            map(0);
+
+            int headerEnd = nextLineEnd();
+            if (headerEnd < 0) {
+                channel.close();
+                throw new IllegalArgumentException("Settlement file " + path + " has no header row");
+            }
+            int headerLength = trimLineEnd(0, headerEnd);
+            List<String> header = new ArrayList<>();
+            for (int from = 0; from <= headerLength; ) {
+                int to = fieldEnd(from, headerLength);
+                byte[] column = new byte[to - from];
+                window.get(from, column);
+                header.add(new String(column, StandardCharsets.UTF_8)
+                        .replace("\"", "").replace("_", "").replace(" ", "").toLowerCase(Locale.ROOT));
+                from = to + 1;
+            }
+            position = headerEnd + 1;
+            this.idColumn = header.indexOf("transactionid");
+            this.amountColumn = header.indexOf("amount");
+            this.feeColumn = header.indexOf("fee");
+            if (idColumn < 0 || amountColumn < 0) {
+                channel.close();
+                throw new IllegalArgumentException("Settlement file " + path
+                        + " needs transaction_id and amount columns, found " + header);
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                int lineEnd = nextLineEnd();
+                if (lineEnd < 0) {
+                    if (windowStart + window.limit() < fileSize) {
+                        if (position == 0) {
+                            throw new IllegalArgumentException("Settlement file " + path + " has a line longer than "
+                                    + windowSize + " bytes");
+                        }
+                        map(windowStart + position);
+                        continue;
+                    }
+                    if (position >= window.limit()) {
+                        return false;
+                    }
+                    // Last line without a trailing newline
+                    lineEnd = window.limit();
+                }
+                int start = position;
+                position = lineEnd + 1;
+                int end = trimLineEnd(start, lineEnd);
+                if (end > start && parse(start, end)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public String id() {
+            if (id == null) {
+                byte[] bytes = new byte[idEnd - idStart];
+                window.get(idStart, bytes);
+                id = new String(bytes, StandardCharsets.UTF_8);
+                if (idEscaped) {
+                    id = id.replace("\"\"", "\"");
+                }
+            }
+            return id;
+        }
+
+        @Override
+        public long cents() {
+            return cents;
+        }
+
+        long feeCents() {
+            return feeCents;
+        }
+
+        /**
+         * Compares each id with the previous one byte by byte, without decoding anything.
+         * Uses the cursor, so it has to be a fresh one.
+         */
+        private boolean isSortedById() throws IOException {
+            byte[] previous = new byte[64];
+            int previousLength = -1;
+            while (next()) {
+                if (idEscaped) {
+                    // The raw bytes of an id with doubled quotes do not sort like the id; let the external sort order it
+                    return false;
+                }
+                int length = idEnd - idStart;
+                if (previousLength >= 0 && compareToPrevious(previous, previousLength) < 0) {
+                    return false;
+                }
+                if (length > previous.length) {
+                    previous = new byte[Math.max(length, previous.length * 2)];
+                }
+                window.get(idStart, previous, 0, length);
+                previousLength = length;
+            }
+            return true;
+        }
+
+        private int compareToPrevious(byte[] previous, int previousLength) {
+            int length = idEnd - idStart;
+            int common = Math.min(length, previousLength);
+            for (int i = 0; i < common; i++) {
+                int difference = (window.get(idStart + i) & 0xff) - (previous[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - previousLength;
+        }
+
+        private boolean parse(int start, int end) {
+            id = null;
+            idEscaped = false;
+            feeCents = 0;
+            boolean hasId = false;
+            boolean hasAmount = false;
+            int column = 0;
+            int from = start;
+            while (from <= end) {
+                int to = fieldEnd(from, end);
+                int fieldStart = from;
+                from = to + 1;
+                boolean quoted = to - fieldStart >= 2 && window.get(fieldStart) == '"' && window.get(to - 1) == '"';
+                if (quoted) {
+                    fieldStart++;
+                    to--;
+                }
+                if (column == idColumn) {
+                    idStart = fieldStart;
+                    idEnd = to;
+                    idEscaped = quoted && hasDoubledQuote(fieldStart, to);
+                    hasId = to > fieldStart;
+                } else if (column == amountColumn) {
+                    cents = parseCents(fieldStart, to);
+                    hasAmount = cents != Long.MIN_VALUE;
+                } else if (column == feeColumn) {
+                    long fee = parseCents(fieldStart, to);
+                    feeCents = fee != Long.MIN_VALUE ? fee : 0;
+                }
+                column++;
+            }
+            if (!hasId || !hasAmount) {
+                malformedRows++;
+                return false;
+            }
+            return true;
+        }
+
+        // Position of the comma that ends the field starting at from, or end; commas inside quotes do not count
+        private int fieldEnd(int from, int end) {
+            boolean quoted = false;
+            for (int i = from; i < end; i++) {
+                byte b = window.get(i);
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (b == ',' && !quoted) {
+                    return i;
+                }
+            }
+            return end;
+        }
+
+        private boolean hasDoubledQuote(int from, int to) {
+            for (int i = from; i + 1 < to; i++) {
+                if (window.get(i) == '"' && window.get(i + 1) == '"') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Decimal amount to cents, rounding half up past the second decimal. Commas in the
+         * whole part are taken as thousands separators, as in a quoted "1,234.50".
+         * Returns Long.MIN_VALUE when the field is not a number.
+         */
+        private long parseCents(int from, int to) {
+            boolean negative = false;
+            if (from < to && (window.get(from) == '-' || window.get(from) == '+')) {
+                negative = window.get(from) == '-';
+                from++;
+            }
+            long units = 0;
+            int fractionDigits = -1;
+            long fraction = 0;
+            boolean roundUp = false;
+            boolean digits = false;
+            for (int i = from; i < to; i++) {
+                byte b = window.get(i);
+                if (b == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else if (b == ',' && fractionDigits < 0 && digits) {
+                    continue;
+                } else if (b >= '0' && b <= '9') {
+                    digits = true;
+                    if (fractionDigits < 0) {
+                        units = units * 10 + (b - '0');
+                    } else if (fractionDigits < 2) {
+                        fraction = fraction * 10 + (b - '0');
+                        fractionDigits++;
+                    } else if (fractionDigits == 2) {
+                        roundUp = b >= '5';
+                        fractionDigits++;
+                    }
+                } else {
+                    return Long.MIN_VALUE;
+                }
+            }
+            if (!digits) {
+                return Long.MIN_VALUE;
+            }
+            if (fractionDigits == 1) {
+                fraction *= 10;
+            }
+            long value = units * 100 + fraction + (roundUp ? 1 : 0);
+            return negative ? -value : value;
+        }
+
+        private int nextLineEnd() {
+            for (int i = position; i < window.limit(); i++) {
+                if (window.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int trimLineEnd(int start, int lineEnd) {
+            return lineEnd > start && window.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+        }
+
+        private void map(long start) throws IOException {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * K-way merge over the sorted run files.
+     */
+    private static final class RunMerger implements RecordSource {
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>(Comparator.comparing(reader -> reader.id));
+        private final List<RunReader> readers = new ArrayList<>();
+        private String id;
+        private long cents;
+
+        private RunMerger(List<Path> runs) throws IOException {
+            try {
+                for (Path run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            RunReader reader = queue.poll();
+            if (reader == null) {
+                return false;
+            }
+            id = reader.id;
+            cents = reader.cents;
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+            return true;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public long cents() {
+            return cents;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+
+    private static final class RunReader {
+        private final DataInputStream in;
+        private String id;
+        private long cents;
+
+        private RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+        }
+
+        private boolean advance() throws IOException {
+            try {
+                id = in.readUTF();
+            } catch (EOFException e) {
+                return false;
+            }
+            cents = in.readLong();
+            return true;
+        }
+    }
+
+    private static final class PaymentSource implements RecordSource {
+        private final CloseableIterator<Payment> payments;
+        private String id;
+        private long cents;
+
+        private PaymentSource(CloseableIterator<Payment> payments) {
+            this.payments = payments;
+        }
+
+        @Override
+        public boolean next() {
+            while (payments.hasNext()) {
+                Payment payment = payments.next();
+                BigDecimal amount = payment.getTotalAmount() != null ? payment.getTotalAmount() : payment.getAmount();
+                if (amount != null) {
+                    id = payment.getTransactionId();
+                    cents = toCents(amount);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public long cents() {
+            return cents;
+        }
+
+        @Override
+        public void close() {
+            payments.close();
+        }
+    }
+
+    private static final class ReconciliationOutput implements Closeable {
+        private final Path matchedFile;
+        private final Path mismatchedFile;
+        private final Path missingFile;
+        private final BufferedWriter matched;
+        private final BufferedWriter mismatched;
+        private final BufferedWriter missing;
+
+        private ReconciliationOutput(Path directory, LocalDate date) throws IOException {
+            this.matchedFile = directory.resolve("reconciliation-" + date + "-matched.csv");
+            this.mismatchedFile = directory.resolve("reconciliation-" + date + "-mismatched.csv");
+            this.missingFile = directory.resolve("reconciliation-" + date + "-missing.csv");
+            this.matched = Files.newBufferedWriter(matchedFile);
+            this.mismatched = Files.newBufferedWriter(mismatchedFile);
+            this.missing = Files.newBufferedWriter(missingFile);
+            matched.write("transaction_id,amount\n");
+            mismatched.write("transaction_id,settled_amount,payment_amount\n");
+            missing.write("transaction_id,amount,missing_from\n");
+        }
+
+        private void matched(String id, long cents) throws IOException {
+            matched.write(id + "," + toAmount(cents).toPlainString() + "\n");
+        }
+
+        private void mismatched(String id, long settledCents, long paymentCents) throws IOException {
+            mismatched.write(id + "," + toAmount(settledCents).toPlainString() + ","
+                    + toAmount(paymentCents).toPlainString() + "\n");
+        }
+
+        private void missingFromSettlement(String id, long cents) throws IOException {
+            missing.write(id + "," + toAmount(cents).toPlainString() + ",settlement\n");
+        }
+
+        private void missingFromPayments(String id, long cents) throws IOException {
+            missing.write(id + "," + toAmount(cents).toPlainString() + ",payments\n");
+        }
+
+        private Map<String, String> files() {
+            Map<String, String> files = new HashMap<>();
+            files.put("matched", matchedFile.toString());
+            files.put("mismatched", mismatchedFile.toString());
+            files.put("missing", missingFile.toString());
+            return files;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Closes all three even if one of them fails
+            try (matched; mismatched; missing) {
+                matched.flush();
+            }
+        }
+    }
+}
\ No newline at end of file
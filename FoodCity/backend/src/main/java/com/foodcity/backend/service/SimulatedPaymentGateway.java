@@ -0,0 +1,77 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.exception.PaymentGatewayException;
+import com.foodcity.backend.model.Payment;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process stand-in for gateways without a configured URL, used only under the dev
+ * and test profiles (local development, load and integration tests). It approves everything after a fixed latency, except for a
+ * configurable share of calls that fail the way an unhealthy gateway would.
+ */
+public class SimulatedPaymentGateway implements PaymentGateway {
+
+    private final String name;
+    private final Duration latency;
+    private final double failureRate;
+    private final Map<String, Response> transactions = new ConcurrentHashMap<>();
+
+    public SimulatedPaymentGateway(String name, Duration latency, double failureRate) {
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+        }
+        this.name = name;
+        this.latency = latency;
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public Response authorize(Payment payment, Duration deadline) {
+        respondWithin(deadline);
+        String transactionId = UUID.randomUUID().toString();
+        Response response = new Response(true, transactionId,
+                Integer.toString(ThreadLocalRandom.current().nextInt(100000, 1000000)), "00", "Approved");
+        transactions.put(transactionId, response);
+        return response;
+    }
+
+    @Override
+    public Response refund(Payment payment, Duration deadline) {
+        respondWithin(deadline);
+        if (payment.getTransactionId() == null || !transactions.containsKey(payment.getTransactionId())) {
+            return new Response(false, payment.getTransactionId(), null, "14", "Unknown transaction");
+        }
+        return new Response(true, UUID.randomUUID().toString(), null, "00", "Refunded");
+    }
+
+    @Override
+    public Response queryStatus(String transactionId, Duration deadline) {
+        respondWithin(deadline);
+        Response response = transactions.get(transactionId);
+        return response != null ? response : new Response(false, transactionId, null, "14", "Unknown transaction");
+    }
+
+    private void respondWithin(Duration deadline) {
+        try {
+            if (latency.compareTo(deadline) > 0) {
+                Thread.sleep(deadline.toMillis());
+                throw new PaymentGatewayException(name, PaymentGatewayException.TIMEOUT,
+                        "Gateway " + name + " did not answer in time");
+            }
+            Thread.sleep(latency.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PaymentGatewayException(name, PaymentGatewayException.UNAVAILABLE,
+                    "Interrupted while calling gateway " + name, e);
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new PaymentGatewayException(name, PaymentGatewayException.UPSTREAM_ERROR,
+                    "Simulated failure of gateway " + name);
+        }
+    }
+}
\ No newline at end of file
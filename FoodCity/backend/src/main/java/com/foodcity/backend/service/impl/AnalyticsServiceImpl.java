@@ -3,6 +3,8 @@ package com.foodcity.backend.service.impl;
 import com.foodcity.backend.model.Analytics;
 import com.foodcity.backend.repository.*;
 import com.foodcity.backend.service.AnalyticsService;
+import com.foodcity.backend.service.CoPurchaseIndexService;
+import com.foodcity.backend.service.RfmSegmentationService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
@@ -26,6 +28,10 @@ public class AnalyticsServiceImpl implements AnalyticsService {
     private final EmployeeRepository employeeRepository;
     private final PaymentRepository paymentRepository;
     private final MongoTemplate mongoTemplate;
+    private final RfmSegmentationService rfmSegmentationService;
+    private final CoPurchaseIndexService coPurchaseIndexService;
+
+    private static final int PRODUCT_PAIR_RECOMMENDATIONS = 10;
 
     @Override
     public Map<String, Object> getDashboardMetrics(LocalDateTime startDate, LocalDateTime endDate) {
@@ -219,8 +225,8 @@ public class AnalyticsServiceImpl implements AnalyticsService {
     }
 
     private List<Map<String, Object>> getCustomerSegmentation(List<Analytics> customerData) {
-        // Implementation for customer segmentation analysis
-        return new ArrayList<>();
+        // Segments are maintained from live customer purchase totals rather than the analytics snapshots
+        return rfmSegmentationService.getSegmentSummaries();
     }
 
     private double calculateCustomerRetention(List<Analytics> customerData) {
@@ -269,8 +275,8 @@ public class AnalyticsServiceImpl implements AnalyticsService {
     }
 
     private List<Map<String, Object>> generateProductRecommendations(List<Analytics> productData) {
-        // Implementation for generating product recommendations
-        return new ArrayList<>();
+        // Bundling candidates: the products most often bought together
+        return coPurchaseIndexService.topPairs(PRODUCT_PAIR_RECOMMENDATIONS);
     }
 
     private Map<String, Object> calculateEmployeePerformance(List<Analytics> employeeData) {
@@ -1,19 +1,46 @@
 package com.foodcity.backend.service.impl;
 
+import com.foodcity.backend.config.CacheConfig;
 import com.foodcity.backend.exception.ResourceNotFoundException;
+import com.foodcity.backend.model.ChurnScore;
 import com.foodcity.backend.model.Customer;
+import com.foodcity.backend.model.LoyaltyLedgerEntry;
 import com.foodcity.backend.model.Order;
+import com.foodcity.backend.payload.CustomerMergeRequest;
+import com.foodcity.backend.repository.ChurnScoreRepository;
 import com.foodcity.backend.repository.CustomerRepository;
+import com.foodcity.backend.repository.LoyaltyLedgerRepository;
 import com.foodcity.backend.repository.OrderRepository;
+import com.foodcity.backend.service.CoPurchaseIndexService;
+import com.foodcity.backend.service.CustomerLeaderboardService;
+import com.foodcity.backend.service.CustomerLookupService;
+import com.foodcity.backend.service.CustomerMergeService;
 import com.foodcity.backend.service.CustomerService;
+import com.foodcity.backend.service.CustomerTierRecalculationService;
+import com.foodcity.backend.service.LoyaltyPointsExpiryService;
+import com.foodcity.backend.service.RfmSegmentationService;
 import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.StringUtils;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
@@ -23,10 +50,26 @@ public class CustomerServiceImpl implements CustomerService {
 
     private final CustomerRepository customerRepository;
     private final OrderRepository orderRepository;
+    private final LoyaltyLedgerRepository loyaltyLedgerRepository;
+    private final ChurnScoreRepository churnScoreRepository;
+    private final MongoTemplate mongoTemplate;
+    private final LoyaltyPointsExpiryService loyaltyPointsExpiryService;
+    private final RfmSegmentationService rfmSegmentationService;
+    private final CoPurchaseIndexService coPurchaseIndexService;
+    private final CustomerLookupService customerLookupService;
+    private final CustomerLeaderboardService customerLeaderboardService;
+    private final CustomerTierRecalculationService tierRecalculationService;
+    private final CustomerMergeService customerMergeService;
+
+    private static final int DEFAULT_LEDGER_PAGE_SIZE = 20;
+    private static final int LOYALTY_POINTS_VALIDITY_MONTHS = 12;
+    private static final int RECOMMENDATION_ORDER_HISTORY = 5;
+    private static final int RECOMMENDATION_LIMIT = 10;
 
     @Override
     public Customer createCustomer(Customer customer) {
         validateNewCustomer(customer);
+        CustomerLookupService.applyLookupKeys(customer);
         customer.setRegistrationDate(LocalDateTime.now());
         customer.setActive(true);
         customer.setLoyaltyPoints(0);
@@ -57,7 +100,9 @@ public class CustomerServiceImpl implements CustomerService {
     @Override
     public Customer updateCustomer(String id, Customer customerDetails) {
         Customer customer = getCustomerById(id);
+        customerLookupService.evict(customer);
         updateCustomerFields(customer, customerDetails);
+        CustomerLookupService.applyLookupKeys(customer);
         return customerRepository.save(customer);
     }
 
@@ -66,43 +111,101 @@ public class CustomerServiceImpl implements CustomerService {
         Customer customer = getCustomerById(id);
         customer.setActive(false);
         customerRepository.save(customer);
+        customerLookupService.evict(customer);
     }
 
     @Override
     public List<Customer> searchCustomers(String query, Customer.CustomerTier tier) {
-        if (tier != null) {
-            return customerRepository.findByTierAndMinimumPoints(tier, 0);
+        if (!StringUtils.hasText(query)) {
+            return tier != null ? customerRepository.findByTierAndMinimumPoints(tier, 0) : Collections.emptyList();
         }
-        return customerRepository.searchCustomers(query);
+        List<Customer> customers = customerLookupService.search(query);
+        if (tier == null) {
+            return customers;
+        }
+        return customers.stream()
+                .filter(customer -> customer.getTier() == tier)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Optional<Customer> findCustomerForCheckout(String phone, String email) {
+        if (StringUtils.hasText(phone)) {
+            Optional<Customer> customer = customerLookupService.findByPhone(phone);
+            if (customer.isPresent() || !StringUtils.hasText(email)) {
+                return customer;
+            }
+        }
+        return customerLookupService.findByEmail(email);
     }
 
     @Override
     public Map<String, Object> getLoyaltyPointsInfo(String id) {
-        Customer customer = getCustomerById(id);
+        return getLoyaltyPointsInfo(id, PageRequest.of(0, DEFAULT_LEDGER_PAGE_SIZE));
+    }
+
+    @Override
+    public Map<String, Object> getLoyaltyPointsInfo(String id, Pageable pageable) {
+        // The legacy embedded history can be large, so leave it out of the balance read
+        Query query = new Query(Criteria.where("_id").is(id));
+        query.fields().exclude("loyaltyTransactions");
+        Customer customer = mongoTemplate.findOne(query, Customer.class);
+        if (customer == null) {
+            throw new ResourceNotFoundException("Customer", "id", id);
+        }
+
+        Page<LoyaltyLedgerEntry> transactions = loyaltyLedgerRepository.findByCustomerIdOrderByDateDesc(id, pageable);
+
         Map<String, Object> loyaltyInfo = new HashMap<>();
         loyaltyInfo.put("currentPoints", customer.getLoyaltyPoints());
         loyaltyInfo.put("tier", customer.getTier());
         loyaltyInfo.put("nextTier", getNextTier(customer.getTier()));
         loyaltyInfo.put("pointsToNextTier", getPointsToNextTier(customer));
-        loyaltyInfo.put("transactions", customer.getLoyaltyTransactions());
+        loyaltyInfo.put("transactions", transactions.getContent());
+        loyaltyInfo.put("totalTransactions", transactions.getTotalElements());
+        loyaltyInfo.put("page", transactions.getNumber());
+        loyaltyInfo.put("totalPages", transactions.getTotalPages());
         return loyaltyInfo;
     }
 
     @Override
     public Customer addLoyaltyPoints(String id, Integer points, String reason) {
-        Customer customer = getCustomerById(id);
-        customer.setLoyaltyPoints(customer.getLoyaltyPoints() + points);
-        
-        Customer.LoyaltyTransaction transaction = new Customer.LoyaltyTransaction();
-        transaction.setPoints(points);
-        transaction.setType(Customer.TransactionType.EARNED);
-        transaction.setDate(LocalDateTime.now());
-        transaction.setDescription(reason);
-        
-        customer.getLoyaltyTransactions().add(transaction);
-        
-        updateCustomerTierBasedOnPoints(customer);
-        return customerRepository.save(customer);
+        if (points == null || points == 0) {
+            throw new IllegalArgumentException("Points must be a non-zero value");
+        }
+
+        // Atomic increment so concurrent awards are never lost; a deduction only
+        // applies while the balance covers it. The ledger entry is written after the
+        // balance, so a crash in between is repaired by LoyaltyLedgerReconciliationService
+        Criteria criteria = Criteria.where("_id").is(id);
+        if (points < 0) {
+            criteria.and("loyaltyPoints").gte(-points);
+        }
+        Query query = new Query(criteria);
+        query.fields().exclude("loyaltyTransactions");
+        Customer customer = mongoTemplate.findAndModify(query,
+                new Update().inc("loyaltyPoints", points).set("lastUpdated", LocalDateTime.now()),
+                FindAndModifyOptions.options().returnNew(true),
+                Customer.class);
+        if (customer == null) {
+            getCustomerById(id);
+            throw new IllegalArgumentException("Insufficient loyalty points");
+        }
+
+        LoyaltyLedgerEntry entry = new LoyaltyLedgerEntry();
+        entry.setCustomerId(id);
+        entry.setPoints(points);
+        entry.setType(points > 0 ? Customer.TransactionType.EARNED : Customer.TransactionType.REDEEMED);
+        entry.setDate(LocalDateTime.now());
+        entry.setDescription(reason);
+        entry.setBalanceAfter(customer.getLoyaltyPoints());
+        if (points > 0) {
+            entry.setExpiryDate(entry.getDate().plusMonths(LOYALTY_POINTS_VALIDITY_MONTHS));
+        }
+        loyaltyLedgerRepository.insert(entry);
+
+        tierRecalculationService.updateTier(customer);
+        return customer;
     }
 
     @Override
@@ -117,20 +220,57 @@ public class CustomerServiceImpl implements CustomerService {
     }
 
     @Override
+    @Cacheable(CacheConfig.CUSTOMER_STATISTICS)
     public Map<String, Object> getCustomerStatistics() {
+        // One server-side pass over the collection instead of loading customers
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.facet(Aggregation.count().as("count")).as("total")
+                        .and(Aggregation.match(Criteria.where("active").is(true)),
+                                Aggregation.count().as("count")).as("active")
+                        .and(Aggregation.group("tier").count().as("count")).as("byTier")
+                        .and(Aggregation.group().avg("loyaltyPoints").as("average")).as("points"));
+        Document result = mongoTemplate.aggregate(aggregation, Customer.class, Document.class)
+                .getUniqueMappedResult();
+
+        Map<String, Integer> customersByTier = new HashMap<>();
+        for (Customer.CustomerTier tier : Customer.CustomerTier.values()) {
+            customersByTier.put(tier.name(), 0);
+        }
+        for (Document tierCount : facet(result, "byTier")) {
+            if (tierCount.get("_id") != null) {
+                customersByTier.put(tierCount.get("_id").toString(), ((Number) tierCount.get("count")).intValue());
+            }
+        }
+
         Map<String, Object> statistics = new HashMap<>();
-        statistics.put("totalCustomers", customerRepository.count());
-        statistics.put("activeCustomers", customerRepository.findByActiveTrue().size());
-        statistics.put("customersByTier", getCustomerCountByTier());
-        statistics.put("averageLoyaltyPoints", calculateAverageLoyaltyPoints());
+        statistics.put("totalCustomers", facetNumber(result, "total", "count").longValue());
+        statistics.put("activeCustomers", facetNumber(result, "active", "count").intValue());
+        statistics.put("customersByTier", customersByTier);
+        statistics.put("averageLoyaltyPoints", facetNumber(result, "points", "average").doubleValue());
         return statistics;
     }
 
     @Override
     public List<Customer> getTopCustomers(int limit) {
-        return customerRepository.findTop10ByOrderByTotalPurchasesDesc()
-                .stream()
-                .limit(limit)
+        if (!customerLeaderboardService.isLoaded()) {
+            // The board is still being built at startup
+            return topCustomersByTotalPurchases(limit);
+        }
+        List<Map<String, Object>> entries = customerLeaderboardService.top(
+                CustomerLeaderboardService.Period.ALL_TIME, null, limit);
+        if (entries.size() < limit && customerLeaderboardService.isFull(CustomerLeaderboardService.Period.ALL_TIME, null)) {
+            // Deeper than the maintained board
+            return topCustomersByTotalPurchases(limit);
+        }
+
+        List<String> ids = entries.stream()
+                .map(entry -> (String) entry.get("customerId"))
+                .collect(Collectors.toList());
+        Map<String, Customer> customers = new HashMap<>();
+        customerRepository.findAllById(ids).forEach(customer -> customers.put(customer.getId(), customer));
+        return ids.stream()
+                .map(customers::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
     }
 
@@ -184,7 +324,25 @@ public class CustomerServiceImpl implements CustomerService {
 
     @Override
     public List<Customer> getCustomersWithBirthdays(int daysAhead) {
-        return customerRepository.findCustomersWithBirthdays();
+        return mongoTemplate.find(birthdayQuery(daysAhead), Customer.class);
+    }
+
+    @Override
+    public void forEachCustomerWithBirthday(int daysAhead, Consumer<Customer> action) {
+        try (CloseableIterator<Customer> customers = mongoTemplate.stream(birthdayQuery(daysAhead), Customer.class)) {
+            customers.forEachRemaining(action);
+        }
+    }
+
+    private Query birthdayQuery(int daysAhead) {
+        if (daysAhead < 0) {
+            throw new IllegalArgumentException("daysAhead must not be negative");
+        }
+        Query query = new Query(new Criteria().andOperator(
+                CustomerLookupService.birthdaysWithin(LocalDate.now(), daysAhead),
+                Criteria.where("active").is(true)));
+        query.fields().exclude("loyaltyTransactions");
+        return query;
     }
 
     @Override
@@ -199,9 +357,13 @@ public class CustomerServiceImpl implements CustomerService {
 
     @Override
     public void updateCustomerTierBasedOnPoints(String id) {
-        Customer customer = getCustomerById(id);
-        updateCustomerTierBasedOnPoints(customer);
-        customerRepository.save(customer);
+        Query query = new Query(Criteria.where("_id").is(id));
+        query.fields().include("loyaltyPoints").include("tier");
+        Customer customer = mongoTemplate.findOne(query, Customer.class);
+        if (customer == null) {
+            throw new ResourceNotFoundException("Customer", "id", id);
+        }
+        tierRecalculationService.updateTier(customer);
     }
 
     @Override
@@ -223,15 +385,14 @@ public class CustomerServiceImpl implements CustomerService {
 
     @Override
     public void processLoyaltyPointsExpiry() {
-        List<Customer> customers = customerRepository.findCustomersWithExpiredPoints(LocalDateTime.now());
-        customers.forEach(this::processExpiredPoints);
-        customerRepository.saveAll(customers);
+        loyaltyPointsExpiryService.expireDuePoints();
     }
 
     @Override
     public Map<String, Object> getLoyaltyProgramMetrics() {
-        // Implementation for loyalty program analytics
-        return new HashMap<>();
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("pointsExpiry", loyaltyPointsExpiryService.getStatus());
+        return metrics;
     }
 
     @Override
@@ -248,19 +409,46 @@ public class CustomerServiceImpl implements CustomerService {
 
     @Override
     public void mergeCustomerAccounts(String sourceId, String targetId) {
-        // Implementation for merging customer accounts
+        customerMergeService.merge(sourceId, targetId);
+    }
+
+    @Override
+    public Map<String, Object> mergeCustomerAccounts(List<CustomerMergeRequest> pairs) {
+        return customerMergeService.mergeAll(pairs);
+    }
+
+    @Override
+    public List<CustomerMergeRequest> findDuplicateCustomers() {
+        return customerMergeService.findDuplicatePairs();
     }
 
     @Override
     public List<Map<String, Object>> getCustomerSegments() {
-        // Implementation for customer segmentation
-        return new ArrayList<>();
+        return rfmSegmentationService.getSegmentSummaries();
     }
 
     @Override
     public Map<String, Object> predictCustomerChurnRisk(String id) {
-        // Implementation for churn risk prediction
-        return new HashMap<>();
+        // Scores are computed in bulk overnight by ChurnScoringService
+        Map<String, Object> churnRisk = new HashMap<>();
+        churnRisk.put("customerId", id);
+        Optional<ChurnScore> score = churnScoreRepository.findById(id);
+        if (score.isEmpty()) {
+            if (!customerRepository.existsById(id)) {
+                throw new ResourceNotFoundException("Customer", "id", id);
+            }
+            churnRisk.put("scored", false);
+            return churnRisk;
+        }
+        churnRisk.put("scored", true);
+        churnRisk.put("score", score.get().getScore());
+        churnRisk.put("riskLevel", score.get().getRiskLevel());
+        churnRisk.put("daysSinceLastPurchase", score.get().getDaysSinceLastPurchase());
+        churnRisk.put("frequencyTrend", score.get().getFrequencyTrend());
+        churnRisk.put("basketValueTrend", score.get().getBasketValueTrend());
+        churnRisk.put("modelVersion", score.get().getModelVersion());
+        churnRisk.put("scoredAt", score.get().getScoredAt());
+        return churnRisk;
     }
 
     @Override
@@ -272,8 +460,16 @@ public class CustomerServiceImpl implements CustomerService {
 
     @Override
     public List<Map<String, Object>> getRecommendedProducts(String id) {
-        // Implementation for product recommendations
-        return new ArrayList<>();
+        // Recent purchases form the basket the co-purchase index is queried with
+        Set<String> basket = orderRepository.findByCustomerId(id,
+                        PageRequest.of(0, RECOMMENDATION_ORDER_HISTORY, Sort.by(Sort.Direction.DESC, "orderDate")))
+                .stream()
+                .filter(order -> order.getItems() != null)
+                .flatMap(order -> order.getItems().stream())
+                .map(Order.OrderItem::getProductId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        return coPurchaseIndexService.recommendForBasket(basket, RECOMMENDATION_LIMIT);
     }
 
     // Private helper methods
@@ -292,6 +488,7 @@ public class CustomerServiceImpl implements CustomerService {
         customer.setLastName(customerDetails.getLastName());
         customer.setEmail(customerDetails.getEmail());
         customer.setPhone(customerDetails.getPhone());
+        customer.setDateOfBirth(customerDetails.getDateOfBirth());
         customer.setAddress(customerDetails.getAddress());
         customer.setCity(customerDetails.getCity());
         customer.setState(customerDetails.getState());
@@ -312,17 +509,6 @@ public class CustomerServiceImpl implements CustomerService {
         return Math.max(0, nextTier.getRequiredPoints() - customer.getLoyaltyPoints());
     }
 
-    private void updateCustomerTierBasedOnPoints(Customer customer) {
-        int points = customer.getLoyaltyPoints();
-        if (points >= Customer.CustomerTier.PLATINUM.getRequiredPoints()) {
-            customer.setTier(Customer.CustomerTier.PLATINUM);
-        } else if (points >= Customer.CustomerTier.GOLD.getRequiredPoints()) {
-            customer.setTier(Customer.CustomerTier.GOLD);
-        } else if (points >= Customer.CustomerTier.SILVER.getRequiredPoints()) {
-            customer.setTier(Customer.CustomerTier.SILVER);
-        }
-    }
-
     private double calculateTotalSpent(List<Order> orders) {
         return orders.stream()
                 .mapToDouble(order -> order.getTotalAmount().doubleValue())
@@ -341,16 +527,27 @@ public class CustomerServiceImpl implements CustomerService {
                 .collect(Collectors.toList());
     }
 
-    private double calculateAverageLoyaltyPoints() {
-        List<Customer> customers = customerRepository.findAll();
-        if (customers.isEmpty()) return 0.0;
-        return customers.stream()
-                .mapToInt(Customer::getLoyaltyPoints)
-                .average()
-                .orElse(0.0);
+    // Indexed sort on totalPurchases, the order the all-time board keeps
+    private List<Customer> topCustomersByTotalPurchases(int limit) {
+        Query query = new Query().with(Sort.by(Sort.Direction.DESC, "totalPurchases")).limit(limit);
+        query.fields().exclude("loyaltyTransactions");
+        return mongoTemplate.find(query, Customer.class);
     }
 
-    private void processExpiredPoints(Customer customer) {
-        // Implementation for processing expired loyalty points
+    @SuppressWarnings("unchecked")
+    private List<Document> facet(Document result, String name) {
+        if (result == null || !(result.get(name) instanceof List)) {
+            return Collections.emptyList();
+        }
+        return (List<Document>) result.get(name);
+    }
+
+    // Empty facets (no matching customers) come back as an empty array
+    private Number facetNumber(Document result, String name, String field) {
+        List<Document> values = facet(result, name);
+        if (values.isEmpty() || !(values.get(0).get(field) instanceof Number)) {
+            return 0;
+        }
+        return (Number) values.get(0).get(field);
     }
 }
\ No newline at end of file
@@ -7,7 +7,11 @@ import com.foodcity.backend.payload.DailySummary;
 import com.foodcity.backend.payload.OrderStatistics;
 import com.foodcity.backend.repository.OrderRepository;
 import com.foodcity.backend.repository.ProductRepository;
+import com.foodcity.backend.service.CoPurchaseIndexService;
+import com.foodcity.backend.service.CustomerLeaderboardService;
+import com.foodcity.backend.service.EffectivePriceService;
 import com.foodcity.backend.service.OrderService;
+import com.foodcity.backend.service.ProductCatalogCache;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -26,10 +30,19 @@ public class OrderServiceImpl implements OrderService {
 
     private final OrderRepository orderRepository;
     private final ProductRepository productRepository;
+    private final ProductCatalogCache productCatalogCache;
+    private final EffectivePriceService effectivePriceService;
+    private final CoPurchaseIndexService coPurchaseIndexService;
+    private final CustomerLeaderboardService customerLeaderboardService;
 
     @Override
     public Order createOrder(Order order) {
-        validateOrder(order);
+        // One snapshot for the whole order so every line is priced against the same version
+        EffectivePriceService.PriceTable prices = effectivePriceService.current();
+        if (!validateOrder(order, prices)) {
+            throw new IllegalArgumentException("Order contains unknown products or invalid quantities");
+        }
+        priceOrder(order, prices);
         order.setOrderDate(LocalDateTime.now());
         order.setStatus(Order.OrderStatus.PENDING);
         updateInventoryAfterOrder(order);
@@ -58,20 +71,33 @@ public class OrderServiceImpl implements OrderService {
     @Override
     public Order updateOrderStatus(String id, Order.OrderStatus status) {
         Order order = getOrderById(id);
+        boolean completing = status == Order.OrderStatus.COMPLETED && order.getStatus() != Order.OrderStatus.COMPLETED;
+        boolean reversing = status != Order.OrderStatus.COMPLETED && order.getStatus() == Order.OrderStatus.COMPLETED;
         order.setStatus(status);
-        return orderRepository.save(order);
+        Order savedOrder = orderRepository.save(order);
+        if (completing) {
+            orderCompleted(savedOrder);
+        } else if (reversing) {
+            orderReversed(savedOrder);
+        }
+        return savedOrder;
     }
 
     @Override
     public Order refundOrder(String id, String reason) {
         Order order = getOrderById(id);
+        boolean reversing = order.getStatus() == Order.OrderStatus.COMPLETED;
         order.setStatus(Order.OrderStatus.REFUNDED);
         order.setRefunded(true);
         order.setRefundDate(LocalDateTime.now());
         order.setRefundReason(reason);
         // Reverse inventory changes
         reverseInventoryChanges(order);
-        return orderRepository.save(order);
+        Order savedOrder = orderRepository.save(order);
+        if (reversing) {
+            orderReversed(savedOrder);
+        }
+        return savedOrder;
     }
 
     @Override
@@ -118,8 +144,17 @@ public class OrderServiceImpl implements OrderService {
     @Override
     public List<Order> bulkUpdateOrderStatus(List<String> orderIds, Order.OrderStatus status) {
         List<Order> orders = orderRepository.findAllById(orderIds);
+        List<Order> completing = orders.stream()
+                .filter(order -> status == Order.OrderStatus.COMPLETED && order.getStatus() != Order.OrderStatus.COMPLETED)
+                .collect(Collectors.toList());
+        List<Order> reversing = orders.stream()
+                .filter(order -> status != Order.OrderStatus.COMPLETED && order.getStatus() == Order.OrderStatus.COMPLETED)
+                .collect(Collectors.toList());
         orders.forEach(order -> order.setStatus(status));
-        return orderRepository.saveAll(orders);
+        List<Order> savedOrders = orderRepository.saveAll(orders);
+        completing.forEach(this::orderCompleted);
+        reversing.forEach(this::orderReversed);
+        return savedOrders;
     }
 
     @Override
@@ -252,14 +287,15 @@ public class OrderServiceImpl implements OrderService {
             Product product = productRepository.findById(item.getProductId())
                     .orElseThrow(() -> new ResourceNotFoundException("Product", "id", item.getProductId()));
             product.setStockQuantity(product.getStockQuantity() - item.getQuantity());
+            product.setLastUpdated(LocalDateTime.now());
             productRepository.save(product);
+            productCatalogCache.productChanged(product);
         });
     }
 
     @Override
     public boolean validateOrder(Order order) {
-        // Validate order items, quantities, and prices
-        return true;
+        return validateOrder(order, effectivePriceService.current());
     }
 
     @Override
@@ -276,12 +312,71 @@ public class OrderServiceImpl implements OrderService {
                 LocalDateTime.now().minusHours(1));
     }
 
+    private boolean validateOrder(Order order, EffectivePriceService.PriceTable prices) {
+        if (order.getItems() == null || order.getItems().isEmpty()) {
+            return false;
+        }
+        for (Order.OrderItem item : order.getItems()) {
+            if (item.getQuantity() == null || item.getQuantity() <= 0) {
+                return false;
+            }
+            if (unitPriceInCents(item.getProductId(), prices) == EffectivePriceService.NO_PRICE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void priceOrder(Order order, EffectivePriceService.PriceTable prices) {
+        long subtotalCents = 0;
+        for (Order.OrderItem item : order.getItems()) {
+            long unitCents = unitPriceInCents(item.getProductId(), prices);
+            long lineCents = Math.multiplyExact(unitCents, item.getQuantity().longValue());
+            item.setUnitPrice(BigDecimal.valueOf(unitCents, 2));
+            item.setTotalPrice(BigDecimal.valueOf(lineCents, 2));
+            subtotalCents = Math.addExact(subtotalCents, lineCents);
+        }
+
+        BigDecimal subtotal = BigDecimal.valueOf(subtotalCents, 2);
+        order.setSubtotal(subtotal);
+        order.setTotalAmount(subtotal
+                .subtract(order.getDiscountAmount() != null ? order.getDiscountAmount() : BigDecimal.ZERO)
+                .add(order.getTax() != null ? order.getTax() : BigDecimal.ZERO));
+        order.setPriceVersion(prices.getVersion());
+    }
+
+    private long unitPriceInCents(String productId, EffectivePriceService.PriceTable prices) {
+        long cents = prices.priceInCents(productId);
+        if (cents != EffectivePriceService.NO_PRICE || productId == null) {
+            return cents;
+        }
+        // Products created after the snapshot was built are priced from the database
+        return productRepository.findById(productId)
+                .filter(Product::isActive)
+                .map(EffectivePriceService::effectivePriceInCents)
+                .orElse(EffectivePriceService.NO_PRICE);
+    }
+
+    // Feeds the structures maintained from completed orders
+    private void orderCompleted(Order order) {
+        coPurchaseIndexService.recordOrder(order);
+        customerLeaderboardService.recordCompletedOrder(order);
+    }
+
+    // Takes a completed order that was cancelled or refunded back out of the same structures
+    private void orderReversed(Order order) {
+        coPurchaseIndexService.removeOrder(order);
+        customerLeaderboardService.recordReversedOrder(order);
+    }
+
     private void reverseInventoryChanges(Order order) {
         order.getItems().forEach(item -> {
             Product product = productRepository.findById(item.getProductId())
                     .orElseThrow(() -> new ResourceNotFoundException("Product", "id", item.getProductId()));
             product.setStockQuantity(product.getStockQuantity() + item.getQuantity());
+            product.setLastUpdated(LocalDateTime.now());
             productRepository.save(product);
+            productCatalogCache.productChanged(product);
         });
     }
 
@@ -1,10 +1,24 @@
 package com.foodcity.backend.service.impl;
 
+import com.foodcity.backend.exception.PaymentGatewayException;
 import com.foodcity.backend.exception.ResourceNotFoundException;
 import com.foodcity.backend.model.Payment;
+import com.foodcity.backend.model.PaymentRollup;
 import com.foodcity.backend.repository.PaymentRepository;
+import com.foodcity.backend.service.PaymentBatchProcessor;
+import com.foodcity.backend.service.PaymentGateway;
+import com.foodcity.backend.service.PaymentGatewayClient;
+import com.foodcity.backend.service.PaymentRefundPipeline;
+import com.foodcity.backend.service.PaymentRetryScheduler;
+import com.foodcity.backend.service.PaymentRollupService;
 import com.foodcity.backend.service.PaymentService;
+import com.foodcity.backend.service.PaymentVelocityService;
+import com.foodcity.backend.service.PaymentWebhookQueue;
+import com.foodcity.backend.service.SettlementReconciliationService;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
@@ -15,29 +29,40 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 @Service
+@Slf4j
 @RequiredArgsConstructor
 @Transactional
 public class PaymentServiceImpl implements PaymentService {
 
     private final PaymentRepository paymentRepository;
+    private final PaymentBatchProcessor paymentBatchProcessor;
+    private final PaymentGatewayClient paymentGatewayClient;
+    private final SettlementReconciliationService settlementReconciliationService;
+    private final PaymentVelocityService paymentVelocityService;
+    private final PaymentRollupService paymentRollupService;
+    private final PaymentRefundPipeline paymentRefundPipeline;
+    private final PaymentWebhookQueue paymentWebhookQueue;
+    private final PaymentRetryScheduler paymentRetryScheduler;
 
     @Override
     public Payment processPayment(Payment payment) {
-        validatePayment(payment);
-        payment.setPaymentDate(LocalDateTime.now());
-        payment.setStatus(Payment.PaymentStatus.PENDING);
-        
-        try {
-            // Process payment through payment gateway
-            processPaymentWithGateway(payment);
-            payment.setStatus(Payment.PaymentStatus.COMPLETED);
-        } catch (Exception e) {
-            payment.setStatus(Payment.PaymentStatus.FAILED);
-            payment.setErrorCode("GATEWAY_ERROR");
-            payment.setErrorMessage(e.getMessage());
-        }
-        
-        return paymentRepository.save(payment);
+        authorizePayment(payment);
+        paymentRetryScheduler.planRetry(payment);
+        Payment savedPayment = paymentRepository.save(payment);
+        paymentRollupService.paymentCreated(savedPayment);
+        paymentRetryScheduler.enqueue(List.of(savedPayment));
+        return savedPayment;
+    }
+
+    /**
+     * Starts the automatic retries and queues the payments left failed, or stuck pending,
+     * by the previous run. Stuck payments are retried with their original reference
+     * number, which the gateways use as the idempotency key.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startPaymentRetries() {
+        paymentRetryScheduler.start(this::retry);
+        paymentRetryScheduler.recover();
     }
 
     @Override
@@ -63,21 +88,8 @@ public class PaymentServiceImpl implements PaymentService {
 
     @Override
     public Payment refundPayment(String id, String reason) {
-        Payment payment = getPaymentById(id);
-        validateRefund(payment);
-        
-        try {
-            // Process refund through payment gateway
-            processRefundWithGateway(payment);
-            payment.setRefundStatus(Payment.RefundStatus.COMPLETED);
-            payment.setRefundDate(LocalDateTime.now());
-            payment.setRefundReason(reason);
-        } catch (Exception e) {
-            payment.setRefundStatus(Payment.RefundStatus.FAILED);
-            payment.setErrorMessage(e.getMessage());
-        }
-        
-        return paymentRepository.save(payment);
+        paymentRefundPipeline.enqueue(id, reason);
+        return paymentRefundPipeline.processNow(id);
     }
 
     @Override
@@ -85,41 +97,55 @@ public class PaymentServiceImpl implements PaymentService {
         LocalDateTime startOfDay = date.toLocalDate().atStartOfDay();
         LocalDateTime endOfDay = startOfDay.plusDays(1);
         
-        List<Payment> payments = paymentRepository.findByPaymentDateBetween(startOfDay, endOfDay);
+        List<PaymentRollup> rollups = paymentRollupService.findHourly(startOfDay, endOfDay);
         
         Map<String, Object> summary = new HashMap<>();
-        summary.put("totalTransactions", payments.size());
-        summary.put("totalAmount", calculateTotalAmount(payments));
-        summary.put("successfulTransactions", countByStatus(payments, Payment.PaymentStatus.COMPLETED));
-        summary.put("failedTransactions", countByStatus(payments, Payment.PaymentStatus.FAILED));
-        summary.put("paymentMethodBreakdown", getPaymentMethodBreakdown(payments));
+        summary.put("totalTransactions", totalCount(rollups));
+        summary.put("totalAmount", calculateTotalAmount(rollups));
+        summary.put("successfulTransactions", countByStatus(rollups, Payment.PaymentStatus.COMPLETED));
+        summary.put("failedTransactions", countByStatus(rollups, Payment.PaymentStatus.FAILED));
+        summary.put("paymentMethodBreakdown", getPaymentMethodBreakdown(rollups));
         
         return summary;
     }
 
     @Override
     public Map<String, Object> getPaymentStatistics(LocalDateTime startDate, LocalDateTime endDate) {
-        List<Payment> payments = paymentRepository.findByPaymentDateBetween(startDate, endDate);
+        List<PaymentRollup> rollups = paymentRollupService.findHourly(startDate, endDate);
         
         Map<String, Object> statistics = new HashMap<>();
-        statistics.put("totalRevenue", calculateTotalAmount(payments));
-        statistics.put("averageTransactionValue", calculateAverageTransactionValue(payments));
-        statistics.put("successRate", calculateSuccessRate(payments));
-        statistics.put("methodDistribution", getPaymentMethodDistribution(payments));
+        statistics.put("totalRevenue", calculateTotalAmount(rollups));
+        statistics.put("averageTransactionValue", calculateAverageTransactionValue(rollups));
+        statistics.put("successRate", calculateSuccessRate(rollups));
+        statistics.put("methodDistribution", getPaymentMethodDistribution(rollups));
         
         return statistics;
     }
 
     @Override
     public Map<String, Object> getPaymentMethodsSummary(LocalDateTime startDate, LocalDateTime endDate) {
-        List<Payment> payments = paymentRepository.findByPaymentDateBetween(startDate, endDate);
-        return getPaymentMethodBreakdown(payments);
+        return getPaymentMethodBreakdown(paymentRollupService.findHourly(startDate, endDate));
     }
 
+    /**
+     * Confirms a completed payment, named by paymentId, with the gateway that authorized
+     * it. Cash and loyalty point payments never reach a gateway and only need to be completed.
+     */
     @Override
     public boolean verifyPayment(Map<String, Object> paymentDetails) {
-        // Implementation for payment verification
-        return true;
+        Object paymentId = paymentDetails.get("paymentId");
+        if (paymentId == null) {
+            throw new IllegalArgumentException("paymentId is required");
+        }
+        Payment payment = getPaymentById(paymentId.toString());
+        if (payment.getStatus() != Payment.PaymentStatus.COMPLETED) {
+            return false;
+        }
+        if (!PaymentGatewayClient.requiresGateway(payment)) {
+            return true;
+        }
+        return payment.getTransactionId() != null && paymentGatewayClient.queryStatus(
+                PaymentBatchProcessor.gatewayOf(payment), payment.getTransactionId()).isApproved();
     }
 
     @Override
@@ -130,16 +156,12 @@ public class PaymentServiceImpl implements PaymentService {
 
     @Override
     public Payment retryPayment(String id) {
-        Payment payment = getPaymentById(id);
-        payment.setRetryCount(payment.getRetryCount() + 1);
-        return processPayment(payment);
+        return retry(getPaymentById(id));
     }
 
     @Override
     public Map<String, Object> getReconciliationReport(LocalDateTime date) {
-        List<Payment> payments = paymentRepository.findPaymentsNeedingReconciliation(date);
-        // Implementation for reconciliation report
-        return new HashMap<>();
+        return settlementReconciliationService.reconcile(date.toLocalDate());
     }
 
     @Override
@@ -157,16 +179,18 @@ public class PaymentServiceImpl implements PaymentService {
     }
 
     @Override
-    public List<Payment> processBatchPayments(List<Payment> payments) {
-        return payments.stream()
-                .map(this::processPayment)
-                .collect(Collectors.toList());
+    public Map<String, Object> processBatchPayments(List<Payment> payments) {
+        Map<String, Object> report = paymentBatchProcessor.process(payments, payment -> {
+            authorizePayment(payment);
+            paymentRetryScheduler.planRetry(payment);
+        });
+        paymentRetryScheduler.enqueue(payments);
+        return report;
     }
 
     @Override
     public Map<String, Object> getPaymentGatewayHealth() {
-        // Implementation for gateway health check
-        return new HashMap<>();
+        return paymentGatewayClient.health();
     }
 
     @Override
@@ -187,25 +211,22 @@ public class PaymentServiceImpl implements PaymentService {
 
     @Override
     public Map<String, Double> getRevenueByPaymentMethod() {
-        List<Payment> payments = paymentRepository.findByStatus(Payment.PaymentStatus.COMPLETED);
-        return payments.stream()
-                .collect(Collectors.groupingBy(
-                        payment -> payment.getPaymentMethod().toString(),
-                        Collectors.summingDouble(payment -> payment.getAmount().doubleValue())
+        return paymentRollupService.findAllTime().stream()
+                .filter(rollup -> rollup.getMethod() != null)
+                .collect(Collectors.toMap(
+                        rollup -> rollup.getMethod().toString(),
+                        rollup -> toAmount(rollup.amountCents(Payment.PaymentStatus.COMPLETED))
                 ));
     }
 
     @Override
     public void processRefunds() {
-        List<Payment> pendingRefunds = paymentRepository.findByRefundStatusAndRefundRequestDateBefore(
-                Payment.RefundStatus.PENDING, LocalDateTime.now());
-        pendingRefunds.forEach(payment -> refundPayment(payment.getId(), null));
+        paymentRefundPipeline.drain();
     }
 
     @Override
     public Map<String, Object> getFraudDetectionReport() {
-        // Implementation for fraud detection
-        return new HashMap<>();
+        return paymentVelocityService.getReport();
     }
 
     @Override
@@ -222,8 +243,9 @@ public class PaymentServiceImpl implements PaymentService {
     @Override
     public void updatePaymentStatus(String id, Payment.PaymentStatus status) {
         Payment payment = getPaymentById(id);
+        PaymentRollupService.Snapshot before = PaymentRollupService.Snapshot.of(payment);
         payment.setStatus(status);
-        paymentRepository.save(payment);
+        paymentRollupService.paymentChanged(before, paymentRepository.save(payment));
     }
 
     @Override
@@ -250,13 +272,12 @@ public class PaymentServiceImpl implements PaymentService {
 
     @Override
     public List<Map<String, Object>> getPaymentAnomalies() {
-        // Implementation for anomaly detection
-        return new ArrayList<>();
+        return paymentVelocityService.getRecentFlags();
     }
 
     @Override
     public void handlePaymentWebhook(Map<String, Object> webhookData) {
-        // Implementation for webhook handling
+        paymentWebhookQueue.accept(webhookData);
     }
 
     @Override
@@ -272,8 +293,7 @@ public class PaymentServiceImpl implements PaymentService {
 
     @Override
     public Map<String, Object> getSettlementReport(LocalDateTime date) {
-        // Implementation for settlement reporting
-        return new HashMap<>();
+        return settlementReconciliationService.settlementSummary(date.toLocalDate());
     }
 
     @Override
@@ -289,70 +309,154 @@ public class PaymentServiceImpl implements PaymentService {
 
     // Private helper methods
 
-    private void processPaymentWithGateway(Payment payment) {
-        // Implementation for gateway integration
+    /**
+     * Shared by manual and scheduled retries; a pending scheduled retry is replaced by the
+     * new plan. If the payment changed while the gateway was called, the attempt is not
+     * written and the payment is returned as stored.
+     */
+    private Payment retry(Payment payment) {
+        if (!paymentRetryScheduler.canRetry(payment)) {
+            throw new IllegalStateException("Payment " + payment.getId() + " cannot be retried: status "
+                    + payment.getStatus() + (payment.getErrorCode() != null ? ", error " + payment.getErrorCode() : ""));
+        }
+        PaymentRollupService.Snapshot before = PaymentRollupService.Snapshot.of(payment);
+        Payment.PaymentStatus previousStatus = payment.getStatus();
+        int previousRetryCount = payment.getRetryCount();
+        payment.setRetryCount(previousRetryCount + 1);
+        authorizePayment(payment, true);
+        paymentRetryScheduler.planRetry(payment);
+        if (!paymentRetryScheduler.saveAttempt(payment, previousStatus, previousRetryCount)) {
+            log.warn("Payment {} changed during its retry, attempt with transaction {} not recorded",
+                    payment.getId(), payment.getTransactionId());
+            return getPaymentById(payment.getId());
+        }
+        paymentRollupService.paymentChanged(before, payment);
+        paymentRetryScheduler.enqueue(List.of(payment));
+        return payment;
     }
 
-    private void processRefundWithGateway(Payment payment) {
-        // Implementation for refund processing
+    private void authorizePayment(Payment payment) {
+        authorizePayment(payment, false);
     }
 
-    private void validateRefund(Payment payment) {
-        if (payment.getStatus() != Payment.PaymentStatus.COMPLETED) {
-            throw new IllegalStateException("Payment must be completed to process refund");
+    // A retry is the same payment again, so it is not counted against the velocity limits twice
+    private void authorizePayment(Payment payment, boolean retry) {
+        validatePayment(payment);
+        payment.setPaymentDate(LocalDateTime.now());
+        payment.setStatus(Payment.PaymentStatus.PENDING);
+        if (payment.getReferenceNumber() == null) {
+            // Sent as the idempotency key, so a retried request is not charged twice
+            payment.setReferenceNumber(UUID.randomUUID().toString());
+        }
+
+        List<PaymentVelocityService.Dimension> exceeded = retry ? null : paymentVelocityService.check(payment);
+        if (exceeded != null && paymentVelocityService.isBlockingFlagged()) {
+            payment.setStatus(Payment.PaymentStatus.DECLINED);
+            payment.setErrorCode("VELOCITY_LIMIT");
+            payment.setErrorMessage("Velocity limit exceeded for " + exceeded);
+            return;
+        }
+
+        try {
+            // Process payment through payment gateway
+            processPaymentWithGateway(payment);
+            payment.setStatus(Payment.PaymentStatus.COMPLETED);
+            payment.setProcessedDate(LocalDateTime.now());
+        } catch (PaymentGatewayException e) {
+            payment.setStatus(PaymentGatewayException.DECLINED.equals(e.getCode())
+                    ? Payment.PaymentStatus.DECLINED
+                    : Payment.PaymentStatus.FAILED);
+            payment.setErrorCode(e.getCode());
+            payment.setErrorMessage(e.getMessage());
+        } catch (Exception e) {
+            payment.setStatus(Payment.PaymentStatus.FAILED);
+            payment.setErrorCode("GATEWAY_ERROR");
+            payment.setErrorMessage(e.getMessage());
+        }
+    }
+
+    private void processPaymentWithGateway(Payment payment) {
+        if (!PaymentGatewayClient.requiresGateway(payment)) {
+            return;
         }
-        if (payment.getRefundStatus() == Payment.RefundStatus.COMPLETED) {
-            throw new IllegalStateException("Payment has already been refunded");
+        payment.setPaymentGateway(PaymentBatchProcessor.gatewayOf(payment));
+        PaymentGateway.Response response = paymentGatewayClient.authorize(payment);
+        payment.setTransactionId(response.getTransactionId());
+        if (payment.getCardDetails() != null) {
+            payment.getCardDetails().setAuthorizationCode(response.getAuthorizationCode());
         }
+        if (!response.isApproved()) {
+            throw new PaymentGatewayException(payment.getPaymentGateway(), PaymentGatewayException.DECLINED,
+                    response.getMessage() != null ? response.getMessage() : "Declined by the gateway");
+        }
+    }
+
+    private double toAmount(long cents) {
+        return cents / 100.0;
     }
 
-    private double calculateTotalAmount(List<Payment> payments) {
-        return payments.stream()
-                .filter(p -> p.getStatus() == Payment.PaymentStatus.COMPLETED)
-                .mapToDouble(p -> p.getAmount().doubleValue())
+    private long totalCount(List<PaymentRollup> rollups) {
+        return rollups.stream()
+                .mapToLong(PaymentRollup::totalCount)
                 .sum();
     }
 
-    private long countByStatus(List<Payment> payments, Payment.PaymentStatus status) {
-        return payments.stream()
-                .filter(p -> p.getStatus() == status)
-                .count();
+    private double calculateTotalAmount(List<PaymentRollup> rollups) {
+        return toAmount(rollups.stream()
+                .mapToLong(rollup -> rollup.amountCents(Payment.PaymentStatus.COMPLETED))
+                .sum());
+    }
+
+    private long countByStatus(List<PaymentRollup> rollups, Payment.PaymentStatus status) {
+        return rollups.stream()
+                .mapToLong(rollup -> rollup.count(status))
+                .sum();
     }
 
-    private Map<String, Object> getPaymentMethodBreakdown(List<Payment> payments) {
-        return payments.stream()
+    private Map<String, Object> getPaymentMethodBreakdown(List<PaymentRollup> rollups) {
+        return rollups.stream()
+                .filter(rollup -> rollup.getMethod() != null)
                 .collect(Collectors.groupingBy(
-                        payment -> payment.getPaymentMethod().toString(),
+                        rollup -> rollup.getMethod().toString(),
                         Collectors.collectingAndThen(
-                                Collectors.summarizingDouble(p -> p.getAmount().doubleValue()),
-                                summary -> Map.of(
-                                        "count", summary.getCount(),
-                                        "total", summary.getSum(),
-                                        "average", summary.getAverage()
-                                )
+                                Collectors.toList(),
+                                methodRollups -> {
+                                    long count = totalCount(methodRollups);
+                                    double total = toAmount(methodRollups.stream()
+                                            .mapToLong(PaymentRollup::totalAmountCents)
+                                            .sum());
+                                    return Map.of(
+                                            "count", count,
+                                            "total", total,
+                                            "average", count > 0 ? total / count : 0.0
+                                    );
+                                }
                         )
                 ));
     }
 
-    private double calculateAverageTransactionValue(List<Payment> payments) {
-        if (payments.isEmpty()) return 0.0;
-        return calculateTotalAmount(payments) / payments.size();
+    private double calculateAverageTransactionValue(List<PaymentRollup> rollups) {
+        long count = totalCount(rollups);
+        if (count == 0) return 0.0;
+        return calculateTotalAmount(rollups) / count;
     }
 
-    private double calculateSuccessRate(List<Payment> payments) {
-        if (payments.isEmpty()) return 0.0;
-        long successfulPayments = countByStatus(payments, Payment.PaymentStatus.COMPLETED);
-        return (double) successfulPayments / payments.size() * 100;
+    private double calculateSuccessRate(List<PaymentRollup> rollups) {
+        long count = totalCount(rollups);
+        if (count == 0) return 0.0;
+        long successfulPayments = countByStatus(rollups, Payment.PaymentStatus.COMPLETED);
+        return (double) successfulPayments / count * 100;
     }
 
-    private Map<String, Double> getPaymentMethodDistribution(List<Payment> payments) {
-        long total = payments.size();
-        return payments.stream()
+    private Map<String, Double> getPaymentMethodDistribution(List<PaymentRollup> rollups) {
+        long total = totalCount(rollups);
+        return rollups.stream()
+                .filter(rollup -> rollup.getMethod() != null)
                 .collect(Collectors.groupingBy(
-                        payment -> payment.getPaymentMethod().toString(),
+                        rollup -> rollup.getMethod().toString(),
                         Collectors.collectingAndThen(
-                                Collectors.counting(),
-                                count -> (double) count / total * 100
+                                Collectors.summingLong(PaymentRollup::totalCount),
+                                count -> total > 0 ? (double) count / total * 100 : 0.0
                         )
                 ));
     }
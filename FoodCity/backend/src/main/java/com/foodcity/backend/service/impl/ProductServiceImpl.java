@@ -1,44 +1,73 @@
 package com.foodcity.backend.service.impl;
 
+import com.foodcity.backend.config.WebSocketConfig;
 import com.foodcity.backend.exception.ResourceNotFoundException;
 import com.foodcity.backend.model.Product;
+import com.foodcity.backend.payload.WebSocketMessage;
 import com.foodcity.backend.repository.ProductRepository;
+import com.foodcity.backend.service.EffectivePriceService;
+import com.foodcity.backend.service.ProductCatalogCache;
 import com.foodcity.backend.service.ProductService;
+import com.foodcity.backend.service.WebSocketService;
+import com.mongodb.client.result.UpdateResult;
 import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bson.types.Decimal128;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
 
 @Service
 @RequiredArgsConstructor
 @Transactional
 public class ProductServiceImpl implements ProductService {
 
+    // Number of changed prices published per /topic/inventory/prices message
+    private static final int PRICE_EVENT_BATCH_SIZE = 500;
+
     private final ProductRepository productRepository;
+    private final MongoTemplate mongoTemplate;
+    private final WebSocketService webSocketService;
+    private final ProductCatalogCache productCatalogCache;
+    private final EffectivePriceService effectivePriceService;
 
     @Override
     public Page<Product> getAllProducts(String category, String search, Pageable pageable) {
         if (StringUtils.hasText(category) && StringUtils.hasText(search)) {
             return productRepository.findByCategoryAndNameContainingIgnoreCase(category, search, pageable);
-        } else if (StringUtils.hasText(category)) {
-            return productRepository.findByCategory(category, pageable);
         } else if (StringUtils.hasText(search)) {
             return productRepository.findByNameContainingIgnoreCase(search, pageable);
         }
-        return productRepository.findAll(pageable);
+        return productCatalogCache.page(productCatalogCache.pageKey(category, pageable),
+                () -> StringUtils.hasText(category)
+                        ? productRepository.findByCategory(category, pageable)
+                        : productRepository.findAll(pageable));
     }
 
     @Override
     public Product getProductById(String id) {
-        return productRepository.findById(id)
-                .orElseThrow(() -> new ResourceNotFoundException("Product", "id", id));
+        return productCatalogCache.product(id, () -> findProduct(id));
     }
 
     @Override
@@ -46,13 +75,17 @@ public class ProductServiceImpl implements ProductService {
         if (product.getBarcode() != null && existsByBarcode(product.getBarcode())) {
             throw new IllegalArgumentException("Product with this barcode already exists");
         }
-        product.setLastUpdated(LocalDateTime.now().toString());
-        return productRepository.save(product);
+        product.setLastUpdated(LocalDateTime.now());
+        Product savedProduct = productRepository.save(product);
+        productCatalogCache.productChanged(savedProduct);
+        effectivePriceService.requestRebuild();
+        return savedProduct;
     }
 
     @Override
     public Product updateProduct(String id, Product productDetails) {
-        Product product = getProductById(id);
+        Product product = findProduct(id);
+        String previousCategory = product.getCategory();
         
         if (productDetails.getBarcode() != null && 
             !productDetails.getBarcode().equals(product.getBarcode()) && 
@@ -69,20 +102,26 @@ public class ProductServiceImpl implements ProductService {
         product.setBarcode(productDetails.getBarcode());
         product.setSupplierId(productDetails.getSupplierId());
         product.setDiscountPrice(productDetails.getDiscountPrice());
-        product.setLastUpdated(LocalDateTime.now().toString());
+        product.setLastUpdated(LocalDateTime.now());
 
-        return productRepository.save(product);
+        Product savedProduct = productRepository.save(product);
+        productCatalogCache.productChanged(savedProduct, previousCategory);
+        effectivePriceService.requestRebuild();
+        return savedProduct;
     }
 
     @Override
     public void deleteProduct(String id) {
-        Product product = getProductById(id);
+        Product product = findProduct(id);
         productRepository.delete(product);
+        productCatalogCache.productChanged(product);
+        effectivePriceService.requestRebuild();
     }
 
     @Override
     public List<Product> getProductsByCategory(String category) {
-        return productRepository.findByCategory(category);
+        return productCatalogCache.list(ProductCatalogCache.PRODUCT_PAGES, productCatalogCache.pageKey(category, null),
+                () -> productRepository.findByCategory(category));
     }
 
     @Override
@@ -92,10 +131,10 @@ public class ProductServiceImpl implements ProductService {
 
     @Override
     public Product updateStock(String id, Integer quantity) {
-        Product product = getProductById(id);
+        Product product = findProduct(id);
         product.setStockQuantity(quantity);
-        product.setLastUpdated(LocalDateTime.now().toString());
-        return productRepository.save(product);
+        product.setLastUpdated(LocalDateTime.now());
+        return saveAndEvict(product);
     }
 
     @Override
@@ -108,10 +147,12 @@ public class ProductServiceImpl implements ProductService {
 
     @Override
     public Product updatePrice(String id, Double price) {
-        Product product = getProductById(id);
+        Product product = findProduct(id);
         product.setPrice(BigDecimal.valueOf(price));
-        product.setLastUpdated(LocalDateTime.now().toString());
-        return productRepository.save(product);
+        product.setLastUpdated(LocalDateTime.now());
+        Product savedProduct = saveAndEvict(product);
+        effectivePriceService.requestRebuild();
+        return savedProduct;
     }
 
     @Override
@@ -122,15 +163,18 @@ public class ProductServiceImpl implements ProductService {
 
     @Override
     public List<Product> getActiveProducts() {
-        return productRepository.findByActiveTrue();
+        return productCatalogCache.list(ProductCatalogCache.ACTIVE_PRODUCTS, "all",
+                productRepository::findByActiveTrue);
     }
 
     @Override
     public Product toggleProductStatus(String id) {
-        Product product = getProductById(id);
+        Product product = findProduct(id);
         product.setActive(!product.isActive());
-        product.setLastUpdated(LocalDateTime.now().toString());
-        return productRepository.save(product);
+        product.setLastUpdated(LocalDateTime.now());
+        Product savedProduct = saveAndEvict(product);
+        effectivePriceService.requestRebuild();
+        return savedProduct;
     }
 
     @Override
@@ -144,15 +188,13 @@ public class ProductServiceImpl implements ProductService {
     }
 
     @Override
-    public void updateBulkPrices(List<String> productIds, Double percentageChange) {
-        List<Product> products = productRepository.findAllById(productIds);
-        products.forEach(product -> {
-            BigDecimal currentPrice = product.getPrice();
-            BigDecimal changeAmount = currentPrice.multiply(BigDecimal.valueOf(percentageChange / 100));
-            product.setPrice(currentPrice.add(changeAmount));
-            product.setLastUpdated(LocalDateTime.now().toString());
-        });
-        productRepository.saveAll(products);
+    public long updateBulkPrices(List<String> productIds, Double percentageChange, Double absoluteChange) {
+        return applyPriceChange(Criteria.where("id").in(productIds), percentageChange, absoluteChange);
+    }
+
+    @Override
+    public long updateCategoryPrices(String category, Double percentageChange, Double absoluteChange) {
+        return applyPriceChange(Criteria.where("category").is(category), percentageChange, absoluteChange);
     }
 
     @Override
@@ -162,15 +204,107 @@ public class ProductServiceImpl implements ProductService {
 
     @Override
     public List<Product> getExpiringSoonProducts(int daysThreshold) {
-        LocalDateTime thresholdDate = LocalDateTime.now().plusDays(daysThreshold);
-        return productRepository.findAll().stream()
-                .filter(product -> {
-                    if (product.getExpiryDate() != null) {
-                        LocalDateTime expiryDate = LocalDateTime.parse(product.getExpiryDate());
-                        return expiryDate.isBefore(thresholdDate);
-                    }
-                    return false;
-                })
-                .collect(Collectors.toList());
+        // Inclusive of the last day in the window
+        return productRepository.findByExpiryDateBefore(LocalDate.now().plusDays(daysThreshold + 1L));
+    }
+
+    // Private helper methods
+
+    private Product saveAndEvict(Product product) {
+        Product savedProduct = productRepository.save(product);
+        productCatalogCache.productChanged(savedProduct);
+        return savedProduct;
+    }
+
+    /**
+     * Reprices every product matching the scope with a single server-side update pipeline
+     * and publishes the resulting prices in batches.
+     */
+    private long applyPriceChange(Criteria scope, Double percentageChange, Double absoluteChange) {
+        if (percentageChange == null && absoluteChange == null) {
+            throw new IllegalArgumentException("A percentage or absolute price change is required");
+        }
+        // Truncated to BSON date precision so the publish query matches exactly
+        LocalDateTime updatedAt = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+
+        Query query = new Query(new Criteria().andOperator(scope, Criteria.where("price").ne(null)));
+        AggregationUpdate update = AggregationUpdate.from(
+                List.of(priceChangeStage(percentageChange, absoluteChange, updatedAt)));
+        UpdateResult result = mongoTemplate.updateMulti(query, update, Product.class);
+
+        effectivePriceService.requestRebuild();
+        publishPriceUpdates(new Criteria().andOperator(scope, Criteria.where("lastUpdated").is(updatedAt)));
+        return result.getModifiedCount();
+    }
+
+    private AggregationOperation priceChangeStage(Double percentageChange, Double absoluteChange,
+                                                  LocalDateTime updatedAt) {
+        BigDecimal factor = BigDecimal.ONE.add(
+                BigDecimal.valueOf(percentageChange != null ? percentageChange : 0).movePointLeft(2));
+        BigDecimal offset = BigDecimal.valueOf(absoluteChange != null ? absoluteChange : 0);
+
+        // price = round(max(price * factor + offset, 0), 2); $toDecimal also covers legacy string prices
+        Document newPrice = new Document("$round", List.of(
+                new Document("$max", List.of(
+                        new Document("$add", List.of(
+                                new Document("$multiply", List.of(
+                                        new Document("$toDecimal", "$price"),
+                                        new Decimal128(factor))),
+                                new Decimal128(offset))),
+                        new Decimal128(BigDecimal.ZERO))),
+                2));
+
+        return context -> new Document("$set", new Document("price", newPrice)
+                .append("lastUpdated", Date.from(updatedAt.atZone(ZoneId.systemDefault()).toInstant())));
+    }
+
+    private void publishPriceUpdates(Criteria changed) {
+        Query query = new Query(changed);
+        query.fields().include("price").include("category");
+
+        Map<String, BigDecimal> batch = new LinkedHashMap<>();
+        Set<String> categories = new HashSet<>();
+        int batchNumber = 0;
+        try (CloseableIterator<Product> products = mongoTemplate.stream(query, Product.class)) {
+            while (products.hasNext()) {
+                Product product = products.next();
+                batch.put(product.getId(), product.getPrice());
+                categories.add(product.getCategory());
+                if (batch.size() == PRICE_EVENT_BATCH_SIZE) {
+                    flushPriceBatch(batch, categories, ++batchNumber);
+                    batch = new LinkedHashMap<>();
+                    categories = new HashSet<>();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            flushPriceBatch(batch, categories, ++batchNumber);
+        }
+    }
+
+    // Write paths read the stored document, not a cached copy
+    private Product findProduct(String id) {
+        return productRepository.findById(id)
+                .orElseThrow(() -> new ResourceNotFoundException("Product", "id", id));
+    }
+
+    private void flushPriceBatch(Map<String, BigDecimal> prices, Set<String> categories, int batchNumber) {
+        productCatalogCache.productsChanged(prices.keySet(), categories);
+        sendPriceBatch(prices, batchNumber);
+    }
+
+    private void sendPriceBatch(Map<String, BigDecimal> prices, int batchNumber) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("batch", batchNumber);
+        payload.put("count", prices.size());
+        payload.put("prices", prices);
+
+        webSocketService.sendMessage(WebSocketConfig.Destinations.PRICE_UPDATES, WebSocketMessage.builder()
+                .type(WebSocketMessage.Type.PRICE_UPDATE)
+                .destination(WebSocketConfig.Destinations.PRICE_UPDATES)
+                .timestamp(LocalDateTime.now())
+                .payload(payload)
+                .status(WebSocketMessage.MessageStatus.SUCCESS)
+                .build());
     }
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Customer;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CustomerTierRecalculationServiceTest {
+
+    private MongoTemplate mongoTemplate;
+    private CustomerTierRecalculationService service;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Customer.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        service = new CustomerTierRecalculationService(mongoTemplate);
+    }
+
+    @Test
+    void silverRangeKeepsBothBounds() {
+        Document balance = balanceFilter(1500, Customer.CustomerTier.BRONZE);
+
+        assertThat(balance).isEqualTo(new Document("$gte", 1000).append("$lt", 5000));
+    }
+
+    @Test
+    void bronzeRangeAlsoMatchesAMissingBalance() {
+        Document balance = balanceFilter(10, Customer.CustomerTier.SILVER);
+
+        assertThat(balance).isEqualTo(new Document("$not", new Document("$gte", 1000)));
+    }
+
+    @Test
+    void topTierHasNoUpperBound() {
+        Document balance = balanceFilter(20000, Customer.CustomerTier.GOLD);
+
+        assertThat(balance).isEqualTo(new Document("$gte", 10000));
+    }
+
+    @Test
+    void filterSelectsBalancesOnTheRightSideOfEveryThreshold() {
+        Customer.CustomerTier[] tiers = Customer.CustomerTier.values();
+        for (int i = 1; i < tiers.length; i++) {
+            int threshold = tiers[i].getRequiredPoints();
+
+            // Promotion at the threshold: matches there, not just below it
+            Document promotion = balanceFilter(threshold, tiers[i - 1]);
+            assertThat(matches(promotion, threshold)).as("promotion to %s at %d", tiers[i], threshold).isTrue();
+            assertThat(matches(promotion, threshold - 1)).as("promotion to %s below %d", tiers[i], threshold).isFalse();
+
+            // Demotion just below the threshold: matches there, not at it
+            Document demotion = balanceFilter(threshold - 1, tiers[i]);
+            assertThat(matches(demotion, threshold - 1)).as("demotion to %s below %d", tiers[i - 1], threshold).isTrue();
+            assertThat(matches(demotion, threshold)).as("demotion to %s at %d", tiers[i - 1], threshold).isFalse();
+        }
+    }
+
+    @Test
+    void promotedCustomerTakesTheNewTier() {
+        Customer customer = customer(5000, Customer.CustomerTier.SILVER);
+
+        service.updateTier(customer);
+
+        assertThat(customer.getTier()).isEqualTo(Customer.CustomerTier.GOLD);
+    }
+
+    // The loyaltyPoints condition updateTier sends for a customer with this balance and stored tier
+    private Document balanceFilter(int points, Customer.CustomerTier stored) {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        service.updateTier(customer(points, stored));
+        verify(mongoTemplate, atLeastOnce())
+                .updateFirst(query.capture(), any(Update.class), eq(Customer.class));
+        Object balance = query.getValue().getQueryObject().get("loyaltyPoints");
+        assertThat(balance).isInstanceOf(Document.class);
+        return (Document) balance;
+    }
+
+    private static Customer customer(int points, Customer.CustomerTier tier) {
+        Customer customer = new Customer();
+        customer.setId("customer-" + points);
+        customer.setLoyaltyPoints(points);
+        customer.setTier(tier);
+        return customer;
+    }
+
+    // Evaluates the $gte / $lt / $not operators the tier ranges use
+    private static boolean matches(Document condition, int points) {
+        for (String operator : condition.keySet()) {
+            Object value = condition.get(operator);
+            boolean holds;
+            switch (operator) {
+                case "$gte":
+                    holds = points >= ((Number) value).intValue();
+                    break;
+                case "$lt":
+                    holds = points < ((Number) value).intValue();
+                    break;
+                case "$not":
+                    holds = !matches((Document) value, points);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected operator " + operator);
+            }
+            if (!holds) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Payment;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PaymentBatchProcessorTest {
+
+    private static final int PAYMENTS = 64;
+
+    private MongoTemplate mongoTemplate;
+    private BulkOperations bulkOps;
+    private PaymentRollupService paymentRollupService;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        bulkOps = mock(BulkOperations.class);
+        paymentRollupService = mock(PaymentRollupService.class);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(Payment.class))).thenReturn(bulkOps);
+    }
+
+    @Test
+    void gatewayCallsOverlapUpToTheConcurrencyLimit() throws Exception {
+        assertThat(maxInFlight(1)).isEqualTo(1);
+        assertThat(maxInFlight(8)).isEqualTo(8);
+    }
+
+    @Test
+    void paymentWithExistingIdIsRejectedBeforeTheGateway() {
+        Payment existing = new Payment();
+        existing.setId("existing-payment");
+        when(mongoTemplate.find(any(Query.class), eq(Payment.class))).thenReturn(List.of(existing));
+
+        List<Payment> payments = payments(2);
+        payments.get(0).setId("existing-payment");
+        StubGateway gateway = new StubGateway();
+        Map<String, Object> report = processor(8).process(payments, gateway);
+
+        assertThat(report.get("completed")).isEqualTo(1);
+        assertThat(report.get("rejected")).isEqualTo(1);
+        assertThat(gateway.calls.get()).isEqualTo(1);
+        verify(bulkOps).insert(List.of(payments.get(1)));
+        verify(bulkOps, never()).replaceOne(any(Query.class), any());
+    }
+
+    @Test
+    void repeatedIdWithinBatchIsRejected() {
+        List<Payment> payments = payments(2);
+        payments.get(0).setId("client-id");
+        payments.get(1).setId("client-id");
+        Map<String, Object> report = processor(1).process(payments, new StubGateway());
+
+        assertThat(report.get("completed")).isEqualTo(1);
+        assertThat(report.get("rejected")).isEqualTo(1);
+        verify(bulkOps).insert(anyList());
+    }
+
+    private PaymentBatchProcessor processor(int concurrency) {
+        return new PaymentBatchProcessor(mongoTemplate, paymentRollupService, new SimpleMeterRegistry(),
+                concurrency, "");
+    }
+
+    private static List<Payment> payments(int count) {
+        List<Payment> payments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Payment payment = new Payment();
+            payment.setPaymentGateway("STUB");
+            payment.setAmount(BigDecimal.TEN);
+            payments.add(payment);
+        }
+        return payments;
+    }
+
+    /**
+     * Holds the gateway until as many calls as the concurrency allows are waiting in it at
+     * once, then lets the batch finish and returns the most calls that overlapped.
+     */
+    private int maxInFlight(int concurrency) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch entered = new CountDownLatch(concurrency);
+        StubGateway gateway = new StubGateway(release, entered);
+        CompletableFuture<Map<String, Object>> report = CompletableFuture.supplyAsync(
+                () -> processor(concurrency).process(payments(PAYMENTS), gateway));
+
+        assertThat(entered.await(10, TimeUnit.SECONDS)).as("%d gateway calls in flight", concurrency).isTrue();
+        release.countDown();
+
+        assertThat(report.get(10, TimeUnit.SECONDS).get("completed")).isEqualTo(PAYMENTS);
+        return gateway.maxInFlight.get();
+    }
+
+    /**
+     * Approves every payment once the release latch is open and records how many calls overlapped.
+     */
+    private static final class StubGateway implements Consumer<Payment> {
+        private final CountDownLatch release;
+        private final CountDownLatch entered;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        private StubGateway() {
+            this(new CountDownLatch(0), new CountDownLatch(0));
+        }
+
+        private StubGateway(CountDownLatch release, CountDownLatch entered) {
+            this.release = release;
+            this.entered = entered;
+        }
+
+        @Override
+        public void accept(Payment payment) {
+            calls.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            payment.setStatus(Payment.PaymentStatus.COMPLETED);
+        }
+    }
+}
\ No newline at end of file
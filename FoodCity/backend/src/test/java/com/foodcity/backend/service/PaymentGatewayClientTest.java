@@ -0,0 +1,212 @@
+package com.foodcity.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.foodcity.backend.exception.PaymentGatewayException;
+import com.foodcity.backend.model.Payment;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PaymentGatewayClientTest {
+
+    private static final String GATEWAY = "FAKE";
+
+    private MockEnvironment environment;
+    private PaymentGatewayClient client;
+    private ExecutorService callers;
+
+    @BeforeEach
+    void setUp() {
+        environment = new MockEnvironment()
+                .withProperty("payment.gateway.max-concurrent-calls", "2")
+                .withProperty("payment.gateway.bulkhead-wait-millis", "20")
+                .withProperty("payment.gateway.deadline-millis", "2000")
+                .withProperty("payment.gateway.hedge-delay-millis", "50")
+                .withProperty("payment.gateway.circuit.failure-threshold", "3")
+                .withProperty("payment.gateway.circuit.open-millis", "200");
+        client = new PaymentGatewayClient(environment, new ObjectMapper(), new SimpleMeterRegistry());
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+        client.shutdown();
+    }
+
+    @Test
+    void circuitOpensAfterConsecutiveFailuresAndClosesAfterSuccessfulTrial() throws Exception {
+        AtomicInteger failuresLeft = new AtomicInteger(3);
+        FakeGateway gateway = new FakeGateway(call -> {
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new PaymentGatewayException(GATEWAY, PaymentGatewayException.UPSTREAM_ERROR, "Upstream error");
+            }
+            return approved();
+        });
+        client.register(GATEWAY, gateway);
+
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> client.authorize(payment()))
+                    .hasFieldOrPropertyWithValue("code", PaymentGatewayException.UPSTREAM_ERROR);
+        }
+        assertThatThrownBy(() -> client.authorize(payment()))
+                .hasFieldOrPropertyWithValue("code", PaymentGatewayException.CIRCUIT_OPEN);
+        assertThat(gateway.calls.get()).isEqualTo(3);
+        assertThat(channelHealth().get("circuit")).isEqualTo("OPEN");
+
+        Thread.sleep(250);
+        assertThat(client.authorize(payment()).isApproved()).isTrue();
+        assertThat(gateway.calls.get()).isEqualTo(4);
+        assertThat(channelHealth().get("circuit")).isEqualTo("CLOSED");
+    }
+
+    @Test
+    void bulkheadRejectsCallsBeyondTheLimit() throws Exception {
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        client.register(GATEWAY, new FakeGateway(call -> {
+            entered.countDown();
+            await(release);
+            return approved();
+        }));
+
+        Future<PaymentGateway.Response> first = callers.submit(() -> client.authorize(payment()));
+        Future<PaymentGateway.Response> second = callers.submit(() -> client.authorize(payment()));
+        assertThat(entered.await(1, TimeUnit.SECONDS)).isTrue();
+
+        assertThatThrownBy(() -> client.authorize(payment()))
+                .hasFieldOrPropertyWithValue("code", PaymentGatewayException.BULKHEAD_FULL);
+        assertThat(channelHealth().get("inFlight")).isEqualTo(2);
+
+        release.countDown();
+        assertThat(first.get(1, TimeUnit.SECONDS).isApproved()).isTrue();
+        assertThat(second.get(1, TimeUnit.SECONDS).isApproved()).isTrue();
+    }
+
+    @Test
+    void slowStatusQueryIsHedgedWithASecondRequest() {
+        CountDownLatch never = new CountDownLatch(1);
+        FakeGateway gateway = new FakeGateway(call -> {
+            if (call == 1) {
+                // The first request hangs until the deadline; the hedge answers at once
+                await(never);
+            }
+            return approved();
+        });
+        client.register(GATEWAY, gateway);
+
+        long started = System.nanoTime();
+        PaymentGateway.Response response = client.queryStatus(GATEWAY, "txn-1");
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertThat(response.isApproved()).isTrue();
+        assertThat(gateway.calls.get()).isEqualTo(2);
+        assertThat(elapsedMillis).isLessThan(1000);
+        assertThat(channelHealth().get("hedges")).isEqualTo(1.0);
+        never.countDown();
+    }
+
+    @Test
+    void fastStatusQueryIsNotHedged() throws Exception {
+        FakeGateway gateway = new FakeGateway(call -> approved());
+        client.register(GATEWAY, gateway);
+
+        assertThat(client.queryStatus(GATEWAY, "txn-1").isApproved()).isTrue();
+        Thread.sleep(100);
+        assertThat(gateway.calls.get()).isEqualTo(1);
+        assertThat(channelHealth().get("hedges")).isEqualTo(0.0);
+    }
+
+    @Test
+    void gatewayWithoutUrlFailsOutsideTheSimulatorProfiles() {
+        assertThatThrownBy(() -> client.createChannels())
+                .isInstanceOf(PaymentGatewayException.class)
+                .hasFieldOrPropertyWithValue("code", PaymentGatewayException.NOT_CONFIGURED);
+    }
+
+    @Test
+    void gatewayWithoutUrlIsSimulatedUnderTheTestProfile() {
+        environment.setActiveProfiles("test");
+        environment.setProperty("payment.gateway.simulated.latency-millis", "1");
+        client.createChannels();
+
+        Payment payment = payment();
+        payment.setPaymentGateway(null);
+        assertThat(client.authorize(payment).isApproved()).isTrue();
+        assertThat(gatewayHealth(Payment.PaymentMethod.CREDIT_CARD.name()).get("type")).isEqualTo("simulated");
+    }
+
+    private Map<String, Object> channelHealth() {
+        return gatewayHealth(GATEWAY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> gatewayHealth(String gateway) {
+        Map<String, Object> gateways = (Map<String, Object>) client.health().get("gateways");
+        return (Map<String, Object>) gateways.get(gateway);
+    }
+
+    private static Payment payment() {
+        Payment payment = new Payment();
+        payment.setPaymentGateway(GATEWAY);
+        payment.setPaymentMethod(Payment.PaymentMethod.CREDIT_CARD);
+        payment.setAmount(BigDecimal.TEN);
+        payment.setReferenceNumber("ref-1");
+        return payment;
+    }
+
+    private static PaymentGateway.Response approved() {
+        return new PaymentGateway.Response(true, "txn-1", "123456", "00", "Approved");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * In-process gateway whose answer to the n-th call (1-based) comes from the given function.
+     */
+    private static final class FakeGateway implements PaymentGateway {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final IntFunction<Response> behaviour;
+
+        private FakeGateway(IntFunction<Response> behaviour) {
+            this.behaviour = behaviour;
+        }
+
+        @Override
+        public Response authorize(Payment payment, Duration deadline) {
+            return behaviour.apply(calls.incrementAndGet());
+        }
+
+        @Override
+        public Response refund(Payment payment, Duration deadline) {
+            return behaviour.apply(calls.incrementAndGet());
+        }
+
+        @Override
+        public Response queryStatus(String transactionId, Duration deadline) {
+            return behaviour.apply(calls.incrementAndGet());
+        }
+    }
+}
\ No newline at end of file
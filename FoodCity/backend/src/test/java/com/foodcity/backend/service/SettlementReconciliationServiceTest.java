@@ -0,0 +1,192 @@
+package com.foodcity.backend.service;
+
+import com.foodcity.backend.model.Payment;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SettlementReconciliationServiceTest {
+
+    private static final LocalDate DATE = LocalDate.of(2024, 3, 1);
+    private static final String HEADER = "transaction_id,amount,fee\n";
+
+    @TempDir
+    Path directory;
+
+    private MongoTemplate mongoTemplate;
+    private SettlementReconciliationService service;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        service = new SettlementReconciliationService(mongoTemplate, directory.toString(),
+                "settlement-%s.csv", directory.resolve("reports").toString());
+    }
+
+    @Test
+    void parsesAmountsToCents() throws IOException {
+        Path file = file("t.csv", HEADER
+                + "A,12.5,0\n"
+                + "B,12.345,0\n"
+                + "C,12.344,0\n"
+                + "D,-3.10,0\n"
+                + "E,+7,0\n"
+                + "F,.05,0\n"
+                + "G,\"1,234.56\",0.30\n");
+
+        assertThat(read(file, 1024)).containsExactly(
+                "A=1250", "B=1235", "C=1234", "D=-310", "E=700", "F=5", "G=123456");
+    }
+
+    @Test
+    void skipsRowsWithoutANumericAmount() {
+        file("settlement-" + DATE + ".csv", HEADER + "A,abc,0\nB,,0\nC,1.00,0\n,2.00,0\n");
+
+        Map<String, Object> summary = service.settlementSummary(DATE);
+
+        assertThat(summary.get("records")).isEqualTo(1L);
+        assertThat(summary.get("malformedRows")).isEqualTo(3L);
+        assertThat(summary.get("settledAmount")).isEqualTo(new BigDecimal("1.00"));
+    }
+
+    @Test
+    void quotedFieldsKeepTheirCommasAndQuotes() throws IOException {
+        Path file = file("t.csv", "\"transaction_id\",\"amount\"\r\n"
+                + "\"A,1\",\"2.00\"\r\n"
+                + "\"B \"\"x\"\"\",3.00\r\n"
+                + "C,4.00");
+
+        assertThat(read(file, 1024)).containsExactly("A,1=200", "B \"x\"=300", "C=400");
+    }
+
+    @Test
+    void remapsTheWindowAcrossLines() throws IOException {
+        StringBuilder csv = new StringBuilder(HEADER);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            csv.append("T").append(i).append(',').append(i).append(".01,0\n");
+            expected.add("T" + i + "=" + (i * 100 + 1));
+        }
+        Path file = file("t.csv", csv.toString());
+
+        // Smaller than two lines, so nearly every record starts in a new window
+        assertThat(read(file, 32)).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    void rejectsALineLongerThanTheWindow() {
+        Path file = file("t.csv", HEADER + "A-very-long-transaction-id-value,1.00,0\n");
+
+        assertThatThrownBy(() -> read(file, 32))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("longer than 32 bytes");
+    }
+
+    @Test
+    void joinsTransactionsAsGroups() {
+        file("settlement-" + DATE + ".csv", HEADER
+                + "T1,10.00,0\n"
+                + "T1,-2.00,0\n"
+                + "T2,5.00,0\n"
+                + "T3,1.00,0\n");
+        payments(payment("T1", "10.00"), payment("T2", "6.00"), payment("T4", "3.00"));
+
+        Map<String, Object> report = service.reconcile(DATE);
+
+        assertThat(report.get("settlementFileSorted")).isEqualTo(true);
+        assertJoin(report);
+    }
+
+    @Test
+    void joinsAnUnsortedFileThroughSortRuns() {
+        file("settlement-" + DATE + ".csv", HEADER
+                + "T3,1.00,0\n"
+                + "T1,-2.00,0\n"
+                + "T2,5.00,0\n"
+                + "T1,10.00,0\n");
+        payments(payment("T1", "10.00"), payment("T2", "6.00"), payment("T4", "3.00"));
+
+        Map<String, Object> report = service.reconcile(DATE);
+
+        assertThat(report.get("settlementFileSorted")).isEqualTo(false);
+        assertThat(report.get("sortRuns")).isEqualTo(1);
+        assertJoin(report);
+    }
+
+    // T1 matches with its refund counted, T2 differs, T3 is only settled, T4 only paid
+    private static void assertJoin(Map<String, Object> report) {
+        assertThat(report.get("matched")).isEqualTo(1L);
+        assertThat(report.get("mismatched")).isEqualTo(1L);
+        assertThat(report.get("missingFromPayments")).isEqualTo(1L);
+        assertThat(report.get("missingFromSettlement")).isEqualTo(1L);
+        assertThat(report.get("refundRecords")).isEqualTo(1L);
+        assertThat(report.get("settledAmount")).isEqualTo(new BigDecimal("14.00"));
+        assertThat(report.get("paymentAmount")).isEqualTo(new BigDecimal("19.00"));
+    }
+
+    private Path file(String name, String content) {
+        try {
+            return Files.write(directory.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> read(Path file, long windowSize) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (SettlementReconciliationService.SettlementCursor cursor =
+                     new SettlementReconciliationService.SettlementCursor(file, windowSize)) {
+            while (cursor.next()) {
+                records.add(cursor.id() + "=" + cursor.cents());
+            }
+        }
+        return records;
+    }
+
+    private void payments(Payment... payments) {
+        Iterator<Payment> iterator = List.of(payments).iterator();
+        when(mongoTemplate.stream(any(Query.class), eq(Payment.class))).thenReturn(new CloseableIterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Payment next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    private static Payment payment(String transactionId, String amount) {
+        Payment payment = new Payment();
+        payment.setTransactionId(transactionId);
+        payment.setAmount(new BigDecimal(amount));
+        return payment;
+    }
+}
\ No newline at end of file